@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Runs benchmarks by 1, 4 and all available threads with allocation profiling (gc profiler),
+ * results are saved into {@code jmh-<threads>-threads.json}:
+ * <pre>
+ * java -cp target/benchmarks.jar poltora.utils.BenchmarkSuite [benchmark regexp]
+ * </pre>
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class BenchmarkSuite {
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : "poltora\\.utils\\..*Benchmark";
+
+        Set<Integer> threads = new TreeSet<>();
+        threads.add(1);
+        threads.add(4);
+        threads.add(Runtime.getRuntime().availableProcessors());
+
+
+        for (int number : threads) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .include(include)
+                    .threads(number)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("jmh-" + number + "-threads.json");
+
+            new Runner(options.build()).run();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call cost of resolving measurer by caller: "legacy*" are the former implementations
+ * (capturing of whole stack trace per call), "caller*" are handles of {@link PerformanceMeasurer#caller()}
+ * (no stack walking), the rest is current {@link CallerResolver}.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CallerResolutionBenchmark {
+
+    @Benchmark
+    public PerformanceMeasurer get() {
+        return PerformanceMeasurer.get();
+    }
+
+    @Benchmark
+    public PerformanceMeasurer getByMethodName() {
+        return PerformanceMeasurer.getByMethodName();
+    }
+
+    private static final PerformanceMeasurer.Caller CALLER = PerformanceMeasurer.caller();
+
+    @Benchmark
+    public PerformanceMeasurer callerGet() {
+        return CALLER.get();
+    }
+
+    @Benchmark
+    public PerformanceMeasurer callerGetByMethodName() {
+        return CALLER.get("getByMethodName");
+    }
+
+    @Benchmark
+    public PerformanceMeasurer legacyGet() {
+        return legacyGetImpl();
+    }
+
+    @Benchmark
+    public PerformanceMeasurer legacyGetByMethodName() {
+        return legacyGetByMethodNameImpl();
+    }
+
+    private static PerformanceMeasurer legacyGetImpl() {
+        return PerformanceMeasurer.get(
+                Thread.currentThread().getStackTrace()[2].getClassName()
+        );
+    }
+
+    private static PerformanceMeasurer legacyGetByMethodNameImpl() {
+        return PerformanceMeasurer.get(
+                String.format(
+                        "%s.%s()",
+                        Thread.currentThread().getStackTrace()[2].getClassName(),
+                        Thread.currentThread().getStackTrace()[2].getMethodName()
+                )
+        );
+    }
+}
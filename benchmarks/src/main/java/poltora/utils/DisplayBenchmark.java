@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of report of all measurers (summary, rendering of line), by number of measurers and of their sensors.
+ * Logging itself is switched off, so appenders are not measured.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DisplayBenchmark {
+
+    @Param({"1", "64"})
+    int measurers;
+
+    @Param({"1", "16", "256"})
+    int sensors;
+
+    private PerformanceMeasurer.Sensor[] updated;
+
+    @Setup
+    public void setUp() {
+        PerformanceMeasurer.setLogging(false);
+
+        updated = new PerformanceMeasurer.Sensor[measurers];
+
+        for (int m = 0; m < measurers; m++) {
+            PerformanceMeasurer measurer = PerformanceMeasurer.get("display-" + measurers + "-" + sensors + "-" + m);
+
+            for (int s = 0; s < sensors; s++) {
+                measurer.getSensor("sensor-" + s).measure();
+            }
+            updated[m] = measurer.getSensor("sensor-0");
+        }
+    }
+
+    @Benchmark
+    public void display() {
+        // each measurer is reported
+        for (PerformanceMeasurer.Sensor sensor : updated) {
+            sensor.measure();
+        }
+
+        PerformanceMeasurer.display();
+    }
+}
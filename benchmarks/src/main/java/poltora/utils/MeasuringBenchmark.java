@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of measuring calls of hot loops, by number of measurers and of their sensors.
+ * Each thread walks measurers and sensors round-robin; number of threads is given by
+ * {@link BenchmarkSuite} (1, 4, N) or by {@code -t}, scaling by threads shows contention.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MeasuringBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Measurers {
+
+        @Param({"1", "64"})
+        int measurers;
+
+        @Param({"1", "16", "256"})
+        int sensors;
+
+        String[] measurerNames;
+        String[] sensorNames;
+        PerformanceMeasurer[] instances;
+        PerformanceMeasurer.Sensor[][] handles;
+        PerformanceMeasurer.Sensor[][] bufferedHandles;
+
+        @Setup
+        public void setUp() {
+            PerformanceMeasurer.setLogging(false);
+
+            measurerNames = new String[measurers];
+            sensorNames = new String[sensors];
+            instances = new PerformanceMeasurer[measurers];
+            handles = new PerformanceMeasurer.Sensor[measurers][sensors];
+            bufferedHandles = new PerformanceMeasurer.Sensor[measurers][sensors];
+
+            for (int s = 0; s < sensors; s++) {
+                sensorNames[s] = "sensor-" + s;
+            }
+
+            for (int m = 0; m < measurers; m++) {
+                measurerNames[m] = "benchmark-" + measurers + "-" + sensors + "-" + m;
+                instances[m] = PerformanceMeasurer.get(measurerNames[m]);
+
+                for (int s = 0; s < sensors; s++) {
+                    handles[m][s] = instances[m].getSensor(sensorNames[s]);
+                }
+
+                PerformanceMeasurer buffered = PerformanceMeasurer.get(measurerNames[m] + "-buffered").setBuffered(true);
+                for (int s = 0; s < sensors; s++) {
+                    bufferedHandles[m][s] = buffered.getSensor(sensorNames[s]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Round-robin position of thread, numbers are powers of 2
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        int measurer;
+        int sensor;
+
+        int nextMeasurer(Measurers state) {
+            return measurer = (measurer + 1) & (state.measurers - 1);
+        }
+
+        int nextSensor(Measurers state) {
+            return sensor = (sensor + 1) & (state.sensors - 1);
+        }
+    }
+
+
+    @Benchmark
+    public PerformanceMeasurer getByName(Measurers state, Cursor cursor) {
+        return PerformanceMeasurer.get(state.measurerNames[cursor.nextMeasurer(state)]);
+    }
+
+    @Benchmark
+    public void measureByName(Measurers state, Cursor cursor) {
+        state.instances[cursor.nextMeasurer(state)].measure(state.sensorNames[cursor.nextSensor(state)]);
+    }
+
+    @Benchmark
+    public void success(Measurers state, Cursor cursor) {
+        state.instances[cursor.nextMeasurer(state)].success();
+    }
+
+    @Benchmark
+    public void sensorHandle(Measurers state, Cursor cursor) {
+        state.handles[cursor.nextMeasurer(state)][cursor.nextSensor(state)].measure();
+    }
+
+    @Benchmark
+    public void bufferedSensorHandle(Measurers state, Cursor cursor) {
+        state.bufferedHandles[cursor.nextMeasurer(state)][cursor.nextSensor(state)].measure();
+    }
+
+    @Benchmark
+    public void startStop(Measurers state, Cursor cursor) {
+        PerformanceMeasurer measurer = state.instances[cursor.nextMeasurer(state)];
+
+        measurer.start();
+        measurer.stop();
+    }
+
+    @Benchmark
+    public void timer(Measurers state, Cursor cursor) {
+        try (PerformanceMeasurer.Timer timer = state.instances[cursor.nextMeasurer(state)].time()) {
+            // section
+        }
+    }
+}
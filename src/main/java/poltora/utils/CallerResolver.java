@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds out who called {@link PerformanceMeasurer#get()}, {@link PerformanceMeasurer#getByMethodName()} etc.
+ * and caches resolved measurers per calling class and method.
+ * <p>
+ * On Java 11+ lazy {@code StackWalker} frame access is used (see src/main/java11),
+ * on Java 8 it falls back to single capturing of stack trace.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+abstract class CallerResolver {
+
+    static final CallerResolver INSTANCE = load();
+
+    private static CallerResolver load() {
+        try {
+            return (CallerResolver) Class.forName("poltora.utils.StackWalkerCallerResolver")
+                    .getDeclaredConstructor()
+                    .newInstance();
+        } catch (Throwable e) {
+            // Java 8 or built without java11 profile
+            return new StackTraceResolver();
+        }
+    }
+
+    static boolean isInternal(String className) {
+        return className.equals(PerformanceMeasurer.class.getName())
+                || className.equals(CallerResolver.class.getName())
+                || className.equals(StackTraceResolver.class.getName());
+    }
+
+    abstract CallerClass callerClass();
+
+    abstract PerformanceMeasurer classMeasurer();
+
+    abstract PerformanceMeasurer methodMeasurer();
+
+    abstract String callerSimpleClassName();
+
+    abstract String callerMethodName();
+
+
+    /**
+     * Cached state of one calling class
+     */
+    static final class CallerClass {
+        private final String name;
+        private final String simpleName;
+        private volatile PerformanceMeasurer measurer;
+        private final Map<String, PerformanceMeasurer> methodMeasurers = new ConcurrentHashMap<>();
+
+        CallerClass(String name) {
+            this.name = name;
+            this.simpleName = name.substring(name.lastIndexOf('.') + 1);
+        }
+
+        String getSimpleName() {
+            return simpleName;
+        }
+
+        PerformanceMeasurer measurer() {
+            PerformanceMeasurer measurer = this.measurer;
+
+            if (measurer == null || measurer.isPurged()) {
+                measurer = PerformanceMeasurer.get(name);
+                this.measurer = measurer;
+            }
+
+            return measurer;
+        }
+
+        PerformanceMeasurer methodMeasurer(String methodName) {
+            PerformanceMeasurer measurer = methodMeasurers.get(methodName);
+
+            if (measurer == null || measurer.isPurged()) {
+                measurer = PerformanceMeasurer.get(name + '.' + methodName + "()");
+                methodMeasurers.put(methodName, measurer);
+            }
+
+            return measurer;
+        }
+    }
+
+
+    /**
+     * Java 8 fallback: one {@link Throwable#getStackTrace()} per call instead of two
+     * {@code Thread.currentThread().getStackTrace()}, without formatting of measurer's name
+     */
+    static final class StackTraceResolver extends CallerResolver {
+
+        private final Map<String, CallerClass> callers = new ConcurrentHashMap<>();
+
+        private static StackTraceElement caller() {
+            for (StackTraceElement element : new Throwable().getStackTrace()) {
+                if (!isInternal(element.getClassName())) {
+                    return element;
+                }
+            }
+            throw new IllegalStateException("Caller is not found");
+        }
+
+        private CallerClass callerClass(StackTraceElement element) {
+            CallerClass callerClass = callers.get(element.getClassName());
+            if (callerClass == null) {
+                callerClass = callers.computeIfAbsent(element.getClassName(), CallerClass::new);
+            }
+            return callerClass;
+        }
+
+        @Override
+        CallerClass callerClass() {
+            return callerClass(caller());
+        }
+
+        @Override
+        PerformanceMeasurer classMeasurer() {
+            return callerClass(caller()).measurer();
+        }
+
+        @Override
+        PerformanceMeasurer methodMeasurer() {
+            StackTraceElement caller = caller();
+            return callerClass(caller).methodMeasurer(caller.getMethodName());
+        }
+
+        @Override
+        String callerSimpleClassName() {
+            return callerClass(caller()).getSimpleName();
+        }
+
+        @Override
+        String callerMethodName() {
+            return caller().getMethodName();
+        }
+    }
+}
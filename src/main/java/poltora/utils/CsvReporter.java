@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Row per sensor of each report, appended to file; the total of measurer is the row of {@code sum} sensor.
+ * Header is written into empty file:
+ * <pre>
+ * time,name,sensor,count,delta,isolated,rate_1m,rate_5m,rate_15m,ewma_1m,ewma_5m,ewma_15m,p50,p90,p99,p999,max
+ * </pre>
+ * Rates are per second, latencies are cumulative, in nanoseconds, and empty for sensors without durations.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class CsvReporter implements Reporter {
+
+    private static final String SUM_NAME = "sum";
+
+    private final Writer writer;
+    private final StringBuilder rows = new StringBuilder(1024);
+    private boolean headerPending;
+
+    public CsvReporter(Path file) throws IOException {
+        this(
+                Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND),
+                !Files.exists(file) || Files.size(file) == 0
+        );
+    }
+
+    /**
+     * @param header whether header is written before the first report
+     */
+    public CsvReporter(Writer writer, boolean header) {
+        this.writer = writer;
+        this.headerPending = header;
+    }
+
+    @Override
+    public void report(Snapshot snapshot) throws IOException {
+        rows.setLength(0);
+
+        if (headerPending) {
+            appendHeader(rows);
+            headerPending = false;
+        }
+
+
+        for (Snapshot.SensorReading sensor : snapshot.getSensors()) {
+            appendPrefix(rows, snapshot, sensor.getName());
+            rows.append(sensor.getCount()).append(',');
+            rows.append(sensor.getDelta()).append(',');
+            rows.append(sensor.isIsolated());
+
+            for (PerformanceMeasurer.Window window : PerformanceMeasurer.Window.values()) {
+                rows.append(',').append(sensor.getRate(window));
+            }
+            for (PerformanceMeasurer.Window window : PerformanceMeasurer.Window.values()) {
+                rows.append(',').append(sensor.getEwmaRate(window));
+            }
+
+            appendLatency(rows, sensor.getLatency());
+        }
+
+
+        appendPrefix(rows, snapshot, SUM_NAME);
+        rows.append(snapshot.getSum()).append(',');
+        rows.append(snapshot.getDelta()).append(',');
+        rows.append(false);
+
+        for (PerformanceMeasurer.Window window : PerformanceMeasurer.Window.values()) {
+            rows.append(',').append(snapshot.getRate(window));
+        }
+        for (PerformanceMeasurer.Window window : PerformanceMeasurer.Window.values()) {
+            rows.append(',').append(snapshot.getEwmaRate(window));
+        }
+
+        appendLatency(rows, snapshot.getLatency());
+
+
+        writer.append(rows);
+        writer.flush();
+    }
+
+    private static void appendHeader(StringBuilder rows) {
+        rows.append("time,name,sensor,count,delta,isolated");
+
+        for (PerformanceMeasurer.Window window : PerformanceMeasurer.Window.values()) {
+            rows.append(",rate_").append(window.getLabel());
+        }
+        for (PerformanceMeasurer.Window window : PerformanceMeasurer.Window.values()) {
+            rows.append(",ewma_").append(window.getLabel());
+        }
+        for (String percentile : LatencyHistogram.PERCENTILE_NAMES) {
+            rows.append(',').append(percentile);
+        }
+        rows.append(",max\n");
+    }
+
+    private static void appendPrefix(StringBuilder rows, Snapshot snapshot, String sensor) {
+        rows.append(snapshot.getTime()).append(',');
+        appendValue(rows, snapshot.getName());
+        rows.append(',');
+        appendValue(rows, sensor);
+        rows.append(',');
+    }
+
+    private static void appendLatency(StringBuilder rows, Snapshot.Latency latency) {
+        for (int i = 0; i < LatencyHistogram.PERCENTILE_NAMES.length; i++) {
+            rows.append(',');
+            if (latency != null) rows.append(latency.getPercentile(i));
+        }
+
+        rows.append(',');
+        if (latency != null) rows.append(latency.getMax());
+
+        rows.append('\n');
+    }
+
+    /**
+     * Quoted if needed, RFC 4180
+     */
+    static void appendValue(StringBuilder rows, String value) {
+        boolean quoted = false;
+        for (int i = 0; i < value.length() && !quoted; i++) {
+            char c = value.charAt(i);
+            quoted = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+
+        if (!quoted) {
+            rows.append(value);
+            return;
+        }
+
+
+        rows.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') rows.append('"');
+            rows.append(c);
+        }
+        rows.append('"');
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
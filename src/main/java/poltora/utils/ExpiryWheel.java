@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hierarchical timing wheel of expiring entries (4 levels of 64 slots), so advancing costs O(due entries),
+ * not O(all entries). Entries are scheduled from any thread, wheel is advanced by one thread only.
+ * <p>
+ * Activity of entries is not tracked by wheel: when deadline of entry comes, its target tells whether it is expired
+ * or returns the next deadline, so each active entry is checked once per its time to live.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+final class ExpiryWheel {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int LEVELS = 4;
+
+    interface Expiring {
+        /**
+         * @param now millis
+         * @return the next deadline in millis, or 0 when target is expired (or it doesn't expire anymore)
+         */
+        long expire(long now);
+    }
+
+    static final class Entry {
+        private final Expiring target;
+        private long deadline; // millis
+        private volatile boolean cancelled;
+
+        private Entry(Expiring target, long deadline) {
+            this.target = target;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickMillis;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Queue<Entry>[][] wheel = new Queue[LEVELS][SLOTS];
+    private final Queue<Entry> incoming = new ConcurrentLinkedQueue<>();
+    private final Queue<Entry> due = new ArrayDeque<>();
+    private long currentTick; // the latest advanced one
+
+    ExpiryWheel(long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * Any thread, entry is placed into wheel by the next advancing
+     */
+    Entry schedule(Expiring target, long deadline) {
+        Entry entry = new Entry(target, deadline);
+        incoming.add(entry);
+        return entry;
+    }
+
+    /**
+     * Wheel's thread only
+     *
+     * @return number of targets which are checked
+     */
+    int advance(long now) {
+        for (Entry entry; (entry = incoming.poll()) != null; ) {
+            place(entry, tick(entry.deadline));
+        }
+
+
+        long nowTick = now / tickMillis;
+
+        while (currentTick < nowTick) {
+            currentTick++;
+
+            // higher levels are cascaded into lower ones, which come due at the same tick
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (BITS * level)) - 1)) == 0) {
+                    cascade(level, (int) (currentTick >>> (BITS * level)) & (SLOTS - 1));
+                }
+            }
+            cascade(0, (int) currentTick & (SLOTS - 1));
+        }
+
+
+        int checked = 0;
+        for (Entry entry; (entry = due.poll()) != null; ) {
+            if (entry.cancelled) continue;
+
+
+            checked++;
+            long deadline = entry.target.expire(now);
+            if (deadline != 0) {
+                entry.deadline = deadline;
+                // not before the next tick, even if clock is behind of wheel
+                place(entry, Math.max(tick(deadline), currentTick + 1));
+            }
+        }
+
+        return checked;
+    }
+
+    /**
+     * Entry comes due not earlier than its deadline
+     */
+    private long tick(long deadline) {
+        return (deadline + tickMillis - 1) / tickMillis;
+    }
+
+    private void cascade(int level, int slot) {
+        Queue<Entry> entries = wheel[level][slot];
+        if (entries == null || entries.isEmpty()) return;
+
+
+        wheel[level][slot] = null;
+        for (Entry entry : entries) {
+            place(entry, tick(entry.deadline));
+        }
+    }
+
+    /**
+     * Entry goes into the lowest level, where its deadline and current tick differ only by digit of this level
+     */
+    private void place(Entry entry, long tick) {
+        if (entry.cancelled) return;
+
+
+        if (tick <= currentTick) {
+            due.add(entry);
+            return;
+        }
+
+        int level = 0;
+        while (level < LEVELS - 1 && (tick >>> (BITS * (level + 1))) != (currentTick >>> (BITS * (level + 1)))) {
+            level++;
+        }
+        // beyond the top level entry is placed again when its slot comes
+        int slot = (int) (tick >>> (BITS * level)) & (SLOTS - 1);
+
+        Queue<Entry> entries = wheel[level][slot];
+        if (entries == null) {
+            entries = new ArrayDeque<>();
+            wheel[level][slot] = entries;
+        }
+        entries.add(entry);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+/**
+ * Events of Java Flight Recorder: report of each measurer and personal timer's sections,
+ * so measurements may be correlated with GC, locks, I/O of the same recording.
+ * <p>
+ * On Java 11+ events are emitted by {@code jdk.jfr} (see src/main/java11), only while any recording is running;
+ * otherwise (Java 8, built without java11 profile) nothing is emitted and it costs one constant check.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+abstract class FlightRecorderEvents {
+
+    static final FlightRecorderEvents INSTANCE = load();
+
+    private static FlightRecorderEvents load() {
+        try {
+            return (FlightRecorderEvents) Class.forName("poltora.utils.JfrFlightRecorderEvents")
+                    .getDeclaredConstructor()
+                    .newInstance();
+        } catch (Throwable e) {
+            // Java 8 or built without java11 profile
+            return new Disabled();
+        }
+    }
+
+    /**
+     * @return whether events may be emitted, cheap check before any work for them
+     */
+    abstract boolean isRecording();
+
+    abstract void interval(String measurer, long interval, long sum, long delta, long throughput, long throughputMoment,
+                           double rate1m, double rate5m, double rate15m, String text);
+
+    /**
+     * @return started event of section or null, when section events are disabled
+     */
+    abstract Object beginSection(PerformanceMeasurer measurer, PerformanceMeasurer.Sensor sensor);
+
+    abstract void endSection(Object event);
+
+
+    static final class Disabled extends FlightRecorderEvents {
+
+        @Override
+        boolean isRecording() {
+            return false;
+        }
+
+        @Override
+        void interval(String measurer, long interval, long sum, long delta, long throughput, long throughputMoment,
+                      double rate1m, double rate5m, double rate15m, String text) {
+        }
+
+        @Override
+        Object beginSection(PerformanceMeasurer measurer, PerformanceMeasurer.Sensor sensor) {
+            return null;
+        }
+
+        @Override
+        void endSection(Object event) {
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimation of left time of sensor up to its possible size by recent rates instead of the whole run,
+ * so warm-up, throttling or slower phase don't mislead it.
+ * <p>
+ * Rate is slope of least squares over the latest intervals, left time is in 95% confidence range of the slope.
+ * Until there are enough intervals rate is exponentially weighted one, at first report it is average one.
+ * Possible size may be changed at any time, as rate doesn't depend on it.
+ * <p>
+ * Reporting thread only, nothing is allocated.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+final class Forecast {
+
+    static final long UNKNOWN = -1;
+
+    private static final int HISTORY = 16; // intervals
+    private static final int MIN_REGRESSION_POINTS = 3;
+    private static final double EWMA_PERIOD = 60; // seconds
+    private static final double Z_95 = 1.96;
+    // two-sided 95% quantiles of Student's t distribution by degrees of freedom, few points need much wider range
+    private static final double[] T_95 = {Double.NaN,
+            12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228, 2.201, 2.179, 2.160, 2.145};
+
+    // ring of (time, count) points
+    private final double[] times = new double[HISTORY]; // seconds since start
+    private final long[] counts = new long[HISTORY];
+    private int head;
+    private int points;
+
+    private final long startTime; // nanoseconds
+    private double ewmaRate = Double.NaN; // per second
+
+    // result
+    private float percent;
+    private long leftTime = UNKNOWN; // millis
+    private long minLeftTime = UNKNOWN;
+    private long maxLeftTime = UNKNOWN;
+
+    Forecast(long startTime) {
+        this.startTime = startTime;
+    }
+
+    /**
+     * @param count current reading of sensor
+     * @param size  possible size, the latest one
+     * @param time  nanoseconds of reading
+     */
+    void update(long count, long size, long time) {
+        double seconds = (double) (time - startTime) / TimeUnit.SECONDS.toNanos(1);
+
+        if (points > 0) {
+            int last = (head + HISTORY - 1) % HISTORY;
+            double elapsed = seconds - times[last];
+
+            if (elapsed <= 0) {
+                // the same moment, only count is replaced
+                counts[last] = count;
+            } else {
+                double rate = (count - counts[last]) / elapsed;
+                ewmaRate = Double.isNaN(ewmaRate)
+                        ? rate
+                        : ewmaRate + (rate - ewmaRate) * (1 - Math.exp(-elapsed / EWMA_PERIOD));
+                add(seconds, count);
+            }
+        } else {
+            add(seconds, count);
+        }
+
+
+        percent = size > 0 ? Math.min((float) count * 100 / size, 100) : 0;
+
+        long left = size - count;
+        if (size <= 0) {
+            leftTime = minLeftTime = maxLeftTime = UNKNOWN;
+        } else if (left <= 0) {
+            leftTime = minLeftTime = maxLeftTime = 0;
+        } else if (points >= MIN_REGRESSION_POINTS) {
+            regression(left);
+        } else {
+            double rate = Double.isNaN(ewmaRate) ? (seconds > 0 ? count / seconds : 0) : ewmaRate;
+            leftTime = millis(left, rate);
+            minLeftTime = maxLeftTime = UNKNOWN;
+        }
+    }
+
+    private void add(double seconds, long count) {
+        times[head] = seconds;
+        counts[head] = count;
+        head = (head + 1) % HISTORY;
+        if (points < HISTORY) points++;
+    }
+
+    /**
+     * count = a + rate * time
+     */
+    private void regression(long left) {
+        double meanTime = 0;
+        double meanCount = 0;
+        for (int i = 0; i < points; i++) {
+            meanTime += times[i];
+            meanCount += counts[i];
+        }
+        meanTime /= points;
+        meanCount /= points;
+
+        double timeVariance = 0;
+        double covariance = 0;
+        for (int i = 0; i < points; i++) {
+            double dt = times[i] - meanTime;
+            timeVariance += dt * dt;
+            covariance += dt * (counts[i] - meanCount);
+        }
+
+        if (timeVariance == 0) {
+            leftTime = minLeftTime = maxLeftTime = UNKNOWN;
+            return;
+        }
+
+
+        double rate = covariance / timeVariance;
+
+        double residuals = 0;
+        for (int i = 0; i < points; i++) {
+            double residual = counts[i] - meanCount - rate * (times[i] - meanTime);
+            residuals += residual * residual;
+        }
+        int freedom = points - 2;
+        double error = quantile95(freedom) * Math.sqrt(residuals / freedom / timeVariance);
+
+        leftTime = millis(left, rate);
+        minLeftTime = millis(left, rate + error);
+        maxLeftTime = millis(left, rate - error);
+    }
+
+    static double quantile95(int freedom) {
+        return freedom < T_95.length ? T_95[freedom] : Z_95;
+    }
+
+    private static long millis(long left, double rate) {
+        if (!(rate > 0)) return UNKNOWN;
+
+        return (long) (left / rate * 1000);
+    }
+
+    float getPercent() {
+        return percent;
+    }
+
+    /**
+     * @return millis or {@link #UNKNOWN} while nothing is measured
+     */
+    long getLeftTime() {
+        return leftTime;
+    }
+
+    /**
+     * @return lower bound of 95% confidence range, millis or {@link #UNKNOWN}
+     */
+    long getMinLeftTime() {
+        return minLeftTime;
+    }
+
+    /**
+     * @return upper bound of 95% confidence range, millis or {@link #UNKNOWN} if it is infinite
+     */
+    long getMaxLeftTime() {
+        return maxLeftTime;
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.apache.log4j.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Exposes each measurer and each of its sensors as dynamic MBean, which is registered by the first report:
+ * <pre>
+ * poltora.utils:type=PerformanceMeasurer,name="c.d.Import"
+ * poltora.utils:type=PerformanceMeasurer,name="c.d.Import",sensor="success"
+ * </pre>
+ * Attributes are read from the latest snapshot, so reading of them doesn't touch measurers.
+ * MBeans are unregistered when measurer is retired or sensor is not reported anymore, and by closing.
+ * MBeans of another open reporter are left to it.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class JmxReporter implements Reporter {
+
+    private static final Logger LOGGER = Logger.getLogger(JmxReporter.class);
+
+    public static final String DOMAIN = "poltora.utils";
+
+    private static final List<Property<Snapshot>> MEASURER_PROPERTIES = measurerProperties();
+    private static final List<Property<Snapshot.SensorReading>> SENSOR_PROPERTIES = sensorProperties();
+
+    // open reporters by their MBeans of each server
+    private static final Map<MBeanServer, Map<ObjectName, JmxReporter>> OWNERS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final MBeanServer server;
+    private final Map<ObjectName, JmxReporter> owners;
+    private final Map<String, Measurer> measurers = new ConcurrentHashMap<>();
+
+    public JmxReporter() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public JmxReporter(MBeanServer server) {
+        this.server = server;
+        this.owners = OWNERS.computeIfAbsent(server, key -> new ConcurrentHashMap<>());
+    }
+
+    @Override
+    public void report(Snapshot snapshot) {
+        Measurer measurer = measurers.computeIfAbsent(snapshot.getName(), this::register);
+        measurer.snapshot = snapshot;
+
+        Set<String> reported = new HashSet<>();
+        for (Snapshot.SensorReading reading : snapshot.getSensors()) {
+            reported.add(reading.getName());
+            if (!measurer.sensors.containsKey(reading.getName())) {
+                measurer.sensors.put(reading.getName(), register(measurer, reading.getName()));
+            }
+        }
+
+        // evicted sensors
+        if (reported.size() < measurer.sensors.size()) {
+            measurer.sensors.entrySet().removeIf(sensor -> {
+                if (reported.contains(sensor.getKey())) return false;
+
+                unregister(sensor.getValue());
+                return true;
+            });
+        }
+    }
+
+    @Override
+    public void retire(String name, long time) {
+        measurers.computeIfPresent(name, (key, measurer) -> {
+            if (measurer.snapshot.getTime() > time) return measurer; // reported again
+
+            unregister(measurer);
+            return null;
+        });
+    }
+
+    private Measurer register(String name) {
+        Measurer measurer = new Measurer(name, objectName(name, null));
+        register(measurer.objectName, new Bean<>(
+                "Measurer " + name,
+                MEASURER_PROPERTIES,
+                () -> measurer.snapshot
+        ));
+        return measurer;
+    }
+
+    private ObjectName register(Measurer measurer, String sensor) {
+        ObjectName objectName = objectName(measurer.name, sensor);
+        register(objectName, new Bean<>(
+                "Sensor " + sensor,
+                SENSOR_PROPERTIES,
+                () -> reading(measurer.snapshot, sensor)
+        ));
+        return objectName;
+    }
+
+    private void register(ObjectName objectName, DynamicMBean bean) {
+        JmxReporter owner = owners.putIfAbsent(objectName, this);
+        if (owner != null && owner != this) {
+            LOGGER.warn(String.format("MBean [%s] is registered by another reporter", objectName));
+            return;
+        }
+
+        try {
+            if (server.isRegistered(objectName)) {
+                // left by previous reporter, f.e. of redeployed application
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(bean, objectName);
+        } catch (JMException e) {
+            owners.remove(objectName, this);
+            LOGGER.error(String.format("MBean [%s] is not registered", objectName), e);
+        }
+    }
+
+    /**
+     * @param sensor null for measurer
+     */
+    static ObjectName objectName(String measurer, String sensor) {
+        String name = DOMAIN + ":type=PerformanceMeasurer,name=" + ObjectName.quote(measurer)
+                + (sensor != null ? ",sensor=" + ObjectName.quote(sensor) : "");
+        try {
+            return new ObjectName(name);
+        } catch (JMException e) {
+            throw new IllegalArgumentException(name, e);
+        }
+    }
+
+    /**
+     * @return null if sensor is not reported anymore (evicted)
+     */
+    private static Snapshot.SensorReading reading(Snapshot snapshot, String sensor) {
+        for (Snapshot.SensorReading reading : snapshot.getSensors()) {
+            if (reading.getName().equals(sensor)) {
+                return reading;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        for (Measurer measurer : measurers.values()) {
+            unregister(measurer);
+        }
+        measurers.clear();
+    }
+
+    private void unregister(Measurer measurer) {
+        unregister(measurer.objectName);
+        for (ObjectName sensor : measurer.sensors.values()) {
+            unregister(sensor);
+        }
+    }
+
+    private void unregister(ObjectName objectName) {
+        if (!owners.remove(objectName, this)) return; // registered by another reporter
+
+
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOGGER.warn(String.format("MBean [%s] is not unregistered", objectName), e);
+        }
+    }
+
+
+    private static List<Property<Snapshot>> measurerProperties() {
+        List<Property<Snapshot>> properties = new ArrayList<>();
+        properties.add(new Property<>("Time", Long.class, "Millis since epoch of report", Snapshot::getTime));
+        properties.add(new Property<>("Duration", Long.class, "Millis since start of measurer or of personal timer's sections", Snapshot::getDuration));
+        properties.add(new Property<>("Interval", Long.class, "Nanoseconds since previous report", Snapshot::getInterval));
+        properties.add(new Property<>("Personal", Boolean.class, "Whether duration is of personal timer", Snapshot::isPersonal));
+        properties.add(new Property<>("Sum", Long.class, "Sum of common sensors", Snapshot::getSum));
+        properties.add(new Property<>("Delta", Long.class, "Delta of sum since previous report", Snapshot::getDelta));
+        properties.add(new Property<>("Throughput", Long.class, "r/s", Snapshot::getThroughput));
+        properties.add(new Property<>("ThroughputMoment", Long.class, "r/s of interval", Snapshot::getThroughputMoment));
+        for (PerformanceMeasurer.Window window : PerformanceMeasurer.Window.values()) {
+            properties.add(new Property<>("Rate" + window.getLabel(), Double.class, "Rate of sum per second", snapshot -> snapshot.getRate(window)));
+            properties.add(new Property<>("EwmaRate" + window.getLabel(), Double.class, "EWMA rate of sum per second", snapshot -> snapshot.getEwmaRate(window)));
+        }
+        properties.add(new Property<>("Percent", Float.class, "Progress of forecast", Snapshot::getPercent));
+        properties.add(new Property<>("LeftTime", Long.class, "Millis of forecast, -1 while it is unknown", Snapshot::getLeftTime));
+        properties.add(new Property<>("Text", String.class, "Logged line", Snapshot::getText));
+        return properties;
+    }
+
+    private static List<Property<Snapshot.SensorReading>> sensorProperties() {
+        List<Property<Snapshot.SensorReading>> properties = new ArrayList<>();
+        properties.add(new Property<>("Count", Long.class, "Value of sensor", Snapshot.SensorReading::getCount));
+        properties.add(new Property<>("Delta", Long.class, "Delta since previous report", Snapshot.SensorReading::getDelta));
+        properties.add(new Property<>("Isolated", Boolean.class, "Whether sensor is out of sum", Snapshot.SensorReading::isIsolated));
+        for (PerformanceMeasurer.Window window : PerformanceMeasurer.Window.values()) {
+            properties.add(new Property<>("Rate" + window.getLabel(), Double.class, "Rate per second", reading -> reading.getRate(window)));
+        }
+        for (int i = 0; i < LatencyHistogram.PERCENTILE_NAMES.length; i++) {
+            int percentile = i;
+            properties.add(new Property<>(
+                    LatencyHistogram.PERCENTILE_NAMES[i].toUpperCase(),
+                    Long.class,
+                    "Nanoseconds of recorded durations",
+                    reading -> reading.getLatency() != null ? reading.getLatency().getPercentile(percentile) : null
+            ));
+        }
+        properties.add(new Property<>("Max", Long.class, "Nanoseconds of recorded durations",
+                reading -> reading.getLatency() != null ? reading.getLatency().getMax() : null));
+        properties.add(new Property<>("Sampling", Integer.class, "1-in-N events are measured", Snapshot.SensorReading::getSampling));
+        properties.add(new Property<>("Error", Double.class, "Relative error of sampled count", Snapshot.SensorReading::getError));
+        return properties;
+    }
+
+
+    private static final class Measurer {
+        private final String name;
+        private final ObjectName objectName;
+        private final Map<String, ObjectName> sensors = new ConcurrentHashMap<>();
+        private volatile Snapshot snapshot;
+
+        Measurer(String name, ObjectName objectName) {
+            this.name = name;
+            this.objectName = objectName;
+        }
+    }
+
+
+    private static final class Property<T> {
+        private final MBeanAttributeInfo info;
+        private final Function<T, Object> getter;
+
+        Property(String name, Class<?> type, String description, Function<T, Object> getter) {
+            this.info = new MBeanAttributeInfo(name, type.getName(), description, true, false, false);
+            this.getter = getter;
+        }
+    }
+
+
+    /**
+     * Read-only attributes of the latest snapshot
+     */
+    private static final class Bean<T> implements DynamicMBean {
+
+        private final MBeanInfo info;
+        private final List<Property<T>> properties;
+        private final Supplier<T> source;
+
+        Bean(String description, List<Property<T>> properties, Supplier<T> source) {
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[properties.size()];
+            for (int i = 0; i < attributes.length; i++) {
+                attributes[i] = properties.get(i).info;
+            }
+
+            this.info = new MBeanInfo(Bean.class.getName(), description, attributes, null, null, null);
+            this.properties = properties;
+            this.source = source;
+        }
+
+        @Override
+        public Object getAttribute(String name) throws AttributeNotFoundException {
+            for (Property<T> property : properties) {
+                if (property.info.getName().equals(name)) {
+                    T value = source.get();
+                    return value != null ? property.getter.apply(value) : null;
+                }
+            }
+            throw new AttributeNotFoundException(name);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                try {
+                    list.add(new Attribute(name, getAttribute(name)));
+                } catch (AttributeNotFoundException e) {
+                    // skipped as it is specified
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Read-only attribute " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(action));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return info;
+        }
+    }
+}
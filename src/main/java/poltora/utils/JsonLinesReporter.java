@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One JSON object per report, appended to file as line:
+ * <pre>
+ * {"time":1600000000000,"name":"c.d.Import","duration":27000,"interval":15000000000,"personal":false,"sum":328,"delta":96,
+ *  "throughput":11,"throughputMoment":6,"rates":{"1m":11.8,...},"ewma":{"1m":11.9,...},
+ *  "forecast":{"possibleSize":1000,"percent":32.8,"leftTime":55000,"minLeftTime":48000,"maxLeftTime":64000},
+ *  "cpu":{"cpuTime":16000,"userTime":15000,"waitTime":11000,"throughput":20},
+ *  "allocation":{"bytes":52000000,"intervalBytes":8000000,"bytesPerEvent":1240,"megabytesPerSecond":35.2},
+ *  "sensors":[{"name":"success","count":300,"delta":90,"isolated":false,"rates":{...},"ewma":{...},
+ *              "latency":{"p50":21400000,...,"max":121000000,"interval":{...}}}],
+ *  "tops":[{"name":"url","error":3,"keys":[{"key":"/a","count":1520},...]}]}
+ * </pre>
+ * Durations are in milliseconds, interval and latencies in nanoseconds, rates per second.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class JsonLinesReporter implements Reporter {
+
+    private final Writer writer;
+    private final StringBuilder line = new StringBuilder(1024);
+
+    public JsonLinesReporter(Path file) throws IOException {
+        this(Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+    }
+
+    public JsonLinesReporter(Writer writer) {
+        this.writer = writer;
+    }
+
+    @Override
+    public void report(Snapshot snapshot) throws IOException {
+        line.setLength(0);
+
+        line.append("{\"time\":").append(snapshot.getTime());
+        line.append(",\"name\":");
+        appendString(line, snapshot.getName());
+        line.append(",\"duration\":").append(snapshot.getDuration());
+        line.append(",\"interval\":").append(snapshot.getInterval());
+        line.append(",\"personal\":").append(snapshot.isPersonal());
+        line.append(",\"sum\":").append(snapshot.getSum());
+        line.append(",\"delta\":").append(snapshot.getDelta());
+        line.append(",\"throughput\":").append(snapshot.getThroughput());
+        line.append(",\"throughputMoment\":").append(snapshot.getThroughputMoment());
+
+        line.append(",\"rates\":{");
+        for (PerformanceMeasurer.Window window : PerformanceMeasurer.Window.values()) {
+            appendNumber(line, window, snapshot.getRate(window));
+        }
+        line.append("},\"ewma\":{");
+        for (PerformanceMeasurer.Window window : PerformanceMeasurer.Window.values()) {
+            appendNumber(line, window, snapshot.getEwmaRate(window));
+        }
+        line.append('}');
+
+        if (snapshot.hasForecast()) {
+            line.append(",\"forecast\":{\"possibleSize\":").append(snapshot.getPossibleSize());
+            line.append(",\"percent\":").append(snapshot.getPercent());
+            line.append(",\"leftTime\":").append(snapshot.getLeftTime());
+            line.append(",\"minLeftTime\":").append(snapshot.getMinLeftTime());
+            line.append(",\"maxLeftTime\":").append(snapshot.getMaxLeftTime());
+            line.append('}');
+        }
+
+        if (snapshot.getLatency() != null) {
+            line.append(",\"latency\":");
+            appendLatency(line, snapshot.getLatency());
+        }
+
+        if (snapshot.getCpuTime() != null) {
+            Snapshot.CpuTime cpuTime = snapshot.getCpuTime();
+            line.append(",\"cpu\":{\"cpuTime\":").append(cpuTime.getCpuTime());
+            line.append(",\"userTime\":").append(cpuTime.getUserTime());
+            line.append(",\"waitTime\":").append(cpuTime.getWaitTime());
+            line.append(",\"throughput\":").append(cpuTime.getThroughput());
+            line.append('}');
+        }
+
+        if (snapshot.getAllocation() != null) {
+            Snapshot.Allocation allocation = snapshot.getAllocation();
+            line.append(",\"allocation\":{\"bytes\":").append(allocation.getBytes());
+            line.append(",\"intervalBytes\":").append(allocation.getIntervalBytes());
+            line.append(",\"bytesPerEvent\":").append(allocation.getBytesPerEvent());
+            line.append(",\"megabytesPerSecond\":").append(allocation.getMegabytesPerSecond());
+            line.append('}');
+        }
+
+
+        line.append(",\"sensors\":[");
+        boolean first = true;
+        for (Snapshot.SensorReading sensor : snapshot.getSensors()) {
+            if (!first) line.append(',');
+            first = false;
+
+            line.append("{\"name\":");
+            appendString(line, sensor.getName());
+            line.append(",\"count\":").append(sensor.getCount());
+            line.append(",\"delta\":").append(sensor.getDelta());
+            line.append(",\"isolated\":").append(sensor.isIsolated());
+            if (sensor.getError() != 0) {
+                line.append(",\"sampling\":").append(sensor.getSampling());
+                line.append(",\"error\":").append(sensor.getError());
+            }
+
+            line.append(",\"rates\":{");
+            for (PerformanceMeasurer.Window window : PerformanceMeasurer.Window.values()) {
+                appendNumber(line, window, sensor.getRate(window));
+            }
+            line.append("},\"ewma\":{");
+            for (PerformanceMeasurer.Window window : PerformanceMeasurer.Window.values()) {
+                appendNumber(line, window, sensor.getEwmaRate(window));
+            }
+            line.append('}');
+
+            if (sensor.getLatency() != null) {
+                line.append(",\"latency\":");
+                appendLatency(line, sensor.getLatency());
+            }
+            line.append('}');
+        }
+        line.append(']');
+
+
+        if (!snapshot.getTops().isEmpty()) {
+            line.append(",\"tops\":[");
+            first = true;
+            for (Snapshot.TopReading top : snapshot.getTops()) {
+                if (!first) line.append(',');
+                first = false;
+
+                line.append("{\"name\":");
+                appendString(line, top.getName());
+                line.append(",\"error\":").append(top.getError());
+                line.append(",\"keys\":[");
+                for (int i = 0; i < top.size(); i++) {
+                    if (i > 0) line.append(',');
+                    line.append("{\"key\":");
+                    appendString(line, top.getKey(i));
+                    line.append(",\"count\":").append(top.getCount(i)).append('}');
+                }
+                line.append("]}");
+            }
+            line.append(']');
+        }
+        line.append("}\n");
+
+
+        writer.append(line);
+        writer.flush();
+    }
+
+    private static void appendNumber(StringBuilder line, PerformanceMeasurer.Window window, double value) {
+        if (window.ordinal() != 0) line.append(',');
+
+        line.append('"').append(window.getLabel()).append("\":").append(value);
+    }
+
+    private static void appendLatency(StringBuilder line, Snapshot.Latency latency) {
+        line.append('{');
+        for (int i = 0; i < LatencyHistogram.PERCENTILE_NAMES.length; i++) {
+            line.append('"').append(LatencyHistogram.PERCENTILE_NAMES[i]).append("\":").append(latency.getPercentile(i)).append(',');
+        }
+        line.append("\"max\":").append(latency.getMax());
+
+        line.append(",\"interval\":{");
+        for (int i = 0; i < LatencyHistogram.PERCENTILE_NAMES.length; i++) {
+            line.append('"').append(LatencyHistogram.PERCENTILE_NAMES[i]).append("\":").append(latency.getIntervalPercentile(i)).append(',');
+        }
+        line.append("\"max\":").append(latency.getIntervalMax());
+        line.append("}}");
+    }
+
+    static void appendString(StringBuilder line, String value) {
+        line.append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+            }
+        }
+
+        line.append('"');
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
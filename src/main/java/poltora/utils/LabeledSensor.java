@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Family of sensors which are distinguished by labels, f.e. <code>http{status=503}</code>.
+ * <p>
+ * Series of labels are kept in open-addressing table by interned ids of labels, so measuring of known series
+ * neither builds strings nor allocates. Number of series is limited by cardinality, the rest ones are measured
+ * as <code>name{other}</code>.
+ * <p>
+ * Series are reported as sensors of measurer, grouped by all labels or by chosen ones, see {@link #groupBy(String...)}.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public final class LabeledSensor {
+
+    static final int DEFAULT_CARDINALITY = 256;
+    private static final Logger LOGGER = Logger.getLogger(LabeledSensor.class);
+    private static final String OTHER_NAME = "other";
+    private static final String[] ALL_LABELS = new String[0];
+
+    private final String name;
+    private final PerformanceMeasurer measurer;
+
+    // copied on insert, there are free slots always
+    private volatile Series[] table;
+    private volatile int size;
+    private volatile int cardinality;
+    private boolean overflowed;
+    private final Series other = new Series(null);
+
+    private volatile String[] grouping = ALL_LABELS;
+
+    LabeledSensor(String name, PerformanceMeasurer measurer) {
+        this.name = name;
+        this.measurer = measurer;
+        this.cardinality = DEFAULT_CARDINALITY;
+        this.table = new Series[tableSize(DEFAULT_CARDINALITY)];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void measure(String label, long value) {
+        measure(label, value, 1);
+    }
+
+    public void measure(String label, long value, long delta) {
+        int id = Labels.id(label);
+
+        Series series = id < 0 ? null : find(id * 2L, value);
+        if (series == null) {
+            series = size < cardinality ? insert(Labels.of(label, value)) : other;
+        }
+
+        series.count.add(delta);
+        measurer.reattach();
+    }
+
+    public void measure(String label, String value) {
+        int id = Labels.id(label);
+        int valueId = Labels.id(value);
+
+        Series series = id < 0 || valueId < 0 ? null : find(id * 2L + 1, valueId);
+        if (series == null) {
+            series = size < cardinality ? insert(Labels.of(label, value)) : other;
+        }
+
+        series.count.increment();
+        measurer.reattach();
+    }
+
+    public void measure(Labels labels) {
+        measure(labels, 1);
+    }
+
+    public void measure(Labels labels, long delta) {
+        Series series = find(labels);
+        if (series == null) {
+            series = size < cardinality ? insert(labels) : other;
+        }
+
+        series.count.add(delta);
+        measurer.reattach();
+    }
+
+    /**
+     * Series are reported as sensors grouped by these labels only, f.e. <code>http{method=GET}</code>.
+     * Without labels each series is reported by all its labels.
+     * Counts which are reported already remain in previous groups.
+     */
+    public LabeledSensor groupBy(String... labels) {
+        this.grouping = labels.length == 0 ? ALL_LABELS : labels.clone();
+        return this;
+    }
+
+    /**
+     * Maximum number of series, the rest ones are measured as <code>name{other}</code>
+     */
+    public synchronized LabeledSensor setCardinality(int cardinality) {
+        if (cardinality < 1) {
+            throw new IllegalArgumentException("Cardinality must be positive: " + cardinality);
+        }
+
+        int length = tableSize(Math.max(cardinality, size));
+        if (length != table.length) {
+            table = copy(table, length);
+        }
+        this.cardinality = cardinality;
+
+        return this;
+    }
+
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @return number of series besides other one
+     */
+    public int size() {
+        return size;
+    }
+
+    private Series find(long nameKey, long valueKey) {
+        Series[] table = this.table;
+        int mask = table.length - 1;
+
+        for (int i = Labels.hash(nameKey, valueKey) & mask; ; i = (i + 1) & mask) {
+            Series series = table[i];
+
+            if (series == null) return null;
+            long[] key = series.labels.key;
+            if (key.length == 2 && key[0] == nameKey && key[1] == valueKey) return series;
+        }
+    }
+
+    private Series find(Labels labels) {
+        return find(table, labels);
+    }
+
+    private static Series find(Series[] table, Labels labels) {
+        int mask = table.length - 1;
+
+        for (int i = labels.hash & mask; ; i = (i + 1) & mask) {
+            Series series = table[i];
+
+            if (series == null) return null;
+            if (series.labels.hash == labels.hash && Arrays.equals(series.labels.key, labels.key)) return series;
+        }
+    }
+
+    private synchronized Series insert(Labels labels) {
+        Series series = find(labels);
+        if (series != null) return series;
+
+
+        if (size >= cardinality) {
+            if (!overflowed) {
+                overflowed = true;
+                LOGGER.warn(String.format("Labeled sensor [%s] of measurer [%s] has reached cardinality %d, the rest series are measured as [%s]",
+                        name, measurer.getName(), cardinality, OTHER_NAME));
+            }
+            return other;
+        }
+
+        series = new Series(labels);
+        Series[] copy = copy(table, table.length);
+        put(copy, series);
+        table = copy;
+        size++;
+
+        return series;
+    }
+
+    private static Series[] copy(Series[] table, int length) {
+        Series[] copy = new Series[length];
+        for (Series series : table) {
+            if (series != null) {
+                put(copy, series);
+            }
+        }
+        return copy;
+    }
+
+    private static void put(Series[] table, Series series) {
+        int mask = table.length - 1;
+        int i = series.labels.hash & mask;
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = series;
+    }
+
+    /**
+     * Load factor is at most 0.5
+     */
+    private static int tableSize(int cardinality) {
+        return Integer.highestOneBit(Math.max(cardinality, 1) * 2 - 1) << 1;
+    }
+
+
+    /**
+     * Adds counts of series since the latest folding to sensors of their groups, reporting thread only
+     */
+    void fold() {
+        String[] grouping = this.grouping;
+
+        for (Series series : table) {
+            if (series != null) {
+                fold(series, grouping);
+            }
+        }
+        fold(other, grouping);
+    }
+
+    private void fold(Series series, String[] grouping) {
+        long current = series.count.sum();
+        long delta = current - series.folded;
+        if (delta == 0) return;
+
+
+        // group sensor is evicted by its time to live, it is got back
+        if (series.grouping != grouping || series.group.isEvicted()) {
+            series.group = measurer.getSensor(groupName(series.labels, grouping));
+            series.grouping = grouping;
+        }
+
+        series.folded = current;
+        series.group.add(delta);
+    }
+
+    boolean isUpdated() {
+        for (Series series : table) {
+            if (series != null && series.count.sum() != series.folded) {
+                return true;
+            }
+        }
+        return other.count.sum() != other.folded;
+    }
+
+    /**
+     * http{status=503,method=GET}
+     */
+    private String groupName(Labels labels, String[] grouping) {
+        StringBuilder sb = new StringBuilder(name);
+        sb.append('{');
+
+        if (labels == null) {
+            sb.append(OTHER_NAME);
+        } else if (grouping == ALL_LABELS) {
+            for (int i = 0; i < labels.names.length; i++) {
+                appendLabel(sb, labels.names[i], labels.values[i]);
+            }
+        } else {
+            for (String label : grouping) {
+                for (int i = 0; i < labels.names.length; i++) {
+                    if (labels.names[i].equals(label)) {
+                        appendLabel(sb, label, labels.values[i]);
+                    }
+                }
+            }
+        }
+
+        if (sb.length() == name.length() + 1) {
+            return name;
+        }
+        return sb.append('}').toString();
+    }
+
+    private static void appendLabel(StringBuilder sb, String label, String value) {
+        if (sb.charAt(sb.length() - 1) != '{') {
+            sb.append(',');
+        }
+        sb.append(label).append('=').append(value);
+    }
+
+
+    private static final class Series {
+
+        private final Labels labels; // null - other
+        private final LongAdder count = new LongAdder();
+
+        // reporting thread only
+        private long folded;
+        private PerformanceMeasurer.Sensor group;
+        private String[] grouping;
+
+        private Series(Labels labels) {
+            this.labels = labels;
+        }
+    }
+}
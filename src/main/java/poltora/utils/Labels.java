@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable set of labels of {@link LabeledSensor}, f.e. <code>Labels.of("status", 503).and("method", "GET")</code>.
+ * It should be built once and reused, as its key is calculated on building.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public final class Labels {
+
+    // interned names and string values of labels
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    // in order of building, for reporting
+    final String[] names;
+    final String[] values;
+    // pairs of (name's id * 2 + 1 for string value) and (value or its id), sorted by name
+    final long[] key;
+    final int hash;
+
+    private Labels(String[] names, String[] values, long[] key) {
+        this.names = names;
+        this.values = values;
+        this.key = key;
+        this.hash = hash(key);
+    }
+
+    public static Labels of(String name, long value) {
+        return new Labels(new String[0], new String[0], new long[0]).and(name, value);
+    }
+
+    public static Labels of(String name, String value) {
+        return new Labels(new String[0], new String[0], new long[0]).and(name, value);
+    }
+
+    public Labels and(String name, long value) {
+        return and(name, Long.toString(value), intern(name) * 2L, value);
+    }
+
+    public Labels and(String name, String value) {
+        return and(name, value, intern(name) * 2L + 1, intern(value));
+    }
+
+    private Labels and(String name, String value, long nameKey, long valueKey) {
+        for (String existing : names) {
+            if (existing.equals(name)) {
+                throw new IllegalArgumentException(String.format("Label [%s] is set twice", name));
+            }
+        }
+
+        String[] names = Arrays.copyOf(this.names, this.names.length + 1);
+        String[] values = Arrays.copyOf(this.values, this.values.length + 1);
+        names[names.length - 1] = name;
+        values[values.length - 1] = value;
+
+        long[] key = new long[this.key.length + 2];
+        int i = 0;
+        while (i < this.key.length && this.key[i] >> 1 < nameKey >> 1) {
+            key[i] = this.key[i];
+            key[i + 1] = this.key[i + 1];
+            i += 2;
+        }
+        key[i] = nameKey;
+        key[i + 1] = valueKey;
+        System.arraycopy(this.key, i, key, i + 2, this.key.length - i);
+
+        return new Labels(names, values, key);
+    }
+
+    /**
+     * @return id of interned name or string value, -1 if it is unknown
+     */
+    static int id(String value) {
+        Integer id = ids.get(value);
+        return id != null ? id : -1;
+    }
+
+    private static int intern(String value) {
+        return ids.computeIfAbsent(value, v -> nextId.getAndIncrement());
+    }
+
+    static int hash(long[] key) {
+        long h = 0;
+        for (long k : key) {
+            h = h * 0x9E3779B97F4A7C15L + k;
+        }
+        return spread(h);
+    }
+
+    static int hash(long nameKey, long valueKey) {
+        return spread(nameKey * 0x9E3779B97F4A7C15L + valueKey);
+    }
+
+    private static int spread(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(names[i]).append('=').append(values[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram of durations (nanoseconds), HdrHistogram-like:
+ * each power of 2 is split into 32 linear sub-buckets, so relative error of value is ~3%.
+ * <p>
+ * Recording is allocation-free and may be called by any thread;
+ * {@link #takeSnapshot()}, {@link #shift()} and reading of percentiles are for logging thread only.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+class LatencyHistogram {
+
+    static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+    static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_HALF = 1 << SUB_BUCKET_BITS; // 32
+    private static final int SUB_BUCKET_COUNT = SUB_BUCKET_HALF * 2; // 64
+    static final int BUCKETS = index(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLong intervalMax = new AtomicLong();
+    private final LongAdder sum = new LongAdder();
+
+    // logging thread only
+    private long[] current = new long[BUCKETS];
+    private long[] previous = new long[BUCKETS];
+    private boolean hasHistory;
+    private final long[] percentiles = new long[PERCENTILES.length];
+    private final long[] intervalPercentiles = new long[PERCENTILES.length];
+    private long total;
+    private long sumValue;
+    private long intervalTotal;
+    private long maxValue;
+    private long intervalMaxValue;
+
+
+    static int index(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+
+        return (shift + 1) * SUB_BUCKET_HALF + (int) (value >>> shift) - SUB_BUCKET_HALF;
+    }
+
+    /**
+     * @return the biggest value which falls into the same bucket
+     */
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKET_HALF - 1;
+        long subBucket = index % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+
+        counts.incrementAndGet(index(nanos));
+        sum.add(nanos);
+
+        updateMax(max, nanos);
+        updateMax(intervalMax, nanos);
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads histogram once and calculates cumulative and interval (since previous {@link #shift()}) percentiles
+     */
+    void takeSnapshot() {
+        total = 0;
+        intervalTotal = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = counts.get(i);
+            current[i] = count;
+            total += count;
+            intervalTotal += count - previous[i];
+        }
+
+        sumValue = sum.sum();
+        maxValue = max.get();
+        intervalMaxValue = intervalMax.getAndSet(0);
+
+        calculate(current, null, total, maxValue, percentiles);
+        calculate(current, previous, intervalTotal, intervalMaxValue, intervalPercentiles);
+    }
+
+    /**
+     * @param counts   cumulative counts of buckets
+     * @param previous counts of the beginning of interval or null
+     */
+    static void calculate(long[] counts, long[] previous, long total, long max, long[] result) {
+        if (total == 0) {
+            for (int p = 0; p < result.length; p++) {
+                result[p] = 0;
+            }
+            return;
+        }
+
+
+        int p = 0;
+        long rank = rank(PERCENTILES[p], total);
+        long accumulated = 0;
+
+        for (int i = 0; i < BUCKETS && p < PERCENTILES.length; i++) {
+            accumulated += previous != null ? counts[i] - previous[i] : counts[i];
+
+            while (p < PERCENTILES.length && accumulated >= rank) {
+                result[p] = Math.min(highestEquivalentValue(i), max);
+
+                if (++p < PERCENTILES.length) {
+                    rank = rank(PERCENTILES[p], total);
+                }
+            }
+        }
+    }
+
+    private static long rank(double percentile, long total) {
+        return Math.max(1, (long) Math.ceil(percentile * total));
+    }
+
+    /**
+     * Starts new interval
+     */
+    void shift() {
+        long[] swap = previous;
+        previous = current;
+        current = swap;
+
+        hasHistory = true;
+    }
+
+    boolean isStarted() {
+        return total != 0;
+    }
+
+    long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return sum of recorded durations of the latest snapshot
+     */
+    long getSum() {
+        return sumValue;
+    }
+
+    long getIntervalTotal() {
+        return intervalTotal;
+    }
+
+    long getPercentile(int index) {
+        return percentiles[index];
+    }
+
+    long getIntervalPercentile(int index) {
+        return intervalPercentiles[index];
+    }
+
+    long getMax() {
+        return maxValue;
+    }
+
+    /**
+     * @return cumulative count of bucket of the latest snapshot
+     */
+    long getBucket(int index) {
+        return current[index];
+    }
+
+    long getIntervalMax() {
+        return intervalMaxValue;
+    }
+
+
+    /**
+     * Appends percentiles after name of histogram
+     */
+    void log(StringBuilder log) {
+        log.append(": ");
+        logPercentiles(log, percentiles, maxValue);
+
+        if (hasHistory) {
+            log.append(" (i: ");
+            logPercentiles(log, intervalPercentiles, intervalMaxValue);
+            log.append(')');
+        }
+
+        log.append(";  ");
+    }
+
+    private static void logPercentiles(StringBuilder log, long[] percentiles, long max) {
+        for (int p = 0; p < percentiles.length; p++) {
+            log.append(PERCENTILE_NAMES[p]).append(' ');
+            logDuration(log, percentiles[p]);
+            log.append(' ');
+        }
+
+        log.append("max ");
+        logDuration(log, max);
+    }
+
+    /**
+     * 3 significant digits: 850ns, 12.3us, 1.25ms, 431ms, 2.50s
+     */
+    static void logDuration(StringBuilder log, long nanos) {
+        if (nanos < 1000) {
+            log.append(nanos).append("ns");
+            return;
+        }
+
+
+        long unit;
+        String unitName;
+
+        if (nanos < 1000_000) {
+            unit = 1000;
+            unitName = "us";
+        } else if (nanos < 1000_000_000) {
+            unit = 1000_000;
+            unitName = "ms";
+        } else {
+            unit = 1000_000_000;
+            unitName = "s";
+        }
+
+
+        long whole = nanos / unit;
+        long fraction = nanos % unit;
+
+        log.append(whole);
+
+        if (whole < 10) {
+            long hundredths = fraction * 100 / unit;
+            log.append('.');
+            if (hundredths < 10) log.append('0');
+            log.append(hundredths);
+        } else if (whole < 100) {
+            log.append('.').append(fraction * 10 / unit);
+        }
+
+        log.append(unitName);
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The same text as measurer logs by default, to logger of measurer's name
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class Log4jReporter implements Reporter {
+
+    @Override
+    public void report(Snapshot snapshot) {
+        Logger.getLogger(snapshot.getName()).log(snapshot.getPriority(), snapshot.getText());
+    }
+}
@@ -15,19 +15,36 @@
 */
 package poltora.utils;
 
-import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.time.DurationFormatUtils;
 import org.apache.log4j.Logger;
 import org.apache.log4j.Priority;
 
-import java.text.DecimalFormat;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.DoubleAdder;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Measuring device (measurer) for measuring performance
@@ -41,25 +58,116 @@ public class PerformanceMeasurer {
     private static final String FAIL_NAME = "fail";
     private static Logger LOGGER = Logger.getLogger(PerformanceMeasurer.class);
     private static Map<String, PerformanceMeasurer> measurers = new ConcurrentHashMap<>();
-    private static ScheduledExecutorService scheduler;
+    // purged but maybe still referenced (by sensor's handles) measurers
+    private static Map<String, WeakReference<PerformanceMeasurer>> retired = new ConcurrentHashMap<>();
+    // retired measurers and evicted sensors which are measured again, they are revived by the next tick or report
+    private static final Queue<PerformanceMeasurer> reattachedMeasurers = new ConcurrentLinkedQueue<>();
+    private static final Queue<Sensor> reattachedSensors = new ConcurrentLinkedQueue<>();
+    // collected retired measurers and evicted sensors, whose references are removed
+    private static final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+    // only triggers reports, which are made by reporting threads
+    private static ScheduledThreadPoolExecutor scheduler;
+    // a few threads, so slow logging of one measurer doesn't delay others; each measurer is queued once at most
+    private static ThreadPoolExecutor reporters;
+    private static final int REPORTING_THREADS = 4;
+    private static ScheduledFuture<?> schedule;
     private static int time = 15;
     private static TimeUnit timeUnit = TimeUnit.SECONDS;
+    // asynchronous reporters besides logging
+    private static final List<ReportChannel> channels = new CopyOnWriteArrayList<>();
+    private static final int REPORT_QUEUE_CAPACITY = 1024;
+    private static final long REPORT_CLOSE_TIMEOUT = 5; // seconds
+    private static volatile boolean logging = true;
+    // mirroring of sensors into memory-mapped file
+    private static SharedCounters sharedCounters;
+    private static ScheduledFuture<?> sharing;
+    private static final int SHARED_COUNTERS_CAPACITY = 1024;
+    // idle measurers are retired and idle sensors are evicted, when their time to live is over
+    private static final ExpiryWheel expiry = new ExpiryWheel(1000, System.currentTimeMillis());
+    private static volatile long timeToLive = TimeUnit.DAYS.toMillis(1); // of measurers by default
+    // nodes which aggregate measurers by prefix of dotted name
+    private static final List<PerformanceMeasurer> rollUps = new CopyOnWriteArrayList<>();
+    private static volatile int rollUpVersion;
+    private static final String ROLL_UP_SUFFIX = ".*";
 
     private static final String summarySensorName = "sum";
     private static final String throughputSensorName = "r/s";
     private static final String throughputMomentSensorName = "r/s/i";
 
+    private static final int HANDLE_CACHE_SIZE = 16; // power of 2
+
+    private static final int DEFAULT_CPU_SAMPLING = 16;
+    private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    // -Dperformance-measurer.sampling.<measurer>=N or -Dperformance-measurer.sampling.<measurer>:<sensor>=N
+    private static final String SAMPLING_PROPERTY = "performance-measurer.sampling.";
+
     private Logger logger;
     private Priority priority;
-    private StringBuffer log;
 
     private String name;
     private Map<String, Sensor> sensors;
+    // sensors in order of map, for iterating without allocation
+    private volatile Sensor[] sensorList = new Sensor[0];
+    // sensors read by current summary
+    private Sensor[] reportedSensors = sensorList;
+    private final Sensor[] handles = new Sensor[HANDLE_CACHE_SIZE];
+    private final Map<String, LabeledSensor> labeledSensors = new ConcurrentHashMap<>();
+    private volatile LabeledSensor[] labeledSensorList = new LabeledSensor[0];
+    private final Map<String, TopKSensor> topKSensors = new ConcurrentHashMap<>();
+    private volatile TopKSensor[] topKSensorList = new TopKSensor[0];
     private long startTime;
-    private ThreadLocal<Long> stepStartTime;
-    private AtomicLong stepDuration;
+    private volatile int sampling = 1; // of new sensors
+    private volatile boolean buffered; // of new sensors
+    // opt-in counters of threads, see setBuffered(boolean)
+    private final ThreadLocal<ThreadBuffer> buffer = ThreadLocal.withInitial(this::newBuffer);
+    private final List<ThreadBuffer> buffers = new ArrayList<>(); // under its lock
+    private volatile boolean hasBuffers;
+    // buffered sensors by index of thread's counters, indexes of evicted ones are null and reused, under lock of measurer
+    private volatile Sensor[] indexedSensors = new Sensor[0];
+    private final Deque<Integer> freeIndexes = new ArrayDeque<>();
+    private LongAdder stepDuration; // nanoseconds
+    private volatile LatencyHistogram stepLatency;
+    // thread times of sampled sections, see setCpuTiming(int)
+    private volatile int cpuSampling;
+    private final LongAdder sampledWallTime = new LongAdder(); // nanoseconds
+    private final LongAdder sampledCpuTime = new LongAdder();
+    private final LongAdder sampledUserTime = new LongAdder();
+    private long cpuTime = -1; // millis, estimated for all sections
+    private long userTime;
+    private long waitTime;
+    private long cpuThroughput;
+    // bytes allocated by threads within sections, see setAllocationAccounting(int)
+    private volatile int allocationSampling;
+    private final LongAdder allocatedBytes = new LongAdder();
+    private long allocated = -1; // of report
+    private long previousAllocated;
+    private long allocatedPerEvent;
+    private double allocationRate; // MB/s
 
     private long currentTime;
+    // own reporting interval instead of common one
+    private long ownInterval; // nanoseconds
+    private volatile ScheduledFuture<?> ownSchedule;
+    private final ReentrantLock reporting = new ReentrantLock();
+    private final AtomicBoolean reportQueued = new AtomicBoolean();
+    // reused by each logging
+    private final StringBuilder logBuffer = new StringBuilder(256);
+    private long readingTime; // nanoseconds, of the latest rates' update
+    private long interval; // nanoseconds, real one of the latest summary
+    private int ratesLogLength;
+    private volatile boolean purged;
+    private volatile boolean detached; // retired and not measured since then
+    private volatile long ownTimeToLive = -1; // millis, -1 - default one
+    private volatile long sensorTimeToLive; // millis, 0 - sensors don't expire
+    private volatile long activeTime; // millis
+    private ExpiryWheel.Entry expiryEntry;
+    // evicted but maybe still referenced (by handles) sensors
+    private final Map<String, WeakReference<Sensor>> evictedSensors = new ConcurrentHashMap<>();
+    private String prefix; // of roll-up node
+    // roll-up nodes of this measurer, reporting thread only
+    private PerformanceMeasurer[] ancestors = new PerformanceMeasurer[0];
+    private int ancestorsVersion = -1;
 
     private Sensor summarySensor;
     private Sensor throughputSensor;
@@ -69,7 +177,9 @@ public class PerformanceMeasurer {
     private long duration;
     private float percent;
     private long leftTime;
+    // the latest one is logged at the beginning, others are logged with their sensors
     private Sensor forecastSensor;
+    private volatile Sensor[] forecastSensors = new Sensor[0];
 
     static {
         PerformanceMeasurer.addShutdownHook();
@@ -82,90 +192,577 @@ public class PerformanceMeasurer {
             @Override
             public void run() {
                 display();
+
+                for (ReportChannel channel : channels) {
+                    removeReporter(channel.getReporter());
+                }
+
+                SharedCounters counters = sharedCounters;
+                if (counters != null) {
+                    try {
+                        counters.close();
+                    } catch (IOException e) {
+                        LOGGER.error("Shared counters are not closed", e);
+                    }
+                }
             }
         });
     }
 
     private static void schedulerInit() {
-        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        scheduler = new ScheduledThreadPoolExecutor(1, r -> {
             Thread t = Executors.defaultThreadFactory().newThread(r);
             t.setDaemon(true);
             return t;
         });
+        // cancelled schedules don't keep measurers
+        scheduler.setRemoveOnCancelPolicy(true);
+
+        reporters = new ThreadPoolExecutor(
+                REPORTING_THREADS, REPORTING_THREADS,
+                1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<>(),
+                r -> {
+                    Thread t = Executors.defaultThreadFactory().newThread(r);
+                    t.setDaemon(true);
+                    return t;
+                }
+        );
+        reporters.allowCoreThreadTimeOut(true);
 
-        scheduler.scheduleAtFixedRate(
+        schedule = scheduler.scheduleAtFixedRate(
                 (Runnable) PerformanceMeasurer::scheduleWork,
                 time, time, timeUnit
         );
     }
 
+    /**
+     * Replaces common reporting interval, measurers with own interval ({@link #setInterval(int, TimeUnit)}) are not affected
+     */
     @SuppressWarnings("unused")
-    public static void setSchedulerTimeout(int time, TimeUnit timeUnit) {
+    public static synchronized void setSchedulerTimeout(int time, TimeUnit timeUnit) {
         PerformanceMeasurer.time = time;
         PerformanceMeasurer.timeUnit = timeUnit;
 
-        scheduler.scheduleAtFixedRate(
+        schedule.cancel(false);
+        schedule = scheduler.scheduleAtFixedRate(
                 (Runnable) PerformanceMeasurer::scheduleWork,
                 time, time, timeUnit
         );
     }
 
+    @SuppressWarnings("Convert2streamapi")
     private static void scheduleWork() {
-        display();
-        purge();
-    }
+        revive();
 
-    @SuppressWarnings("Convert2streamapi")
-    private static void purge() {
-        if (measurers.isEmpty()) return;
+        // children before roll-up nodes, so nodes mostly receive the same interval
+        for (PerformanceMeasurer measurer : measurers.values()) {
+            if (measurer.ownSchedule == null && measurer.prefix == null) {
+                measurer.scheduleReport();
+            }
+        }
+        for (PerformanceMeasurer node : rollUps) {
+            if (node.ownSchedule == null && !node.purged) {
+                node.scheduleReport();
+            }
+        }
+
+        expire(System.currentTimeMillis());
+    }
 
+    /**
+     * Only measurers and sensors whose time to live is over are checked
+     *
+     * @return number of checked ones
+     */
+    static synchronized int expire(long now) {
+        return expiry.advance(now);
+    }
 
-        long curTime = System.currentTimeMillis();
-        int maxSleepingTime = 24 * 60 * 60 * 1000;
+    /**
+     * Default time to live of idle measurers (1 day by default), after which they are retired, 0 - forever.
+     * Retired measurer is returned back, when it is got by name or it is measured through held handle.
+     */
+    public static void setDefaultTimeToLive(long time, TimeUnit unit) {
+        timeToLive = unit.toMillis(time);
 
         for (PerformanceMeasurer measurer : measurers.values()) {
-            if (measurer.currentTime != 0 && measurer.currentTime < curTime - maxSleepingTime) {
-                LOGGER.debug(String.format("Purging old measurers [%s]", measurer.name));
-                measurers.remove(measurer.name);
+            if (measurer.ownTimeToLive < 0) {
+                measurer.scheduleExpiry();
+            }
+        }
+    }
+
+    /**
+     * Time to live of this idle measurer instead of default one, see {@link #setDefaultTimeToLive(long, TimeUnit)}
+     */
+    public PerformanceMeasurer setTimeToLive(long time, TimeUnit unit) {
+        ownTimeToLive = unit.toMillis(time);
+        scheduleExpiry();
+        return this;
+    }
+
+    /**
+     * Time to live of idle sensors of this measurer (forever by default), after which they are not reported anymore.
+     * Evicted sensor is returned back, when it is got by name or it is measured through held handle.
+     */
+    public PerformanceMeasurer setSensorTimeToLive(long time, TimeUnit unit) {
+        sensorTimeToLive = unit.toMillis(time);
+
+        for (Sensor sensor : sensorList) {
+            if (sensor.timeToLive < 0) {
+                scheduleExpiry(sensor);
+            }
+        }
+
+        return this;
+    }
+
+    private long timeToLive() {
+        long ttl = ownTimeToLive;
+        return ttl >= 0 ? ttl : timeToLive;
+    }
+
+    private long timeToLive(Sensor sensor) {
+        long ttl = sensor.timeToLive;
+        return ttl >= 0 ? ttl : sensorTimeToLive;
+    }
+
+    private synchronized void scheduleExpiry() {
+        if (expiryEntry != null) {
+            expiryEntry.cancel();
+        }
+
+        long ttl = timeToLive();
+        expiryEntry = ttl > 0 ? expiry.schedule(this::expireMeasurer, activeTime + ttl) : null;
+    }
+
+    private synchronized void scheduleExpiry(Sensor sensor) {
+        if (sensor.expiryEntry != null) {
+            sensor.expiryEntry.cancel();
+        }
+
+        long ttl = timeToLive(sensor);
+        sensor.expiryEntry = ttl > 0 ? expiry.schedule(now -> expireSensor(sensor, now), sensor.activeTime + ttl) : null;
+    }
+
+    /**
+     * @return the next deadline or 0, see {@link ExpiryWheel.Expiring}
+     */
+    private long expireMeasurer(long now) {
+        long ttl = timeToLive();
+        if (ttl <= 0 || purged) return 0;
+
+
+        long deadline = (isUpdated() ? now : activeTime) + ttl;
+        if (deadline > now) return deadline;
+
+        LOGGER.debug(String.format("Purging idle measurer [%s]", name));
+        retire(this);
+        return 0;
+    }
+
+    private long expireSensor(Sensor sensor, long now) {
+        long ttl = timeToLive(sensor);
+        if (ttl <= 0 || sensor.evicted) return 0;
+
+
+        long deadline = (sensor.isUpdated() || sensor.forecast != null ? now : sensor.activeTime) + ttl;
+        if (deadline > now) return deadline;
+
+        LOGGER.debug(String.format("Evicting idle sensor [%s] of measurer [%s]", sensor.name, name));
+        evict(sensor);
+        return 0;
+    }
+
+    synchronized void evict(Sensor sensor) {
+        if (!sensors.remove(sensor.name, sensor)) return;
+
+
+        sensor.evicted = true;
+        sensor.detached = true;
+        evictedSensors.put(sensor.name, new NamedReference<>(sensor, evictedSensors, sensor.name));
+        sensorList = sensors.values().toArray(new Sensor[0]);
+
+        // further events are counted by shared counter, counts of threads remain with the slot
+        sensor.bufferSlot = null;
+        ThreadBuffer.Slot last = lastSlot(sensor);
+        if (last != null && indexedSensors[last.index] == sensor) {
+            indexedSensors[last.index] = null;
+            freeIndexes.push(last.index);
+        }
+
+        int slot = sensor.name.hashCode() & (HANDLE_CACHE_SIZE - 1);
+        if (handles[slot] == sensor) {
+            handles[slot] = null;
+        }
+    }
+
+    static void retire(PerformanceMeasurer measurer) {
+        measurers.computeIfPresent(measurer.name, (name, registered) -> {
+            if (registered != measurer) return registered;
+
+            measurer.purged = true;
+            measurer.cancelOwnSchedule();
+            retired.put(name, new NamedReference<>(measurer, retired, name));
+            return null;
+        });
+
+        if (!measurer.purged) return;
+
+
+        long time = System.currentTimeMillis();
+        for (ReportChannel channel : channels) {
+            channel.retire(measurer.name, time);
+        }
+
+        // the first measuring through held handles brings measurer back
+        measurer.detached = true;
+        for (Sensor sensor : measurer.sensorList) {
+            sensor.detached = true;
+        }
+    }
+
+    /**
+     * Measurer is measured while it is retired, cheap otherwise
+     */
+    void reattach() {
+        if (detached) {
+            detached = false;
+            reattachedMeasurers.add(this);
+        }
+    }
+
+    /**
+     * Returns back retired measurers and evicted sensors which are measured again through held handles,
+     * costs O(measured ones), not O(all retired and evicted ones)
+     */
+    private static void revive() {
+        for (PerformanceMeasurer measurer; (measurer = reattachedMeasurers.poll()) != null; ) {
+            if (measurer.purged) {
+                get(measurer.name);
+            }
+        }
+
+        for (Sensor sensor; (sensor = reattachedSensors.poll()) != null; ) {
+            PerformanceMeasurer measurer = sensor.measurer;
+            if (measurer.purged) {
+                get(measurer.name);
             }
+            if (sensor.evicted) {
+                measurer.getSensor(sensor.name);
+            }
+        }
+
+        for (Reference<?> reference; (reference = collected.poll()) != null; ) {
+            ((NamedReference<?>) reference).remove();
+        }
+    }
+
+    /**
+     * Weak reference of retired measurer or of evicted sensor, it is removed from its map after referent is collected
+     */
+    private static final class NamedReference<T> extends WeakReference<T> {
+        private final Map<String, ? extends WeakReference<?>> map;
+        private final String name;
+
+        NamedReference(T referent, Map<String, ? extends WeakReference<?>> map, String name) {
+            super(referent, collected);
+            this.map = map;
+            this.name = name;
+        }
+
+        void remove() {
+            map.remove(name, this);
         }
     }
 
-    public static void display() {
+    /**
+     * Reports all measurers on current thread, waits for reports which are in progress
+     */
+    public static synchronized void display() {
         if (measurers.isEmpty()) return;
 
 
+        // children before roll-up nodes, so nodes receive the same interval
         for (PerformanceMeasurer measurer : measurers.values()) {
-            if (measurer.isUpdated()) {
+            if (measurer.prefix == null) {
+                measurer.reportSynchronously();
+            }
+        }
+        for (PerformanceMeasurer node : rollUps) {
+            if (!node.purged) {
+                node.reportSynchronously();
+            }
+        }
+    }
+
+    private void reportSynchronously() {
+        reporting.lock();
+        try {
+            report();
+        } finally {
+            reporting.unlock();
+        }
+    }
+
+    /**
+     * Report is made by reporting thread, it is skipped while previous report of measurer is still queued or in progress
+     */
+    private void scheduleReport() {
+        if (reporting.isLocked() || !reportQueued.compareAndSet(false, true)) return;
+
+
+        reporters.execute(() -> {
+            reportQueued.set(false);
+            if (!reporting.tryLock()) return;
+
+            try {
+                report();
+            } catch (RuntimeException e) {
+                LOGGER.error(String.format("Reporting of measurer [%s] is failed", name), e);
+            } finally {
+                reporting.unlock();
+            }
+        });
+    }
+
+    private void report() {
+        revive();
+
+        if (!isUpdated()) {
+            idle();
+            return;
+        }
+
+
+        makeSummary();
 
-                measurer.makeSummary();
+        logBuffer.setLength(0);
+        log(logBuffer);
+        String text = logBuffer.toString();
 
-                measurer.logger.log(
-                        measurer.priority,
-                        measurer.log()
-                );
+        if (logging) {
+            logger.log(
+                    priority,
+                    text
+            );
+        }
+
+        if (!channels.isEmpty()) {
+            Snapshot snapshot = newSnapshot(text);
 
-                measurer.snapshot();
+            for (ReportChannel channel : channels) {
+                channel.offer(snapshot);
             }
         }
+
+        if (FlightRecorderEvents.INSTANCE.isRecording()) {
+            FlightRecorderEvents.INSTANCE.interval(
+                    name,
+                    interval,
+                    summarySensor.current,
+                    summarySensor.current - summarySensor.previous,
+                    throughputSensor.current,
+                    throughputMomentSensor.current,
+                    summarySensor.rates.getRate(Window.ONE_MINUTE),
+                    summarySensor.rates.getRate(Window.FIVE_MINUTES),
+                    summarySensor.rates.getRate(Window.FIFTEEN_MINUTES),
+                    text
+            );
+        }
+
+        snapshot();
     }
 
-    public static PerformanceMeasurer get() {
+    /**
+     * Adds asynchronous reporter, which receives snapshot of each measurer's report.
+     * Snapshots are dropped while reporter falls behind (its queue is full), so measurers are never blocked.
+     */
+    public static void addReporter(Reporter reporter) {
+        addReporter(reporter, REPORT_QUEUE_CAPACITY);
+    }
 
-        return get(
-                Thread.currentThread().getStackTrace()[2].getClassName()
+    /**
+     * @param capacity of reporter's queue
+     */
+    public static void addReporter(Reporter reporter, int capacity) {
+        channels.add(new ReportChannel(reporter, capacity));
+    }
+
+    /**
+     * Reporter receives the rest of its queue and is closed
+     */
+    public static void removeReporter(Reporter reporter) {
+        for (ReportChannel channel : channels) {
+            if (channel.getReporter() == reporter && channels.remove(channel)) {
+                try {
+                    channel.close(REPORT_CLOSE_TIMEOUT, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Logging of measurers (by log4j, on reporting thread of measurer) may be switched off, f.e. for {@link Reporter}s only
+     */
+    @SuppressWarnings("unused")
+    public static void setLogging(boolean logging) {
+        PerformanceMeasurer.logging = logging;
+    }
+
+    /**
+     * @return number of snapshots which are dropped by reporter's queue
+     */
+    static long getDropped(Reporter reporter) {
+        long dropped = 0;
+        for (ReportChannel channel : channels) {
+            if (channel.getReporter() == reporter) {
+                dropped += channel.getDropped();
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Waits till reporter receives queued snapshots
+     */
+    static boolean flush(Reporter reporter, long timeout, TimeUnit timeUnit) throws InterruptedException {
+        for (ReportChannel channel : channels) {
+            if (channel.getReporter() == reporter && !channel.flush(timeout, timeUnit)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Mirrors values of all sensors into memory-mapped file every second, for external process.
+     * See {@link SharedCountersReader}.
+     */
+    public static SharedCounters shareCounters(Path file) throws IOException {
+        return shareCounters(file, SHARED_COUNTERS_CAPACITY, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param capacity max number of shared sensors
+     * @param period   of mirroring
+     */
+    public static synchronized SharedCounters shareCounters(Path file, int capacity, long period, TimeUnit timeUnit) throws IOException {
+        if (sharedCounters != null) {
+            throw new IllegalStateException(String.format("Counters are already shared into [%s]", sharedCounters.getFile()));
+        }
+
+
+        SharedCounters counters = new SharedCounters(file, capacity);
+        counters.mirror();
+
+        sharedCounters = counters;
+        sharing = scheduler.scheduleAtFixedRate(counters::mirror, period, period, timeUnit);
+
+        return counters;
+    }
+
+    static synchronized void stopSharing(SharedCounters counters) {
+        if (sharedCounters == counters) {
+            sharing.cancel(false);
+            sharing = null;
+            sharedCounters = null;
+        }
+    }
+
+    static Iterable<PerformanceMeasurer> measurers() {
+        return measurers.values();
+    }
+
+    Sensor[] sensors() {
+        return sensorList;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Immutable copy of current summary
+     */
+    Snapshot newSnapshot(String text) {
+        List<Snapshot.SensorReading> readings = new ArrayList<>(reportedSensors.length);
+
+        for (Sensor sensor : reportedSensors) {
+            readings.add(new Snapshot.SensorReading(
+                    sensor.name,
+                    sensor.current,
+                    sensor.current - sensor.previous,
+                    sensor.isolated,
+                    sensor.rates,
+                    sensor.histogram != null && sensor.histogram.isStarted() ? new Snapshot.Latency(sensor.histogram) : null,
+                    sensor.sampling,
+                    sensor.getError()
+            ));
+        }
+
+        List<Snapshot.ForecastReading> forecasts = new ArrayList<>(forecastSensors.length);
+        for (Sensor sensor : forecastSensors) {
+            forecasts.add(new Snapshot.ForecastReading(sensor.name, sensor == summarySensor, sensor.take(), sensor.possibleSize, sensor.forecast));
+        }
+
+        List<Snapshot.TopReading> tops = new ArrayList<>(topKSensorList.length);
+        for (TopKSensor topKSensor : topKSensorList) {
+            tops.add(new Snapshot.TopReading(topKSensor));
+        }
+
+
+        return new Snapshot(
+                name,
+                priority,
+                currentTime,
+                duration,
+                interval,
+                hasPersonalTimer(),
+                summarySensor.current,
+                summarySensor.current - summarySensor.previous,
+                throughputSensor.current,
+                throughputMomentSensor.current,
+                summarySensor.rates,
+                forecastSensor != null,
+                forecastSensor != null ? forecastSensor.possibleSize : 0,
+                percent,
+                leftTime,
+                forecastSensor != null ? forecastSensor.forecast.getMinLeftTime() : Forecast.UNKNOWN,
+                forecastSensor != null ? forecastSensor.forecast.getMaxLeftTime() : Forecast.UNKNOWN,
+                forecasts,
+                stepLatency != null && stepLatency.isStarted() ? new Snapshot.Latency(stepLatency) : null,
+                cpuTime != -1 ? new Snapshot.CpuTime(cpuTime, userTime, waitTime, cpuThroughput) : null,
+                allocated != -1 ? new Snapshot.Allocation(allocated, allocated - previousAllocated, allocatedPerEvent, allocationRate) : null,
+                readings,
+                tops,
+                text
         );
     }
 
+    public static PerformanceMeasurer get() {
+        return CallerResolver.INSTANCE.classMeasurer();
+    }
+
     public static PerformanceMeasurer getByMethodName() {
+        return CallerResolver.INSTANCE.methodMeasurer();
+    }
 
-        return get(
-                String.format(
-                        "%s.%s()",
-                        Thread.currentThread().getStackTrace()[2].getClassName(),
-                        Thread.currentThread().getStackTrace()[2].getMethodName()
-                )
-        );
+    /**
+     * Handle bound to calling class, resolved by one stack walk. Unlike {@link #get()} and {@link #getByMethodName()},
+     * which walk stack on each call, its measurers cost only a field read (a map lookup by method name):
+     * <pre>
+     * private static final PerformanceMeasurer.Caller MEASURERS = PerformanceMeasurer.caller();
+     * ...
+     * MEASURERS.get().success();                 // the same as get()
+     * MEASURERS.get("download").success();       // the same as getByMethodName() within download()
+     * </pre>
+     */
+    public static Caller caller() {
+        return new Caller(CallerResolver.INSTANCE.callerClass());
     }
 
     public static PerformanceMeasurer get(Class clazz) {
@@ -175,7 +772,100 @@ public class PerformanceMeasurer {
     }
 
     public static PerformanceMeasurer get(String name) {
-        return measurers.computeIfAbsent(name, k -> new PerformanceMeasurer(name));
+        PerformanceMeasurer measurer = measurers.get(name);
+
+        if (measurer == null) {
+            measurer = measurers.computeIfAbsent(name, PerformanceMeasurer::newInstance);
+        }
+
+        return measurer;
+    }
+
+    /**
+     * Roll-up node <code>prefix.*</code> is measurer, which sums sensors of all measurers named
+     * <code>prefix</code> or <code>prefix.&lt;anything&gt;</code>, f.e. <code>rollUp("com.x.import")</code>
+     * shows throughput of all classes and methods of package.
+     * Each measurer adds its deltas to its nodes while it is reported, so nodes cost nothing between reports
+     * and nested nodes don't rescan measurers. Interval of child is reported by node at the same or at the next tick.
+     */
+    public static synchronized PerformanceMeasurer rollUp(String prefix) {
+        if (prefix.isEmpty() || prefix.endsWith(".")) {
+            throw new IllegalArgumentException(String.format("Wrong prefix [%s]", prefix));
+        }
+
+        PerformanceMeasurer node = get(prefix + ROLL_UP_SUFFIX);
+
+        if (node.prefix == null) {
+            node.prefix = prefix;
+            rollUps.add(node);
+            rollUpVersion++;
+        }
+
+        return node;
+    }
+
+    /**
+     * Roll-up nodes are found once after each new node
+     */
+    private PerformanceMeasurer[] ancestors() {
+        int version = rollUpVersion;
+
+        if (ancestorsVersion != version) {
+            List<PerformanceMeasurer> found = new ArrayList<>();
+
+            if (prefix == null) {
+                for (PerformanceMeasurer node : rollUps) {
+                    if (name.startsWith(node.prefix)
+                            && (name.length() == node.prefix.length() || name.charAt(node.prefix.length()) == '.')) {
+                        found.add(node);
+                    }
+                }
+            }
+
+            ancestors = found.toArray(new PerformanceMeasurer[0]);
+            ancestorsVersion = version;
+        }
+
+        return ancestors;
+    }
+
+    /**
+     * Deltas of current summary are added to roll-up nodes
+     */
+    private void rollUp() {
+        PerformanceMeasurer[] ancestors = ancestors();
+        if (ancestors.length == 0) return;
+
+
+        for (Sensor sensor : reportedSensors) {
+            long delta = sensor.current - sensor.previous;
+            if (delta == 0) continue;
+
+            for (PerformanceMeasurer node : ancestors) {
+                Sensor total = node.getSensor(sensor.name);
+                if (sensor.isolated) {
+                    total.isolated = true;
+                }
+                total.add(delta);
+            }
+        }
+    }
+
+    private static PerformanceMeasurer newInstance(String name) {
+        WeakReference<PerformanceMeasurer> reference = retired.remove(name);
+        PerformanceMeasurer measurer = reference != null ? reference.get() : null;
+
+        if (measurer != null) {
+            LOGGER.debug(String.format("Reviving purged measurer [%s]", name));
+            measurer.purged = false;
+            measurer.detached = false;
+            measurer.scheduleOwn();
+            measurer.activeTime = System.currentTimeMillis();
+            measurer.scheduleExpiry();
+            return measurer;
+        }
+
+        return new PerformanceMeasurer(name);
     }
 
     private PerformanceMeasurer(String name) {
@@ -184,14 +874,10 @@ public class PerformanceMeasurer {
 
         this.name = name;
         startTime = System.currentTimeMillis();
+        sampling = samplingProperty(name, 1);
+        readingTime = System.nanoTime();
 
-        stepStartTime = new ThreadLocal<Long>() {
-            @Override
-            protected Long initialValue() {
-                return 0L;
-            }
-        };
-        stepDuration = new AtomicLong();
+        stepDuration = new LongAdder();
 
         sensors = new ConcurrentHashMap<>();
 
@@ -200,75 +886,192 @@ public class PerformanceMeasurer {
         summarySensor = Sensor.getInstance(summarySensorName, this);
         throughputSensor = Sensor.getInstance(throughputSensorName, this);
         throughputMomentSensor = Sensor.getInstance(throughputMomentSensorName, this);
+
+        activeTime = startTime;
+        scheduleExpiry();
     }
 
+    /**
+     * Current readings become previous ones, nothing is allocated
+     */
     @SuppressWarnings("Convert2streamapi")
-    private void snapshot() {
+    void snapshot() {
+
+        for (Sensor sensor : reportedSensors) {
+            sensor.shift();
+
+            if (sensor.histogram != null) {
+                sensor.histogram.shift();
+            }
+        }
 
-        for (Sensor sensor : sensors.values()) {
-            sensor.newClone();
+        if (stepLatency != null) {
+            stepLatency.shift();
         }
 
 
-        summarySensor.newClone();
-        throughputSensor.newClone();
-        throughputMomentSensor.newClone();
+        summarySensor.shift();
+        throughputSensor.shift();
+        throughputMomentSensor.shift();
+
+        if (allocated != -1) {
+            previousAllocated = allocated;
+        }
     }
 
 
+    /**
+     * Reads each sensor once, the whole report is calculated from these readings
+     */
     @SuppressWarnings("Convert2streamapi")
-    private void makeSummary() {
+    void makeSummary() {
 
         currentTime = System.currentTimeMillis();
+        activeTime = currentTime;
 
 
         if (hasPersonalTimer()) {
-            duration = stepDuration.get();
+            duration = TimeUnit.NANOSECONDS.toMillis(stepDuration.sum());
         } else {
             duration = currentTime - startTime;
         }
         if (duration == 0) duration = 1;
 
+        if (stepLatency != null) {
+            stepLatency.takeSnapshot();
+        }
+
+
+        foldBuffers();
+
+        // series of labeled sensors are folded into sensors of their groups
+        for (LabeledSensor labeledSensor : labeledSensorList) {
+            labeledSensor.fold();
+        }
+        for (TopKSensor topKSensor : topKSensorList) {
+            topKSensor.take();
+        }
+
+
+        long sum = 0;
+        reportedSensors = sensorList;
+        for (Sensor sensor : reportedSensors) {
+
+            sensor.read();
+            if (sensor.current != sensor.previous) {
+                sensor.activeTime = currentTime;
+            }
 
-        summarySensor.reset(); //history
-        for (Sensor sensor : sensors.values()) {
+            if (sensor.histogram != null) {
+                sensor.histogram.takeSnapshot();
+            }
 
             if (!sensor.isolated) {
-                summarySensor.measure(sensor.take());
-//                summarySensor.measure(sensor.take() - sensor.history.take());
+                sum += sensor.take();
             }
         }
+        summarySensor.set(sum);
+
+        rollUp();
+
+
+        // real interval, it may be longer than scheduled one
+        long elapsed = elapsedSinceReading();
+        interval = elapsed;
+        for (Sensor sensor : reportedSensors) {
+            sensor.rates.update(sensor.current - sensor.previous, elapsed);
+        }
+        summarySensor.rates.update(sum - summarySensor.previous, elapsed);
+
 
+        throughputSensor.set((int) ((sum * 1000) / duration));
+
+        if (hasPersonalTimer()) {
+            cpuTime(sum);
+        }
 
-        throughputSensor.reset();
-        throughputSensor.measure((int) ((summarySensor.take() * 1000) / duration));
+        if (allocationSampling != 0 || allocated != -1) {
+            allocation(sum - summarySensor.previous, elapsed);
+        }
 
 
-        throughputMomentSensor.reset();
-        throughputMomentSensor.measure(
-                (int) (((summarySensor.take() - summarySensor.history.take()) * 1000) / TimeUnit.MILLISECONDS.convert(time, timeUnit))
+        long intervalMillis = Math.max(TimeUnit.NANOSECONDS.toMillis(elapsed), 1);
+        throughputMomentSensor.set(
+                (int) (((sum - summarySensor.previous) * 1000) / intervalMillis)
         );
 
 
-        // percent & left time
-        long count = 0;
-        long size = 0;
+        // percent & left time, by the clock of throughput
+        boolean sections = hasPersonalTimer();
+        long forecastTime = sections ? stepDuration.sum() : readingTime;
+        for (Sensor sensor : forecastSensors) {
+            if (sensor.forecastOfSections != sections) {
+                // the first sections of personal timer, their clock starts from 0
+                sensor.forecast = new Forecast(0);
+                sensor.forecastOfSections = true;
+            }
+            sensor.forecast.update(sensor.take(), sensor.possibleSize, forecastTime);
+        }
 
         if (forecastSensor != null) {
-            count = forecastSensor.take();
-            size = forecastSensor.possibleSize;
+            percent = forecastSensor.forecast.getPercent();
+            leftTime = forecastSensor.forecast.getLeftTime();
         }
+    }
+
+
+    /**
+     * Shares of thread times of sampled sections are applied to duration of all sections
+     */
+    private void cpuTime(long sum) {
+        long wall = sampledWallTime.sum();
+        if (wall == 0) return;
+
+
+        long cpu = sampledCpuTime.sum();
+        long user = sampledUserTime.sum();
+
+        cpuTime = Math.round(duration * Math.min((double) cpu / wall, 1));
+        userTime = cpu == 0 ? 0 : Math.round(cpuTime * Math.min((double) user / cpu, 1));
+        waitTime = duration - cpuTime;
+        cpuThroughput = sum * 1000 / Math.max(cpuTime, 1);
+    }
+
+    /**
+     * Bytes of the latest interval per event of common sensors and per second
+     */
+    private void allocation(long events, long elapsed) {
+        allocated = allocatedBytes.sum();
 
-        if (count != 0) {
-            percent = (float) count * 100 / size;
-            leftTime = (((long) (duration / percent) * 100)) - duration;
+        long bytes = allocated - previousAllocated;
+        allocatedPerEvent = events > 0 ? bytes / events : 0;
+        allocationRate = elapsed > 0 ? (double) bytes / BYTES_PER_MEGABYTE * TimeUnit.SECONDS.toNanos(1) / elapsed : 0;
+    }
+
+    /**
+     * Nothing was measured since the latest report, so rates fall
+     */
+    @SuppressWarnings("Convert2streamapi")
+    private void idle() {
+        long elapsed = elapsedSinceReading();
+
+        for (Sensor sensor : sensorList) {
+            sensor.rates.update(0, elapsed);
         }
+        summarySensor.rates.update(0, elapsed);
+    }
+
+    private long elapsedSinceReading() {
+        long now = System.nanoTime();
+        long elapsed = now - readingTime;
+        readingTime = now;
+        return elapsed;
     }
 
 
     private int startedSensors() {
         int number = 0;
-        for (Sensor sensor : sensors.values()) {
+        for (Sensor sensor : reportedSensors) {
             if (sensor.isStarted()) {
                 number++;
             }
@@ -278,7 +1081,7 @@ public class PerformanceMeasurer {
 
     private int startedCommonSensors() {
         int number = 0;
-        for (Sensor sensor : sensors.values()) {
+        for (Sensor sensor : reportedSensors) {
             if (!sensor.isolated && sensor.isStarted()) {
                 number++;
             }
@@ -288,7 +1091,7 @@ public class PerformanceMeasurer {
 
     private int updatedSensors() {
         int number = 0;
-        for (Sensor sensor : sensors.values()) {
+        for (Sensor sensor : sensorList) {
             if (sensor.isUpdated()) {
                 number++;
             }
@@ -296,12 +1099,17 @@ public class PerformanceMeasurer {
         return number;
     }
 
-    private boolean isUpdated() {
-        for (Sensor sensor : sensors.values()) {
+    boolean isUpdated() {
+        for (Sensor sensor : sensorList) {
             if (sensor.isUpdated()) {
                 return true;
             }
         }
+        for (LabeledSensor labeledSensor : labeledSensorList) {
+            if (labeledSensor.isUpdated()) {
+                return true;
+            }
+        }
 
         return false;
     }
@@ -320,102 +1128,521 @@ public class PerformanceMeasurer {
 
 
     @SuppressWarnings("Convert2streamapi")
-    private String log() {
-        log = new StringBuffer();
-
+    void log(StringBuilder log) {
 
         if (hasPersonalTimer())
             log.append("(personal) ");
 
-        logValue(DurationFormatUtils.formatDuration(duration, "HH:mm:ss"));
+        TextFormat.appendDuration(log, duration);
+        log.append(' ');
 
 
         //forecast
         if (forecastSensor != null) {
-            if (percent == 0 && leftTime == 0) {
-                logValue("   ∞    ");
-            } else if (percent == 100) {
+            if (percent == 100) {
                 if (hasLogHistory()) {
-                    logValue("   .    ");
+                    log.append("   .     ");
                 }
+            } else if (leftTime == Forecast.UNKNOWN) {
+                log.append("   ∞     ");
             } else {
-                logValue(DurationFormatUtils.formatDuration(leftTime, "HH:mm:ss"));
+                TextFormat.appendDuration(log, leftTime);
+                log.append(' ');
+                logLeftTimeRange(log, forecastSensor.forecast);
             }
         }
 
         //progress
         if (forecastSensor != null) {
             if (percent != 100 || hasLogHistory()) {
-                logProgress((int) percent);
+                logProgress(log, (int) percent);
             }
         }
 
 
         // throughput
         if (summarySensor.isStarted()) {
-            log.append(throughputSensor.log());
+            throughputSensor.log(log);
+        }
+
+
+        // thread times of personal timer
+        if (cpuTime != -1 && summarySensor.isStarted()) {
+            logCpuTime(log);
+        }
+
+        if (allocated != -1) {
+            logAllocation(log);
         }
 
 
         // throughput moment
         if (!hasPersonalTimer() && summarySensor.isStarted() && !isLogAtOnce()) {
-            log.append(throughputMomentSensor.log());
+            throughputMomentSensor.log(log);
+            logRates(log);
         }
 
 
-        //common
-        for (Sensor sensor : sensors.values()) {
+        // personal timer latency
+        if (stepLatency != null && stepLatency.isStarted()) {
+            log.append("latency");
+            stepLatency.log(log);
+        }
+
+
+        //common
+        for (Sensor sensor : reportedSensors) {
             if (!sensor.isolated) {
-                log.append(sensor.log());
+                sensor.log(log);
+                sensor.logSampling(log);
+                sensor.logLatency(log);
             }
         }
         if (startedCommonSensors() > 1) {
-            log.append(summarySensor.log());
+            summarySensor.log(log);
         }
 
 
         //isolated
-        for (Sensor sensor : sensors.values()) {
+        for (Sensor sensor : reportedSensors) {
             if (sensor.isolated) {
-                log.append(sensor.log());
+                sensor.log(log);
+                logForecast(log, sensor);
+                sensor.logSampling(log);
+                sensor.logLatency(log);
             }
         }
 
 
-        return log.toString();
+        //heavy hitters
+        for (TopKSensor topKSensor : topKSensorList) {
+            topKSensor.log(log);
+        }
     }
 
 
-    private void logProgress(int value) {
+    /**
+     * cpu r/s: 2450;  cpu: 62% (user 95%) wait: 00:01:10;
+     */
+    private void logCpuTime(StringBuilder log) {
+        log.append("cpu r/s: ").append(cpuThroughput).append(";  cpu: ");
+        TextFormat.appendPercent(log, (float) cpuTime * 100 / duration);
+        log.append("% (user ");
+        TextFormat.appendPercent(log, cpuTime == 0 ? 0 : (float) userTime * 100 / cpuTime);
+        log.append("%) wait: ");
+        TextFormat.appendDuration(log, waitTime);
+        log.append(";  ");
+    }
+
+    /**
+     * alloc: 1240 B/op 35 MB/s;
+     */
+    private void logAllocation(StringBuilder log) {
+        log.append("alloc: ").append(allocatedPerEvent).append(" B/op ");
+        TextFormat.appendRate(log, allocationRate);
+        log.append(" MB/s;  ");
+    }
+
+    /**
+     * r/s 1m/5m/15m: 12/10/9.5 (ewma 11/10/9.8);
+     */
+    private void logRates(StringBuilder log) {
+        Rates rates = summarySensor.rates;
+        if (!rates.isStarted()) return;
+
+
+        int start = log.length();
+
+        log.append(throughputSensorName).append(" 1m/5m/15m: ");
+        TextFormat.appendRate(log, rates.getRate(Window.ONE_MINUTE));
+        log.append('/');
+        TextFormat.appendRate(log, rates.getRate(Window.FIVE_MINUTES));
+        log.append('/');
+        TextFormat.appendRate(log, rates.getRate(Window.FIFTEEN_MINUTES));
+        log.append(" (ewma ");
+        TextFormat.appendRate(log, rates.getEwmaRate(Window.ONE_MINUTE));
+        log.append('/');
+        TextFormat.appendRate(log, rates.getEwmaRate(Window.FIVE_MINUTES));
+        log.append('/');
+        TextFormat.appendRate(log, rates.getEwmaRate(Window.FIFTEEN_MINUTES));
+        log.append(");  ");
+
+
+        int currentLength = log.length() - start;
+
+        if (currentLength < ratesLogLength) {
+            TextFormat.appendSpaces(log, ratesLogLength - currentLength);
+        }
+        if (currentLength > ratesLogLength) {
+            ratesLogLength = currentLength;
+        }
+    }
+
+
+    /**
+     * (00:02:40..00:03:50)
+     */
+    private static void logLeftTimeRange(StringBuilder log, Forecast forecast) {
+        if (forecast.getMinLeftTime() == Forecast.UNKNOWN) return;
+
+
+        log.append('(');
+        TextFormat.appendDuration(log, forecast.getMinLeftTime());
+        log.append("..");
+        if (forecast.getMaxLeftTime() == Forecast.UNKNOWN) {
+            log.append('∞');
+        } else {
+            TextFormat.appendDuration(log, forecast.getMaxLeftTime());
+        }
+        log.append(") ");
+    }
 
-        String valueOf = String.valueOf(value);
-        log.append(valueOf);
-        log.append("%");
+    /**
+     * progress 45% left 00:03:10 (00:02:40..00:03:50);
+     */
+    private void logForecast(StringBuilder log, Sensor sensor) {
+        if (sensor.forecast == null || sensor == forecastSensor) return;
 
 
-        int currentLength = valueOf.length() + 1;
+        Forecast forecast = sensor.forecast;
+        log.append(sensor.name).append(' ');
+        TextFormat.appendPercent(log, forecast.getPercent());
+        log.append('%');
+
+        if (forecast.getPercent() < 100) {
+            log.append(" left ");
+            if (forecast.getLeftTime() == Forecast.UNKNOWN) {
+                log.append('∞');
+            } else {
+                TextFormat.appendDuration(log, forecast.getLeftTime());
+                log.append(' ');
+                logLeftTimeRange(log, forecast);
+                log.setLength(log.length() - 1);
+            }
+        }
+        log.append(";  ");
+    }
+
+    private static void logProgress(StringBuilder log, int value) {
+
+        int start = log.length();
+        log.append(value);
+        log.append('%');
+
+
+        int currentLength = log.length() - start;
 
         int logLength = 4; //100%
         if (currentLength < logLength) {
-            log.append(StringUtils.repeat(" ", logLength - currentLength));
+            TextFormat.appendSpaces(log, logLength - currentLength);
         }
 
 
-        log.append(" ");
+        log.append(' ');
     }
 
-    private void logValue(String value) {
-        log
-                .append(value)
-                .append(" ")
-        ;
+
+    /**
+     * Sensor is a handle which could be kept (f.e. before hot loop) and measured directly,
+     * it stays valid across logging and purging of measurer.
+     */
+    public Sensor getSensor(String name) {
+        int slot = name.hashCode() & (HANDLE_CACHE_SIZE - 1);
+
+        Sensor sensor = handles[slot];
+        if (sensor != null && sensor.name.equals(name) && !sensor.evicted) {
+            return sensor;
+        }
+
+
+        sensor = sensors.get(name);
+        if (sensor == null) {
+            sensor = newSensor(name);
+        }
+
+        handles[slot] = sensor;
+
+        return sensor;
     }
 
 
-    public Sensor getSensor(String name) {
-        return sensors.computeIfAbsent(name, k -> Sensor.getInstance(name, this));
+    private synchronized Sensor newSensor(String name) {
+        Sensor sensor = sensors.get(name);
+
+        if (sensor == null) {
+            WeakReference<Sensor> reference = evictedSensors.remove(name);
+            sensor = reference != null ? reference.get() : null;
+
+            if (sensor != null) {
+                LOGGER.debug(String.format("Reviving evicted sensor [%s] of measurer [%s]", name, this.name));
+                sensor.evicted = false;
+            } else {
+                sensor = Sensor.getInstance(name, this);
+                sensor.setSampling(samplingProperty(this.name + ':' + name, sampling));
+            }
+
+            sensor.activeTime = System.currentTimeMillis();
+            sensor.detached = purged; // the first measuring brings retired measurer back
+            sensors.put(name, sensor);
+            sensorList = sensors.values().toArray(new Sensor[0]);
+            sensor.setBuffered(buffered);
+
+            if (timeToLive(sensor) > 0) {
+                scheduleExpiry(sensor);
+            }
+        }
+
+        return sensor;
+    }
+
+    /**
+     * Labeled sensor is a handle which could be kept and measured directly, see {@link LabeledSensor}
+     */
+    public LabeledSensor getLabeledSensor(String name) {
+        LabeledSensor labeledSensor = labeledSensors.get(name);
+
+        if (labeledSensor == null) {
+            labeledSensor = newLabeledSensor(name);
+        }
+
+        return labeledSensor;
+    }
+
+    private synchronized LabeledSensor newLabeledSensor(String name) {
+        LabeledSensor labeledSensor = labeledSensors.get(name);
+
+        if (labeledSensor == null) {
+            labeledSensor = new LabeledSensor(name, this);
+            labeledSensors.put(name, labeledSensor);
+            labeledSensorList = labeledSensors.values().toArray(new LabeledSensor[0]);
+        }
+
+        return labeledSensor;
+    }
+
+    /**
+     * f.e. <code>measure("http", "status", 503)</code> is reported as sensor <code>http{status=503}</code>
+     */
+    public void measure(String name, String label, long value) {
+        getLabeledSensor(name).measure(label, value);
+    }
+
+    public void measure(String name, String label, String value) {
+        getLabeledSensor(name).measure(label, value);
+    }
+
+    public void measure(String name, Labels labels) {
+        getLabeledSensor(name).measure(labels);
+    }
+
+    /**
+     * Top-K sensor is a handle which could be kept and measured directly, see {@link TopKSensor}
+     *
+     * @param top number of reported keys, it is used only when sensor is created
+     */
+    public TopKSensor getTopKSensor(String name, int top) {
+        TopKSensor topKSensor = topKSensors.get(name);
+
+        if (topKSensor == null) {
+            topKSensor = newTopKSensor(name, top);
+        }
+
+        return topKSensor;
+    }
+
+    public TopKSensor getTopKSensor(String name) {
+        return getTopKSensor(name, TopKSensor.DEFAULT_TOP);
+    }
+
+    private synchronized TopKSensor newTopKSensor(String name, int top) {
+        TopKSensor topKSensor = topKSensors.get(name);
+
+        if (topKSensor == null) {
+            topKSensor = new TopKSensor(name, top, this);
+            topKSensors.put(name, topKSensor);
+            topKSensorList = topKSensors.values().toArray(new TopKSensor[0]);
+        }
+
+        return topKSensor;
+    }
+
+    /**
+     * Dynamic keys (urls, ids) are measured in fixed memory and the most frequent of them are reported,
+     * unlike {@link #measure(String)}, which keeps sensor per key forever
+     */
+    public void measureTop(String name, String key) {
+        getTopKSensor(name).measure(key);
+    }
+
+    public void measureTop(String name, String key, long delta) {
+        getTopKSensor(name).measure(key, delta);
+    }
+
+    private static int samplingProperty(String name, int defaultSampling) {
+        String value = System.getProperty(SAMPLING_PROPERTY + name);
+
+        if (value == null) return defaultSampling;
+
+
+        try {
+            int sampling = Integer.parseInt(value.trim());
+            if (sampling >= 1) return sampling;
+        } catch (NumberFormatException ignored) {
+        }
+
+        LOGGER.warn(String.format("Wrong sampling [%s] of [%s]", value, name));
+        return defaultSampling;
+    }
+
+    /**
+     * Events of all sensors (and of sensors which are created later) are counted by thread's own counters
+     * instead of shared ones, so tight loop doesn't pay for CAS. Report reads counters of all threads,
+     * counters of dead threads are folded into shared ones, so each report is exact.
+     * Counters are kept per thread, so it suits pools of platform threads rather than virtual ones.
+     */
+    public synchronized PerformanceMeasurer setBuffered(boolean buffered) {
+        this.buffered = buffered;
+        for (Sensor sensor : sensorList) {
+            sensor.setBuffered(buffered);
+        }
+
+        return this;
+    }
+
+    private synchronized void setBuffered(Sensor sensor, boolean buffered) {
+        sensor.bufferSlot = buffered ? slot(sensor) : null;
     }
 
+    /**
+     * Buffered sensor gets slot of thread's counters, sensor which is buffered again gets its slot back
+     */
+    private ThreadBuffer.Slot slot(Sensor sensor) {
+        if (sensors.get(sensor.name) != sensor) return null;
+
+
+        ThreadBuffer.Slot last = lastSlot(sensor);
+        if (last != null && indexedSensors[last.index] == sensor) {
+            return last;
+        }
+
+        int index;
+        if (!freeIndexes.isEmpty()) {
+            index = freeIndexes.pop();
+        } else {
+            index = indexedSensors.length;
+            indexedSensors = Arrays.copyOf(indexedSensors, index + 1);
+        }
+        indexedSensors[index] = sensor;
+
+        ThreadBuffer.Slot slot = new ThreadBuffer.Slot(index, sensor.sensor);
+        synchronized (buffers) {
+            ThreadBuffer.Slot[] slots = Arrays.copyOf(sensor.bufferSlots, sensor.bufferSlots.length + 1);
+            slots[slots.length - 1] = slot;
+            sensor.bufferSlots = slots;
+        }
+        return slot;
+    }
+
+    private ThreadBuffer.Slot lastSlot(Sensor sensor) {
+        synchronized (buffers) {
+            ThreadBuffer.Slot[] slots = sensor.bufferSlots;
+            return slots.length > 0 ? slots[slots.length - 1] : null;
+        }
+    }
+
+    private ThreadBuffer newBuffer() {
+        ThreadBuffer threadBuffer = new ThreadBuffer(indexedSensors.length);
+
+        synchronized (buffers) {
+            buffers.add(threadBuffer);
+            hasBuffers = true;
+        }
+
+        return threadBuffer;
+    }
+
+    /**
+     * @return shared count with counts of all threads
+     */
+    private long value(Sensor sensor) {
+        if (!hasBuffers || sensor.bufferSlots.length == 0) return sensor.sensor.sum();
+
+
+        synchronized (buffers) {
+            long value = sensor.sensor.sum();
+            Sensor[] indexedSensors = this.indexedSensors;
+            int held = 0;
+
+            for (ThreadBuffer.Slot slot : sensor.bufferSlots) {
+                boolean holds = false;
+                for (ThreadBuffer threadBuffer : buffers) {
+                    value += threadBuffer.get(slot);
+                    holds |= threadBuffer.holds(slot);
+                }
+                if (holds || (slot.index < indexedSensors.length && indexedSensors[slot.index] == sensor)) {
+                    sensor.bufferSlots[held++] = slot;
+                }
+            }
+
+            // previous slots which are neither held by threads nor reserved anymore
+            if (held < sensor.bufferSlots.length) {
+                sensor.bufferSlots = Arrays.copyOf(sensor.bufferSlots, held);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Counts of dead threads are final, they are moved into shared counters
+     */
+    private void foldBuffers() {
+        if (!hasBuffers) return;
+
+
+        synchronized (buffers) {
+            for (Iterator<ThreadBuffer> iterator = buffers.iterator(); iterator.hasNext(); ) {
+                ThreadBuffer threadBuffer = iterator.next();
+
+                if (!threadBuffer.isAlive()) {
+                    threadBuffer.fold();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    int buffers() {
+        synchronized (buffers) {
+            return buffers.size();
+        }
+    }
+
+    int indexes() {
+        return indexedSensors.length;
+    }
+
+    /**
+     * Only 1-in-N events of all sensors (and of sensors which are created later) are measured,
+     * see {@link Sensor#setSampling(int)}
+     */
+    public synchronized PerformanceMeasurer setSampling(int sampling) {
+        Sensor.checkSampling(sampling);
+
+        this.sampling = sampling;
+        for (Sensor sensor : sensorList) {
+            sensor.setSampling(sampling);
+        }
+
+        return this;
+    }
+
+    /**
+     * Only 1-in-N events of sensor are measured, see {@link Sensor#setSampling(int)}
+     */
+    public PerformanceMeasurer setSampling(String name, int sampling) {
+        getSensor(name).setSampling(sampling);
+        return this;
+    }
 
     public void measure(String name, int delta) {
         getSensor(name).measure(delta);
@@ -425,6 +1652,13 @@ public class PerformanceMeasurer {
         measure(name, 1);
     }
 
+    /**
+     * Measures event of sensor together with its duration, see {@link Sensor#record(long)}
+     */
+    public void record(String name, long nanos) {
+        getSensor(name).record(nanos);
+    }
+
     public void success(int delta) {
         getSensor(SUCCESS_NAME).measure(delta);
     }
@@ -451,11 +1685,7 @@ public class PerformanceMeasurer {
     }
 
     public void measureByClassName(int delta) {
-//        String className = Thread.currentThread().getStackTrace()[2].getClass().getSimpleName();
-        String className = Thread.currentThread().getStackTrace()[2].getClassName();
-        className = className.substring(className.lastIndexOf('.') + 1);
-
-        getSensor(className).measure(delta);
+        getSensor(CallerResolver.INSTANCE.callerSimpleClassName()).measure(delta);
     }
 
     public void measureByClassName() {
@@ -463,9 +1693,7 @@ public class PerformanceMeasurer {
     }
 
     public void measureByMethodName(int delta) {
-        String methodName = Thread.currentThread().getStackTrace()[2].getMethodName();
-
-        getSensor(methodName).measure(delta);
+        getSensor(CallerResolver.INSTANCE.callerMethodName()).measure(delta);
     }
 
     public void measureByMethodName() {
@@ -473,21 +1701,39 @@ public class PerformanceMeasurer {
     }
 
 
-    public void possibleSize(int size) {
-        this.forecastSensor = summarySensor;
-
-        this.forecastSensor.possibleSize = size;
+    /**
+     * Forecast of sum of common sensors, possible size may be changed at any time f.e. when total becomes known
+     */
+    public synchronized void possibleSize(int size) {
+        forecast(summarySensor, size);
     }
 
+    /**
+     * Forecast of sensor, there may be several forecasts of sensors, the latest one is logged at the beginning
+     */
     @SuppressWarnings("unused")
-    public void possibleSize(String name, long size) {
+    public synchronized void possibleSize(String name, long size) {
         Sensor sensor = getSensor(name);
 
-        this.forecastSensor = sensor;
-        forecastSensor.possibleSize = size;
-
         // as forecast is depend on current sensor so it is isolated
         sensor.isolated = true;
+
+        forecast(sensor, size);
+    }
+
+    private void forecast(Sensor sensor, long size) {
+        sensor.possibleSize = size;
+
+        if (sensor.forecast == null) {
+            sensor.forecastOfSections = hasPersonalTimer();
+            sensor.forecast = new Forecast(sensor.forecastOfSections ? 0 : System.nanoTime());
+
+            Sensor[] sensors = Arrays.copyOf(forecastSensors, forecastSensors.length + 1);
+            sensors[sensors.length - 1] = sensor;
+            forecastSensors = sensors;
+        }
+
+        forecastSensor = sensor;
     }
 
     @SuppressWarnings("unused")
@@ -497,12 +1743,191 @@ public class PerformanceMeasurer {
         return this;
     }
 
+    /**
+     * Starts section of personal timer, must be finished by {@link #stop()}.
+     * Sections of different measurers may be nested; repeated start of this measurer restarts its section,
+     * so section which isn't stopped (f.e. by exception) is replaced by the next one instead of being kept.
+     */
     public void start() {
-        stepStartTime.set(System.currentTimeMillis());
+        Timer.current().restart(this, null);
     }
 
+    /**
+     * Finishes the latest started section of this measurer on current thread
+     */
     public void stop() {
-        stepDuration.addAndGet(System.currentTimeMillis() - stepStartTime.get());
+        Timer.current().stop(this);
+    }
+
+    /**
+     * Starts section of personal timer which is finished by closing of returned timer:
+     * <pre>
+     * try (PerformanceMeasurer.Timer timer = PerformanceMeasurer.get().time()) {
+     *     ...
+     * }
+     * </pre>
+     * Returned timer is reused by current thread, so it costs nothing. Sections of {@code time()} may be nested
+     * and re-entered, closing finishes the latest one of them, not sections of {@link #start()}.
+     */
+    public Timer time() {
+        return Timer.current().push(this, null, true);
+    }
+
+    /**
+     * The same as {@link #time()}, besides duration of section is recorded to sensor, see {@link Sensor#record(long)}
+     */
+    public Timer time(String name) {
+        return Timer.current().push(this, getSensor(name), true);
+    }
+
+    public Timer time(Sensor sensor) {
+        return Timer.current().push(this, sensor, true);
+    }
+
+    /**
+     * Thread CPU and user time of personal timer's sections are read by {@link java.lang.management.ThreadMXBean}
+     * for 1-in-N sections, so CPU time, CPU-based throughput and wait time (I/O, locks, scheduling) are reported.
+     *
+     * @param sampling 1 - each section, 0 - off
+     */
+    public PerformanceMeasurer setCpuTiming(int sampling) {
+        if (sampling < 0) {
+            throw new IllegalArgumentException("Sampling must not be negative: " + sampling);
+        }
+
+        cpuSampling = ThreadProbe.CPU_TIME ? sampling : 0;
+        return this;
+    }
+
+    /**
+     * CPU time of each 16th section
+     */
+    public PerformanceMeasurer setCpuTiming(boolean enabled) {
+        return setCpuTiming(enabled ? DEFAULT_CPU_SAMPLING : 0);
+    }
+
+    private boolean isCpuSampled() {
+        int sampling = cpuSampling;
+        return sampling == 1 || sampling > 1 && ThreadLocalRandom.current().nextInt(sampling) == 0;
+    }
+
+    /**
+     * Bytes allocated by thread within personal timer's sections are read by
+     * {@code com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)} for 1-in-N sections (each sampled one
+     * stands for N sections), so bytes per event and MB/s of the latest interval are reported.
+     *
+     * @param sampling 1 - each section, 0 - off
+     */
+    public PerformanceMeasurer setAllocationAccounting(int sampling) {
+        if (sampling < 0) {
+            throw new IllegalArgumentException("Sampling must not be negative: " + sampling);
+        }
+
+        allocationSampling = ThreadProbe.ALLOCATED_BYTES ? sampling : 0;
+        return this;
+    }
+
+    /**
+     * Allocation of each section
+     */
+    public PerformanceMeasurer setAllocationAccounting(boolean enabled) {
+        return setAllocationAccounting(enabled ? 1 : 0);
+    }
+
+    private boolean isAllocationSampled() {
+        int sampling = allocationSampling;
+        return sampling == 1 || sampling > 1 && ThreadLocalRandom.current().nextInt(sampling) == 0;
+    }
+
+    /**
+     * @param cpu       nanoseconds of sampled section, -1 if it is not sampled
+     * @param allocated bytes of sampled section, -1 if it is not sampled
+     */
+    private void finishStep(long nanos, boolean outermost, long cpu, long user, long allocated) {
+        // time of nested sections of the same measurer is already in outer one
+        if (outermost) {
+            stepDuration.add(nanos);
+
+            if (cpu >= 0) {
+                sampledWallTime.add(nanos);
+                sampledCpuTime.add(cpu);
+                sampledUserTime.add(user);
+            }
+
+            if (allocated >= 0) {
+                allocatedBytes.add(allocated * Math.max(allocationSampling, 1));
+            }
+        }
+
+        stepLatency().record(nanos);
+        reattach();
+    }
+
+    long getStepDuration() {
+        return stepDuration.sum();
+    }
+
+    private LatencyHistogram stepLatency() {
+        LatencyHistogram histogram = stepLatency;
+
+        if (histogram == null) {
+            synchronized (this) {
+                histogram = stepLatency;
+                if (histogram == null) {
+                    stepLatency = histogram = new LatencyHistogram();
+                }
+            }
+        }
+
+        return histogram;
+    }
+
+    /**
+     * @return events per second of all common sensors during the latest window, as of the latest report
+     */
+    public double getRate(Window window) {
+        return summarySensor.rates.getRate(window);
+    }
+
+    /**
+     * @return exponentially weighted moving average of events per second of all common sensors, as of the latest report
+     */
+    public double getEwmaRate(Window window) {
+        return summarySensor.rates.getEwmaRate(window);
+    }
+
+    /**
+     * Own reporting interval of measurer instead of common one ({@link #setSchedulerTimeout(int, TimeUnit)}),
+     * replaces previous own interval
+     *
+     * @param time 0 - back to common interval
+     */
+    public synchronized PerformanceMeasurer setInterval(int time, TimeUnit timeUnit) {
+        ownInterval = timeUnit.toNanos(time);
+
+        if (!purged) {
+            scheduleOwn();
+        }
+
+        return this;
+    }
+
+    private synchronized void scheduleOwn() {
+        cancelOwnSchedule();
+        if (ownInterval == 0) return;
+
+
+        ownSchedule = scheduler.scheduleAtFixedRate(
+                this::scheduleReport,
+                ownInterval, ownInterval, TimeUnit.NANOSECONDS
+        );
+    }
+
+    private synchronized void cancelOwnSchedule() {
+        if (ownSchedule != null) {
+            ownSchedule.cancel(false);
+            ownSchedule = null;
+        }
     }
 
     public PerformanceMeasurer setPriority(Priority priority) {
@@ -510,30 +1935,71 @@ public class PerformanceMeasurer {
         return this;
     }
 
+    boolean isPurged() {
+        return purged;
+    }
+
     private boolean hasPersonalTimer() {
-        return stepDuration.get() != 0;
+        return stepDuration.sum() != 0;
     }
 
-    public static class Sensor {
+    /**
+     * Measurers of one class without stack walking, see {@link #caller()}
+     */
+    public static final class Caller {
+
+        private final CallerResolver.CallerClass callerClass;
+
+        private Caller(CallerResolver.CallerClass callerClass) {
+            this.callerClass = callerClass;
+        }
+
+        /**
+         * @return measurer of class, the same as {@link #get()} called by that class
+         */
+        public PerformanceMeasurer get() {
+            return callerClass.measurer();
+        }
+
+        /**
+         * @return measurer of method, the same as {@link #getByMethodName()} called by that method
+         */
+        public PerformanceMeasurer get(String methodName) {
+            return callerClass.methodMeasurer(methodName);
+        }
+    }
 
-        private static String logTemplVal = "%s: %s;  "; //sum: 246;
-        private static String logTemplDelta = "%s: %s(%s);  "; //sum: 342(+96);
-        private static String logTemplPerc = "%s: %s%% %s;  "; //success: 33% 81;
-        private static String logTemplDeltaPercent = "%s: %s%% %s(%s%% %s);  "; //success: 30% 125(28% +22);
+    public static class Sensor {
 
-        private String name;
-        private PerformanceMeasurer measurer;
-        private LongAdder sensor;
+        private final String name;
+        private final PerformanceMeasurer measurer;
+        private final LongAdder sensor;
         private boolean isolated;
-        private long possibleSize;
+        private volatile long possibleSize;
+        private Forecast forecast;
+        private boolean forecastOfSections; // time of forecast is duration of personal timer's sections
+        private volatile LatencyHistogram histogram;
         private int logLength;
-        private Sensor history;
+        private final Rates rates = new Rates();
+        private volatile int sampling = 1;
+        private volatile DoubleAdder variance; // of sampled estimation
+        private volatile ThreadBuffer.Slot bufferSlot; // null - not buffered
+        // all slots which threads may still hold, the latest one is current or may be given back, under lock of buffers
+        private ThreadBuffer.Slot[] bufferSlots = new ThreadBuffer.Slot[0];
+        private volatile long timeToLive = -1; // millis, -1 - of measurer
+        private volatile long activeTime; // millis
+        private volatile boolean evicted;
+        private volatile boolean detached; // evicted or of retired measurer, and not measured since then
+        private ExpiryWheel.Entry expiryEntry;
+
+        // interval readings, logging thread only
+        private long current;
+        private long previous;
+        private double currentVariance;
+        private double previousVariance;
 
         private static Sensor getInstance(String name, PerformanceMeasurer measurer) {
-            Sensor sensor = new Sensor(name, measurer);
-            sensor.history = new Sensor("Stub-ancestor-for-sensor", measurer);
-
-            return sensor;
+            return new Sensor(name, measurer);
         }
 
         private Sensor(String name, PerformanceMeasurer measurer) {
@@ -542,134 +2008,319 @@ public class PerformanceMeasurer {
             sensor = new LongAdder();
         }
 
-        private Sensor(Sensor other) {
-            this.name = other.name;
-            this.measurer = other.measurer;
-            this.isolated = other.isolated;
-            this.possibleSize = other.possibleSize;
-            this.logLength = other.logLength;
+        public void measure() {
+            int sampling = this.sampling;
 
-            //
-            this.history = other.history;
+            if (sampling == 1) {
+                ThreadBuffer.Slot bufferSlot = this.bufferSlot;
+                if (bufferSlot != null) {
+                    measurer.buffer.get().add(bufferSlot, 1);
+                } else {
+                    sensor.increment();
+                }
+            } else if (ThreadLocalRandom.current().nextInt(sampling) == 0) {
+                sample(sampling, 1);
+            }
 
-            //clone
-            this.sensor = other.sensor;
+            if (detached) reattach();
         }
 
-        private Sensor newClone() {
-            Sensor clone = new Sensor(this);
-            clone.sensor = new LongAdder();
-            clone.sensor.add(sensor.sum());
+        public void measure(long delta) {
+            int sampling = this.sampling;
 
-            this.history = clone;
-            clone.history = null;
+            if (sampling == 1) {
+                ThreadBuffer.Slot bufferSlot = this.bufferSlot;
+                if (bufferSlot != null) {
+                    measurer.buffer.get().add(bufferSlot, delta);
+                } else {
+                    sensor.add(delta);
+                }
+            } else if (ThreadLocalRandom.current().nextInt(sampling) == 0) {
+                sample(sampling, delta);
+            }
 
-            return clone;
+            if (detached) reattach();
         }
 
-        public void measure() {
-            sensor.increment();
+        /**
+         * Evicted sensor or sensor of retired measurer is measured through held handle
+         */
+        private void reattach() {
+            detached = false;
+            reattachedSensors.add(this);
         }
 
-        public void measure(long delta) {
+        /**
+         * Sampled event stands for N events, so sensor's value is unbiased estimation,
+         * also when sampling is changed during measuring
+         */
+        private void sample(int sampling, long delta) {
+            sensor.add(delta * sampling);
+            variance.add((double) delta * delta * sampling * (sampling - 1));
+        }
+
+        /**
+         * Only 1-in-N events (random, by thread-local generator) are measured, each of them is counted N times.
+         * Estimated error is logged with sensor. 1 - each event is measured.
+         */
+        public synchronized void setSampling(int sampling) {
+            checkSampling(sampling);
+
+            if (sampling > 1 && variance == null) {
+                variance = new DoubleAdder();
+            }
+            this.sampling = sampling;
+        }
+
+        public int getSampling() {
+            return sampling;
+        }
+
+        /**
+         * Events are counted by thread's own counters, see {@link PerformanceMeasurer#setBuffered(boolean)}
+         */
+        public void setBuffered(boolean buffered) {
+            measurer.setBuffered(this, buffered);
+        }
+
+        public boolean isBuffered() {
+            return bufferSlot != null;
+        }
+
+        /**
+         * Time to live of this idle sensor instead of measurer's one, see {@link PerformanceMeasurer#setSensorTimeToLive(long, TimeUnit)}
+         */
+        public void setTimeToLive(long time, TimeUnit unit) {
+            timeToLive = unit.toMillis(time);
+            measurer.scheduleExpiry(this);
+        }
+
+        private static void checkSampling(int sampling) {
+            if (sampling < 1) {
+                throw new IllegalArgumentException("Sampling must be positive: " + sampling);
+            }
+        }
+
+        /**
+         * @return relative error (95% confidence) of sampled value, 0 if value is exact
+         */
+        double getError() {
+            return error(current, currentVariance);
+        }
+
+        double getIntervalError() {
+            return error(current - previous, currentVariance - previousVariance);
+        }
+
+        private static double error(long value, double variance) {
+            if (value == 0 || variance <= 0) return 0;
+
+            return 1.96 * Math.sqrt(variance) / Math.abs(value);
+        }
+
+        /**
+         * Measures event together with its duration, percentiles of durations are logged with sensor
+         *
+         * @param nanos duration of event
+         */
+        public void record(long nanos) {
+            int sampling = this.sampling;
+            if (sampling > 1 && ThreadLocalRandom.current().nextInt(sampling) != 0) return;
+
+
+            LatencyHistogram histogram = this.histogram;
+
+            if (histogram == null) {
+                synchronized (this) {
+                    histogram = this.histogram;
+                    if (histogram == null) {
+                        this.histogram = histogram = new LatencyHistogram();
+                    }
+                }
+            }
+
+            histogram.record(nanos);
+
+            if (sampling == 1) {
+                sensor.increment();
+            } else {
+                sample(sampling, 1);
+            }
+
+            if (detached) reattach();
+        }
+
+        /**
+         * @return events per second during the latest window, as of the latest report
+         */
+        public double getRate(Window window) {
+            return rates.getRate(window);
+        }
+
+        /**
+         * @return exponentially weighted moving average of events per second, as of the latest report
+         */
+        public double getEwmaRate(Window window) {
+            return rates.getEwmaRate(window);
+        }
+
+        String getName() {
+            return name;
+        }
+
+        boolean isIsolated() {
+            return isolated;
+        }
+
+        /**
+         * Adds already estimated delta, it is not sampled again
+         */
+        void add(long delta) {
             sensor.add(delta);
+
+            if (detached) reattach();
         }
 
-        private long take() {
-            return sensor.sum();
+        boolean isEvicted() {
+            return evicted;
         }
 
-        private void reset() {
-            sensor.reset();
+        long sum() {
+            return measurer.value(this);
+        }
+
+        private void read() {
+            current = measurer.value(this);
+
+            DoubleAdder variance = this.variance;
+            if (variance != null) {
+                currentVariance = variance.sum();
+            }
+        }
+
+        private void set(long value) {
+            current = value;
+        }
+
+        private void shift() {
+            previous = current;
+            previousVariance = currentVariance;
+        }
+
+        /**
+         * @return current reading
+         */
+        private long take() {
+            return current;
         }
 
         private boolean isStarted() {
-            return take() != 0;
+            return current != 0;
         }
 
         private boolean hasHistory() {
-            return history.isStarted();
+            return previous != 0;
         }
 
         private boolean isUpdated() {
-            return take() != history.take();
+            return measurer.value(this) != previous;
         }
 
 
-        private String log() {
+        private void log(StringBuilder log) {
+
+            int start = log.length();
 
-            String result;
 
+            long val = take();
+            long sum = measurer.summarySensor.take();
 
-            boolean isAlone = this.take() == measurer.summarySensor.take();
+            boolean isAlone = val == sum;
 
             boolean isSpecialSensors = name.equals(summarySensorName) || name.equals(throughputSensorName) || name.equals(throughputMomentSensorName);
 
 
-            long val = take();
+            log.append(name).append(": ");
+
             if (isolated || isSpecialSensors || isAlone) {
                 if (!hasHistory()) {
-                    result = String.format(logTemplVal, //sum: 246;
-                            name,
-                            val
-                    );
+                    log.append(val).append(";  "); //sum: 246;
 
                     if (!measurer.isForecastCompleted()) {
-                        result += StringUtils.repeat(" ", String.valueOf(val).length() + 3); // (+)
+                        TextFormat.appendSpaces(log, TextFormat.length(val) + 3); // (+)
                     }
                 } else {
-                    long delta = val - history.take();
+                    long delta = val - previous;
 
-                    result = String.format(logTemplDelta, //sum: 342(+96);
-                            name,
-                            val,
-                            delta >= 0 ? "+" + delta : delta
-                    );
+                    log.append(val).append('('); //sum: 342(+96);
+                    TextFormat.appendDelta(log, delta);
+                    log.append(");  ");
                 }
             } else {
-                DecimalFormat format = new DecimalFormat("0");
-
-                float percent = (float) val * 100 / measurer.summarySensor.take();
+                float percent = (float) val * 100 / sum;
 
                 if (!hasHistory()) {
-                    result = String.format(logTemplPerc, //success: 33% 81;
-                            name,
-                            format.format(percent),
-                            val
-                    );
+                    int percentStart = log.length(); //success: 33% 81;
+                    TextFormat.appendPercent(log, percent);
+                    int percentLength = log.length() - percentStart;
+                    log.append("% ").append(val).append(";  ");
 
                     if (!measurer.isForecastCompleted()) {
-                        result += StringUtils.repeat(" ", String.valueOf(val).length() + 3); // (+)
-                        result += StringUtils.repeat(" ", String.valueOf(format.format(percent)).length() + 2);// _%
+                        TextFormat.appendSpaces(log, TextFormat.length(val) + 3); // (+)
+                        TextFormat.appendSpaces(log, percentLength + 2);// _%
                     }
                 } else {
-                    long delta = val - history.take();
+                    long delta = val - previous;
                     float deltaPercent = 0;
                     if (delta != 0) {
-                        deltaPercent = (float) delta * 100 / (measurer.summarySensor.take() - measurer.summarySensor.history.take());
+                        deltaPercent = (float) delta * 100 / (sum - measurer.summarySensor.previous);
                     }
 
-                    result = String.format(logTemplDeltaPercent, //success: 30% 125(28% +22);
-                            name,
-                            format.format(percent),
-                            val,
-                            format.format(deltaPercent),
-                            delta >= 0 ? "+" + delta : delta
-                    );
+                    TextFormat.appendPercent(log, percent); //success: 30% 125(28% +22);
+                    log.append("% ").append(val).append('(');
+                    TextFormat.appendPercent(log, deltaPercent);
+                    log.append("% ");
+                    TextFormat.appendDelta(log, delta);
+                    log.append(");  ");
                 }
             }
 
 
-            int currentLength = result.length();
+            int currentLength = log.length() - start;
 
             if (currentLength < logLength) {
-                result += StringUtils.repeat(" ", logLength - currentLength);
+                TextFormat.appendSpaces(log, logLength - currentLength);
             }
             if (currentLength > logLength) {
                 logLength = currentLength;
             }
+        }
+
+        /**
+         * success sampled 1/64: ±0.4% (i: ±2.1%);
+         */
+        private void logSampling(StringBuilder log) {
+            if (currentVariance == 0) return;
+
+
+            log.append(name).append(" sampled 1/").append(sampling).append(": ±");
+            TextFormat.appendRate(log, getError() * 100);
+            log.append('%');
+
+            if (hasHistory()) {
+                log.append(" (i: ±");
+                TextFormat.appendRate(log, getIntervalError() * 100);
+                log.append("%)");
+            }
+
+            log.append(";  ");
+        }
 
-            return result;
+        private void logLatency(StringBuilder log) {
+            if (histogram != null && histogram.isStarted()) {
+                log.append(name).append(" latency");
+                histogram.log(log);
+            }
         }
 
         @Override
@@ -680,18 +2331,268 @@ public class PerformanceMeasurer {
 //                    ", isolated=" + isolated +
 //                    ", possibleSize=" + possibleSize +
 //                    ", logLength=" + logLength +
-                    ", history=" + history +
+                    ", previous=" + previous +
                     '}';
         }
     }
 
+    /**
+     * Windows of rates, which are updated by each report
+     */
+    public enum Window {
+        ONE_MINUTE(1),
+        FIVE_MINUTES(5),
+        FIFTEEN_MINUTES(15);
+
+        private final long nanos;
+        private final String label;
+
+        Window(int minutes) {
+            this.nanos = TimeUnit.MINUTES.toNanos(minutes);
+            this.label = minutes + "m";
+        }
+
+        long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return 1m, 5m, 15m
+         */
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /**
+     * Nanosecond timer of personal sections, one per thread or explicit one per task.
+     * Keeps stack of started sections, so they can be nested: one section of {@link #start()} per measurer
+     * and any number of scoped sections of {@link #time()}.
+     * <p>
+     * Explicit timer (see {@link #newTimer()}) is context of task which may be carried between threads
+     * (virtual ones, callbacks), it is used by one thread at a time:
+     * <pre>
+     * PerformanceMeasurer.Timer timer = PerformanceMeasurer.Timer.newTimer();
+     * timer.start(measurer);
+     * ...
+     * timer.stop(measurer);
+     *
+     * // or start()/stop() of measurers within task use bound timer instead of thread's one
+     * timer.run(task);
+     * </pre>
+     */
+    public static final class Timer implements AutoCloseable {
+
+        private static final int INITIAL_DEPTH = 4;
+
+        private PerformanceMeasurer[] measurers = new PerformanceMeasurer[INITIAL_DEPTH];
+        private Sensor[] sensors = new Sensor[INITIAL_DEPTH];
+        private long[] starts = new long[INITIAL_DEPTH];
+        // thread times of sampled sections, explicit timer may be finished by another thread
+        private Thread[] threads = new Thread[INITIAL_DEPTH];
+        private long[] cpuStarts = new long[INITIAL_DEPTH];
+        private long[] userStarts = new long[INITIAL_DEPTH];
+        private long[] allocationStarts = new long[INITIAL_DEPTH];
+        // events of flight recorder, while it is recording
+        private Object[] events = new Object[INITIAL_DEPTH];
+        // sections of time(), finished by close()
+        private boolean[] scoped = new boolean[INITIAL_DEPTH];
+        private int depth;
+
+        Timer() {
+        }
+
+        public static Timer newTimer() {
+            return new Timer();
+        }
+
+        private static Timer current() {
+            return TimerContext.INSTANCE.current();
+        }
+
+        /**
+         * Timer is current within task for {@link PerformanceMeasurer#start()}, {@link PerformanceMeasurer#stop()}
+         * and {@link PerformanceMeasurer#time()} of any measurer
+         */
+        public void run(Runnable task) {
+            TimerContext.INSTANCE.run(this, task);
+        }
+
+        /**
+         * Starts (restarts) section of measurer by this timer, see {@link PerformanceMeasurer#start()}
+         */
+        public Timer start(PerformanceMeasurer measurer) {
+            return restart(measurer, null);
+        }
+
+        /**
+         * The same as {@link #start(PerformanceMeasurer)}, besides duration of section is recorded to sensor
+         */
+        public Timer start(PerformanceMeasurer measurer, String name) {
+            return restart(measurer, measurer.getSensor(name));
+        }
+
+        /**
+         * @return number of started sections
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        private Timer restart(PerformanceMeasurer measurer, Sensor sensor) {
+            for (int i = depth - 1; i >= 0; i--) {
+                // unfinished section of the same measurer or of purged one is dropped
+                if (!scoped[i] && (measurers[i] == measurer || measurers[i].isPurged())) {
+                    remove(i);
+                }
+            }
+
+            return push(measurer, sensor, false);
+        }
+
+        private Timer push(PerformanceMeasurer measurer, Sensor sensor, boolean scoped) {
+            if (depth == starts.length) {
+                measurers = Arrays.copyOf(measurers, depth * 2);
+                sensors = Arrays.copyOf(sensors, depth * 2);
+                starts = Arrays.copyOf(starts, depth * 2);
+                threads = Arrays.copyOf(threads, depth * 2);
+                cpuStarts = Arrays.copyOf(cpuStarts, depth * 2);
+                userStarts = Arrays.copyOf(userStarts, depth * 2);
+                allocationStarts = Arrays.copyOf(allocationStarts, depth * 2);
+                events = Arrays.copyOf(events, depth * 2);
+                this.scoped = Arrays.copyOf(this.scoped, depth * 2);
+            }
+
+            this.scoped[depth] = scoped;
+            measurers[depth] = measurer;
+            sensors[depth] = sensor;
+            if (FlightRecorderEvents.INSTANCE.isRecording()) {
+                events[depth] = FlightRecorderEvents.INSTANCE.beginSection(measurer, sensor);
+            }
+            starts[depth] = System.nanoTime();
+
+            // thread readings are taken inside of wall time
+            cpuStarts[depth] = -1;
+            allocationStarts[depth] = -1;
+            if (measurer.isCpuSampled()) {
+                threads[depth] = Thread.currentThread();
+                cpuStarts[depth] = ThreadProbe.cpuTime();
+                userStarts[depth] = ThreadProbe.userTime();
+            }
+            if (measurer.isAllocationSampled()) {
+                threads[depth] = Thread.currentThread();
+                allocationStarts[depth] = ThreadProbe.allocatedBytes();
+            }
+            depth++;
+
+            return this;
+        }
+
+        /**
+         * Finishes section of measurer started by {@link #start(PerformanceMeasurer)}
+         */
+        public void stop(PerformanceMeasurer measurer) {
+            long now = System.nanoTime();
+
+            for (int i = depth - 1; i >= 0; i--) {
+                if (!scoped[i] && measurers[i] == measurer) {
+                    finish(i, now);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Finishes the latest section of {@link PerformanceMeasurer#time()}, unfinished sections of
+         * {@link PerformanceMeasurer#start()} inside of it are kept
+         */
+        @Override
+        public void close() {
+            long now = System.nanoTime();
+
+            for (int i = depth - 1; i >= 0; i--) {
+                if (scoped[i]) {
+                    finish(i, now);
+                    return;
+                }
+            }
+        }
+
+        private void finish(int index, long now) {
+            PerformanceMeasurer measurer = measurers[index];
+            Sensor sensor = sensors[index];
+            long nanos = now - starts[index];
+
+            Object event = events[index];
+            if (event != null) {
+                FlightRecorderEvents.INSTANCE.endSection(event);
+            }
+
+            long cpu = -1;
+            long user = 0;
+            long allocated = -1;
+            if (threads[index] == Thread.currentThread()) {
+                if (allocationStarts[index] >= 0) {
+                    allocated = ThreadProbe.allocatedBytes() - allocationStarts[index];
+                }
+
+                if (cpuStarts[index] >= 0) {
+                    long cpuTime = ThreadProbe.cpuTime();
+                    long userTime = ThreadProbe.userTime();
+
+                    if (cpuTime >= 0) {
+                        cpu = cpuTime - cpuStarts[index];
+                        user = userTime - userStarts[index];
+                    }
+                }
+            }
+
+
+            remove(index);
+
+            measurer.finishStep(nanos, !isStarted(measurer), cpu, user, allocated);
+
+            if (sensor != null) {
+                sensor.record(nanos);
+            }
+        }
+
+        private void remove(int index) {
+            int tail = depth - index - 1;
+            if (tail > 0) {
+                System.arraycopy(measurers, index + 1, measurers, index, tail);
+                System.arraycopy(sensors, index + 1, sensors, index, tail);
+                System.arraycopy(starts, index + 1, starts, index, tail);
+                System.arraycopy(threads, index + 1, threads, index, tail);
+                System.arraycopy(cpuStarts, index + 1, cpuStarts, index, tail);
+                System.arraycopy(userStarts, index + 1, userStarts, index, tail);
+                System.arraycopy(allocationStarts, index + 1, allocationStarts, index, tail);
+                System.arraycopy(events, index + 1, events, index, tail);
+                System.arraycopy(scoped, index + 1, scoped, index, tail);
+            }
+            depth--;
+            measurers[depth] = null;
+            sensors[depth] = null;
+            threads[depth] = null;
+            events[depth] = null;
+        }
+
+        private boolean isStarted(PerformanceMeasurer measurer) {
+            for (int i = 0; i < depth; i++) {
+                if (measurers[i] == measurer) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     @Override
     public String toString() {
         return "PerformanceMeasurer{" +
                 "name='" + name + '\'' +
                 ", sensors=" + sensors +
 //                ", startTime=" + startTime +
-//                ", stepStartTime=" + stepStartTime +
 //                ", stepDuration=" + stepDuration +
 //                ", currentTime=" + currentTime +
                 ", summarySensor=" + summarySensor +
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the latest reports of all measurers in Prometheus text format by embedded HTTP server:
+ * <pre>
+ * # TYPE performance_measurer_sensor_total counter
+ * performance_measurer_sensor_total{measurer="c.d.Import",sensor="success"} 300
+ * </pre>
+ * Page is rendered from snapshots by server's thread and is reused until the next report,
+ * so scraping doesn't touch measurers. Retired measurers are not served.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class PrometheusEndpoint implements Reporter {
+
+    public static final String PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String PREFIX = "performance_measurer_";
+
+    private final HttpServer server;
+    private final Map<String, Snapshot> snapshots = new ConcurrentSkipListMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Page page = new Page(-1, new byte[0]);
+
+    /**
+     * Local endpoint http://localhost:port/metrics
+     *
+     * @param port 0 - any free one, see {@link #getPort()}
+     */
+    public PrometheusEndpoint(int port) throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public PrometheusEndpoint(InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 0);
+        server.createContext(PATH, this::handle);
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void report(Snapshot snapshot) {
+        snapshots.put(snapshot.getName(), snapshot);
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void retire(String measurer, long time) {
+        if (snapshots.computeIfPresent(measurer, (name, snapshot) -> snapshot.getTime() > time ? snapshot : null) == null) {
+            version.incrementAndGet();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+
+            byte[] body = page().body;
+
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if (method.equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    Page page() {
+        long current = version.get();
+        Page page = this.page;
+
+        if (page.version != current) {
+            // snapshots are at least of this version
+            page = new Page(current, render().getBytes(StandardCharsets.UTF_8));
+            this.page = page;
+        }
+
+        return page;
+    }
+
+    String render() {
+        StringBuilder text = new StringBuilder(4096);
+
+        family(text, "sensor_total", "counter", "Value of sensor");
+        for (Snapshot snapshot : snapshots.values()) {
+            for (Snapshot.SensorReading sensor : snapshot.getSensors()) {
+                sample(text, "sensor_total", snapshot.getName(), sensor.getName(), null, null);
+                text.append(sensor.getCount()).append('\n');
+            }
+        }
+
+        family(text, "sensor_rate", "gauge", "Moving average of events per second");
+        for (Snapshot snapshot : snapshots.values()) {
+            for (Snapshot.SensorReading sensor : snapshot.getSensors()) {
+                for (PerformanceMeasurer.Window window : PerformanceMeasurer.Window.values()) {
+                    sample(text, "sensor_rate", snapshot.getName(), sensor.getName(), "window", window.getLabel());
+                    text.append(sensor.getRate(window)).append('\n');
+                }
+            }
+        }
+
+        family(text, "latency_seconds", "summary", "Percentiles of recorded durations");
+        for (Snapshot snapshot : snapshots.values()) {
+            for (Snapshot.SensorReading sensor : snapshot.getSensors()) {
+                latency(text, snapshot.getName(), sensor.getName(), sensor.getLatency());
+            }
+            latency(text, snapshot.getName(), null, snapshot.getLatency());
+        }
+
+        family(text, "sum_total", "counter", "Sum of common sensors");
+        for (Snapshot snapshot : snapshots.values()) {
+            sample(text, "sum_total", snapshot.getName(), null, null, null);
+            text.append(snapshot.getSum()).append('\n');
+        }
+
+        family(text, "throughput", "gauge", "r/s since start of measurer or of personal timer's sections");
+        for (Snapshot snapshot : snapshots.values()) {
+            sample(text, "throughput", snapshot.getName(), null, null, null);
+            text.append(snapshot.getThroughput()).append('\n');
+        }
+
+        family(text, "throughput_moment", "gauge", "r/s of the latest interval");
+        for (Snapshot snapshot : snapshots.values()) {
+            sample(text, "throughput_moment", snapshot.getName(), null, null, null);
+            text.append(snapshot.getThroughputMoment()).append('\n');
+        }
+
+        family(text, "progress_percent", "gauge", "Progress of forecast");
+        for (Snapshot snapshot : snapshots.values()) {
+            if (snapshot.hasForecast()) {
+                sample(text, "progress_percent", snapshot.getName(), null, null, null);
+                text.append(snapshot.getPercent()).append('\n');
+            }
+        }
+
+        family(text, "left_time_seconds", "gauge", "Left time of forecast");
+        for (Snapshot snapshot : snapshots.values()) {
+            if (snapshot.hasForecast() && snapshot.getLeftTime() != -1) {
+                sample(text, "left_time_seconds", snapshot.getName(), null, null, null);
+                text.append(snapshot.getLeftTime() / 1000.0).append('\n');
+            }
+        }
+
+        return text.toString();
+    }
+
+    private static void latency(StringBuilder text, String measurer, String sensor, Snapshot.Latency latency) {
+        if (latency == null) return;
+
+
+        double[] percentiles = Snapshot.Latency.getPercentiles();
+        for (int i = 0; i < percentiles.length; i++) {
+            sample(text, "latency_seconds", measurer, sensor, "quantile", String.valueOf(percentiles[i]));
+            text.append(latency.getPercentile(i) / 1e9).append('\n');
+        }
+        sample(text, "latency_seconds_sum", measurer, sensor, null, null);
+        text.append(latency.getSum() / 1e9).append('\n');
+        sample(text, "latency_seconds_count", measurer, sensor, null, null);
+        text.append(latency.getTotal()).append('\n');
+    }
+
+    private static void family(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * name{measurer="...",sensor="...",label="..."} with trailing space
+     */
+    private static void sample(StringBuilder text, String name, String measurer, String sensor, String label, String value) {
+        text.append(PREFIX).append(name).append("{measurer=\"");
+        appendLabelValue(text, measurer);
+        text.append('"');
+
+        if (sensor != null) {
+            text.append(",sensor=\"");
+            appendLabelValue(text, sensor);
+            text.append('"');
+        }
+
+        if (label != null) {
+            text.append(',').append(label).append("=\"");
+            appendLabelValue(text, value);
+            text.append('"');
+        }
+
+        text.append("} ");
+    }
+
+    static void appendLabelValue(StringBuilder text, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    text.append("\\\\");
+                    break;
+                case '"':
+                    text.append("\\\"");
+                    break;
+                case '\n':
+                    text.append("\\n");
+                    break;
+                default:
+                    text.append(c);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+
+    private static final class Page {
+        private final long version;
+        private final byte[] body;
+
+        Page(long version, byte[] body) {
+            this.version = version;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Time-windowed (1m/5m/15m) and exponentially weighted moving average rates of one sensor.
+ * <p>
+ * Fed by logging thread with each interval's delta, which is kept in fixed ring of interval buckets;
+ * sliding sums of each window are updated in O(1) (amortized). Calculated rates may be read by any thread.
+ * <p>
+ * Ring grows up to {@link #MAX_BUCKETS} (15 minutes of 1 second intervals), by more frequent intervals
+ * the longest windows are shorter.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+class Rates {
+
+    private static final PerformanceMeasurer.Window[] WINDOWS = PerformanceMeasurer.Window.values();
+    private static final int LONGEST = WINDOWS.length - 1;
+    private static final double NANOS_PER_SECOND = 1e9;
+    static final int MAX_BUCKETS = 1024;
+
+    // ring of intervals
+    private long[] counts = new long[8];
+    private long[] nanos = new long[8];
+    private int head; // next bucket
+
+    // sliding windows: the newest buckets which cover window's length
+    private final int[] windowBuckets = new int[WINDOWS.length];
+    private final long[] windowCounts = new long[WINDOWS.length];
+    private final long[] windowNanos = new long[WINDOWS.length];
+
+    private final double[] ewma = new double[WINDOWS.length];
+    private boolean started;
+
+    // rates & ewma as double bits, for reading by any thread
+    private final AtomicLongArray published = new AtomicLongArray(WINDOWS.length * 2);
+
+
+    /**
+     * @param count        delta of interval
+     * @param elapsedNanos real length of interval
+     */
+    void update(long count, long elapsedNanos) {
+        if (elapsedNanos <= 0) elapsedNanos = 1;
+
+        if (windowBuckets[LONGEST] == counts.length) {
+            if (counts.length < MAX_BUCKETS) {
+                grow();
+            } else {
+                // the oldest bucket is overwritten
+                for (int w = 0; w < WINDOWS.length; w++) {
+                    if (windowBuckets[w] == counts.length) {
+                        dropOldest(w);
+                    }
+                }
+            }
+        }
+
+        counts[head] = count;
+        nanos[head] = elapsedNanos;
+        head = (head + 1) % counts.length;
+
+
+        double instantRate = count * NANOS_PER_SECOND / elapsedNanos;
+
+        for (int w = 0; w < WINDOWS.length; w++) {
+            long length = WINDOWS[w].getNanos();
+
+            windowBuckets[w]++;
+            windowCounts[w] += count;
+            windowNanos[w] += elapsedNanos;
+
+            // drop the oldest buckets while the rest still covers window
+            while (windowBuckets[w] > 1 && windowNanos[w] - nanos[oldest(w)] >= length) {
+                dropOldest(w);
+            }
+
+
+            if (started) {
+                double alpha = 1 - Math.exp(-(double) elapsedNanos / length);
+                ewma[w] += alpha * (instantRate - ewma[w]);
+            } else {
+                ewma[w] = instantRate;
+            }
+
+
+            published.set(w, Double.doubleToRawLongBits(windowCounts[w] * NANOS_PER_SECOND / windowNanos[w]));
+            published.set(WINDOWS.length + w, Double.doubleToRawLongBits(ewma[w]));
+        }
+
+        started = true;
+    }
+
+    private int oldest(int window) {
+        return (head - windowBuckets[window] + counts.length) % counts.length;
+    }
+
+    private void dropOldest(int window) {
+        int oldest = oldest(window);
+
+        windowBuckets[window]--;
+        windowCounts[window] -= counts[oldest];
+        windowNanos[window] -= nanos[oldest];
+    }
+
+    private void grow() {
+        int length = counts.length;
+        long[] newCounts = new long[length * 2];
+        long[] newNanos = new long[length * 2];
+
+        // full ring: the oldest bucket is at head
+        for (int i = 0; i < length; i++) {
+            newCounts[i] = counts[(head + i) % length];
+            newNanos[i] = nanos[(head + i) % length];
+        }
+
+        counts = newCounts;
+        nanos = newNanos;
+        head = length;
+    }
+
+    boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * @return per second
+     */
+    double getRate(PerformanceMeasurer.Window window) {
+        return Double.longBitsToDouble(published.get(window.ordinal()));
+    }
+
+    /**
+     * @return per second
+     */
+    double getEwmaRate(PerformanceMeasurer.Window window) {
+        return Double.longBitsToDouble(published.get(WINDOWS.length + window.ordinal()));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of snapshots and own thread of one reporter.
+ * Snapshots are dropped, not waited for, while reporter falls behind.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+class ReportChannel implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(ReportChannel.class);
+
+    private final Reporter reporter;
+    private final BlockingQueue<Snapshot> queue;
+    private final ConcurrentLinkedQueue<Retirement> retirements = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private long reportedDropped; // reporter's thread only
+
+    ReportChannel(Reporter reporter, int capacity) {
+        this.reporter = reporter;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+
+        thread = new Thread(this, "reporter-" + reporter.getClass().getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    Reporter getReporter() {
+        return reporter;
+    }
+
+    /**
+     * @return false if snapshot is dropped
+     */
+    boolean offer(Snapshot snapshot) {
+        if (closed || !queue.offer(snapshot)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        accepted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Retirements are not dropped, they are few
+     */
+    void retire(String measurer, long time) {
+        if (!closed) {
+            retirements.add(new Retirement(measurer, time));
+        }
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void run() {
+        while (!closed || !queue.isEmpty()) {
+            Snapshot snapshot;
+            try {
+                snapshot = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            } finally {
+                retire();
+            }
+            if (snapshot == null) continue;
+
+
+            try {
+                reporter.report(snapshot);
+            } catch (Exception e) {
+                LOGGER.error(String.format("Reporter [%s] is failed", reporter), e);
+            }
+
+            try {
+                if (queue.isEmpty()) {
+                    reporter.flush();
+                }
+            } catch (Exception e) {
+                LOGGER.error(String.format("Reporter [%s] is not flushed", reporter), e);
+            } finally {
+                delivered.incrementAndGet();
+            }
+
+
+            long dropped = this.dropped.get();
+            if (dropped != reportedDropped) {
+                LOGGER.warn(String.format("Reporter [%s] falls behind, %d snapshots are dropped", reporter, dropped - reportedDropped));
+                reportedDropped = dropped;
+            }
+        }
+
+
+        try {
+            reporter.close();
+        } catch (IOException e) {
+            LOGGER.error(String.format("Reporter [%s] is not closed", reporter), e);
+        }
+    }
+
+    private void retire() {
+        for (Retirement retirement; (retirement = retirements.poll()) != null; ) {
+            try {
+                reporter.retire(retirement.measurer, retirement.time);
+            } catch (Exception e) {
+                LOGGER.error(String.format("Reporter [%s] is failed", reporter), e);
+            }
+        }
+    }
+
+    /**
+     * Waits till accepted snapshots are delivered
+     *
+     * @return false by timeout
+     */
+    boolean flush(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+
+        while (delivered.get() < accepted.get()) {
+            if (System.nanoTime() - deadline >= 0) return false;
+
+            Thread.sleep(5);
+        }
+
+        return true;
+    }
+
+    /**
+     * Delivers the rest of snapshots and closes reporter
+     */
+    void close(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        closed = true;
+        thread.join(timeUnit.toMillis(timeout));
+    }
+
+
+    private static final class Retirement {
+        private final String measurer;
+        private final long time;
+
+        Retirement(String measurer, long time) {
+            this.measurer = measurer;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Receives report of each measurer, see {@link PerformanceMeasurer#addReporter(Reporter)}.
+ * Reports are delivered by own thread of reporter, one by one.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public interface Reporter extends Closeable {
+
+    void report(Snapshot snapshot) throws IOException;
+
+    /**
+     * Measurer is retired, see {@link PerformanceMeasurer#setTimeToLive(long, java.util.concurrent.TimeUnit)},
+     * so its reports till this time are not actual anymore. It reports again after it is measured.
+     *
+     * @param time millis since epoch
+     */
+    default void retire(String measurer, long time) throws IOException {
+    }
+
+    /**
+     * Queue of reporter is drained, so reports of the current tick are received and may be written at once
+     */
+    default void flush() throws IOException {
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+}
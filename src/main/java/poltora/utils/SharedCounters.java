@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Sensors' values mirrored into memory-mapped file, which may be sampled by other process at any time
+ * without coordination, see {@link SharedCountersReader}.
+ * <p>
+ * Layout of file (little-endian):
+ * <pre>
+ * header (64 bytes): int magic 'PMCT', int version, int capacity, int used, long pid, long start millis,
+ *                    long update millis, int state (1 - running, 2 - closed)
+ * names:             capacity * 128 bytes: int generation, short length, UTF-8 bytes of "measurer:sensor"
+ *                    (too long name is cut by character and ends with '~' and hash of whole name)
+ * slots:             capacity * 64 bytes: long value, padded to cache line
+ * </pre>
+ * Name is written before {@code used} is increased; values and {@code update millis} are written by one thread
+ * after each mirroring. Slots of evicted sensors and retired measurers are freed (length 0) and reused by new sensors;
+ * generation is odd while name is rewritten, so reader skips slot or reads its name again.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class SharedCounters implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(SharedCounters.class);
+
+    static final int MAGIC = 0x504D4354; // PMCT
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 64;
+    static final int NAME_SIZE = 128;
+    static final int SLOT_SIZE = 64; // cache line
+    static final int RUNNING = 1;
+    static final int CLOSED = 2;
+
+    static final int CAPACITY_OFFSET = 8;
+    static final int USED_OFFSET = 12;
+    static final int PID_OFFSET = 16;
+    static final int START_OFFSET = 24;
+    static final int UPDATE_OFFSET = 32;
+    static final int STATE_OFFSET = 40;
+
+    static final int NAME_LENGTH_OFFSET = 4;
+    static final int MAX_NAME_LENGTH = NAME_SIZE - NAME_LENGTH_OFFSET - 2;
+
+    private final Path file;
+    private final int capacity;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    // mirroring thread only; sensors don't override equals(), so keys are weak and compared by identity
+    private final Map<PerformanceMeasurer.Sensor, Integer> slots = new WeakHashMap<>();
+    private final List<PerformanceMeasurer.Sensor> added = new ArrayList<>();
+    private final List<String> addedNames = new ArrayList<>();
+    private int[] mirrored; // number of mirroring when slot's sensor was seen the last time
+    private int[] free;
+    private int freeSize;
+    private int used;
+    private int mirroring;
+    private boolean full;
+    private boolean closed;
+
+    SharedCounters(Path file, int capacity) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+        this.mirrored = new int[capacity];
+        this.free = new int[capacity];
+
+        Files.deleteIfExists(file);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size(capacity));
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putInt(USED_OFFSET, 0);
+        buffer.putLong(PID_OFFSET, pid());
+        buffer.putLong(START_OFFSET, System.currentTimeMillis());
+        buffer.putLong(UPDATE_OFFSET, 0);
+        buffer.putInt(STATE_OFFSET, RUNNING);
+    }
+
+    static long size(int capacity) {
+        return HEADER_SIZE + (long) capacity * (NAME_SIZE + SLOT_SIZE);
+    }
+
+    static int nameOffset(int slot) {
+        return HEADER_SIZE + slot * NAME_SIZE;
+    }
+
+    static int valueOffset(int capacity, int slot) {
+        return HEADER_SIZE + capacity * NAME_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static long pid() {
+        // pid@host
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            return Long.parseLong(name.substring(0, name.indexOf('@')));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Copies values of all sensors, slots of sensors which are gone are freed before new sensors get slots,
+     * so sensor re-created under the same name doesn't coexist with the former one
+     */
+    synchronized void mirror() {
+        if (closed) return;
+
+
+        mirroring++;
+        for (PerformanceMeasurer measurer : PerformanceMeasurer.measurers()) {
+            for (PerformanceMeasurer.Sensor sensor : measurer.sensors()) {
+                Integer slot = slots.get(sensor);
+
+                if (slot == null) {
+                    added.add(sensor);
+                    addedNames.add(measurer.getName() + ':' + sensor.getName());
+                    continue;
+                }
+
+                buffer.putLong(valueOffset(capacity, slot), sensor.sum());
+                mirrored[slot] = mirroring;
+            }
+        }
+
+        for (int slot = 0; slot < used; slot++) {
+            if (mirrored[slot] != mirroring && mirrored[slot] != 0) {
+                release(slot);
+            }
+        }
+
+        for (int i = 0; i < added.size(); i++) {
+            register(added.get(i), addedNames.get(i));
+        }
+        added.clear();
+        addedNames.clear();
+
+        buffer.putLong(UPDATE_OFFSET, System.currentTimeMillis());
+    }
+
+    private void register(PerformanceMeasurer.Sensor sensor, String fullName) {
+        int slot;
+        if (freeSize > 0) {
+            slot = free[--freeSize];
+        } else if (used < capacity) {
+            slot = used;
+        } else {
+            if (!full) {
+                LOGGER.warn(String.format("Shared counters [%s] are full, new sensors are not shared", file));
+                full = true;
+            }
+            return;
+        }
+
+
+        byte[] name = encodeName(fullName);
+        int length = name.length;
+
+        int offset = nameOffset(slot);
+        int generation = buffer.getInt(offset);
+        buffer.putInt(offset, generation + 1);
+        buffer.putShort(offset + NAME_LENGTH_OFFSET, (short) length);
+        for (int i = 0; i < length; i++) {
+            buffer.put(offset + NAME_LENGTH_OFFSET + 2 + i, name[i]);
+        }
+        buffer.putLong(valueOffset(capacity, slot), sensor.sum());
+        buffer.putInt(offset, generation + 2);
+
+        if (slot == used) {
+            used++;
+            buffer.putInt(USED_OFFSET, used);
+        }
+
+        slots.put(sensor, slot);
+        mirrored[slot] = mirroring;
+    }
+
+    /**
+     * @return UTF-8 bytes of name, at most {@link #MAX_NAME_LENGTH}; names with the same long prefix stay different
+     */
+    static byte[] encodeName(String fullName) {
+        byte[] name = fullName.getBytes(StandardCharsets.UTF_8);
+        if (name.length <= MAX_NAME_LENGTH) return name;
+
+
+        byte[] suffix = String.format("~%08x", fullName.hashCode()).getBytes(StandardCharsets.US_ASCII);
+        int length = MAX_NAME_LENGTH - suffix.length;
+        // not within multi-byte character
+        while ((name[length] & 0xC0) == 0x80) {
+            length--;
+        }
+
+        byte[] cut = Arrays.copyOf(name, length + suffix.length);
+        System.arraycopy(suffix, 0, cut, length, suffix.length);
+        return cut;
+    }
+
+    /**
+     * Slot of evicted sensor, of sensor of retired measurer or of collected sensor
+     */
+    private void release(int slot) {
+        slots.values().remove(slot);
+
+        int offset = nameOffset(slot);
+        int generation = buffer.getInt(offset);
+        buffer.putInt(offset, generation + 1);
+        buffer.putShort(offset + NAME_LENGTH_OFFSET, (short) 0);
+        buffer.putInt(offset, generation + 2);
+
+        mirrored[slot] = 0;
+        free[freeSize++] = slot;
+        full = false;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Stops mirroring, the last values stay in file
+     */
+    @Override
+    public void close() throws IOException {
+        PerformanceMeasurer.stopSharing(this);
+
+        synchronized (this) {
+            if (closed) return;
+
+            mirror();
+            buffer.putInt(STATE_OFFSET, CLOSED);
+            buffer.force();
+            channel.close();
+            closed = true;
+        }
+    }
+}
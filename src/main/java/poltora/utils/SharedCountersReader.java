@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads file of {@link SharedCounters} without coordination with measuring process.
+ * As command line tool it tails counters and their rates:
+ * <pre>
+ * java -cp performance-measurer.jar poltora.utils.SharedCountersReader file [period millis] [name filter]
+ * </pre>
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class SharedCountersReader implements Closeable {
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private String[] names = new String[0];
+    private int[] generations = new int[0];
+
+    public SharedCountersReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.capacity() < SharedCounters.HEADER_SIZE || buffer.getInt(0) != SharedCounters.MAGIC) {
+            throw new IOException("Not shared counters: " + file);
+        }
+        int version = buffer.getInt(4);
+        if (version != SharedCounters.VERSION) {
+            throw new IOException(String.format("Unsupported version %d of %s", version, file));
+        }
+
+        capacity = buffer.getInt(SharedCounters.CAPACITY_OFFSET);
+        if (buffer.capacity() < SharedCounters.size(capacity)) {
+            throw new IOException("Truncated shared counters: " + file);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: SharedCountersReader file [period millis] [name filter]");
+            System.exit(1);
+        }
+
+        long period = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        String filter = args.length > 2 ? args[2] : "";
+
+
+        try (SharedCountersReader reader = new SharedCountersReader(Paths.get(args[0]))) {
+            System.out.println(String.format("pid %d, started %s", reader.getPid(), format(reader.getStartTime())));
+
+            Sample previous = null;
+            while (true) {
+                Sample sample = reader.sample();
+
+                if (previous == null || sample.getUpdateTime() != previous.getUpdateTime()) {
+                    print(sample, previous, filter);
+                    previous = sample;
+                }
+
+                if (sample.isClosed()) break;
+
+                Thread.sleep(period);
+            }
+        }
+    }
+
+    private static void print(Sample sample, Sample previous, String filter) {
+        String time = format(sample.getUpdateTime());
+
+        for (Map.Entry<String, Long> counter : sample.getValues().entrySet()) {
+            if (!counter.getKey().contains(filter)) continue;
+
+
+            long value = counter.getValue();
+
+            if (previous == null) {
+                System.out.println(String.format("%s  %-60s %15d", time, counter.getKey(), value));
+            } else {
+                long delta = value - previous.getValue(counter.getKey());
+                System.out.println(String.format("%s  %-60s %15d (%+d, %.1f/s)",
+                        time, counter.getKey(), value, delta, sample.getRate(previous, counter.getKey())));
+            }
+        }
+    }
+
+    private static String format(long millis) {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(millis));
+    }
+
+    public long getPid() {
+        return buffer.getLong(SharedCounters.PID_OFFSET);
+    }
+
+    public long getStartTime() {
+        return buffer.getLong(SharedCounters.START_OFFSET);
+    }
+
+    /**
+     * Current values of all counters
+     */
+    public Sample sample() {
+        long updateTime = buffer.getLong(SharedCounters.UPDATE_OFFSET);
+        boolean closed = buffer.getInt(SharedCounters.STATE_OFFSET) == SharedCounters.CLOSED;
+        int used = Math.min(buffer.getInt(SharedCounters.USED_OFFSET), capacity);
+
+        if (names.length < used) {
+            names = Arrays.copyOf(names, used);
+            // generation 0 is never written, so new slots are read
+            generations = Arrays.copyOf(generations, used);
+        }
+
+
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (int slot = 0; slot < used; slot++) {
+            String name = name(slot);
+            if (name != null) {
+                values.put(name, buffer.getLong(SharedCounters.valueOffset(capacity, slot)));
+            }
+        }
+
+        return new Sample(updateTime, closed, values);
+    }
+
+    /**
+     * @return null if slot is free or is being rewritten
+     */
+    private String name(int slot) {
+        int offset = SharedCounters.nameOffset(slot);
+        int generation = buffer.getInt(offset);
+
+        if (generation != generations[slot]) {
+            if ((generation & 1) != 0) return null;
+
+
+            int length = buffer.getShort(offset + SharedCounters.NAME_LENGTH_OFFSET);
+            byte[] name = new byte[length];
+            for (int i = 0; i < length; i++) {
+                name[i] = buffer.get(offset + SharedCounters.NAME_LENGTH_OFFSET + 2 + i);
+            }
+
+            if (buffer.getInt(offset) != generation) return null;
+
+            names[slot] = length > 0 ? new String(name, StandardCharsets.UTF_8) : null;
+            generations[slot] = generation;
+        }
+
+        return names[slot];
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+
+    public static final class Sample {
+
+        private final long updateTime;
+        private final boolean closed;
+        private final Map<String, Long> values;
+
+        private Sample(long updateTime, boolean closed, Map<String, Long> values) {
+            this.updateTime = updateTime;
+            this.closed = closed;
+            this.values = Collections.unmodifiableMap(values);
+        }
+
+        /**
+         * @return millis of the latest mirroring
+         */
+        public long getUpdateTime() {
+            return updateTime;
+        }
+
+        /**
+         * @return whether sharing is finished
+         */
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * @return measurer:sensor - value
+         */
+        public Map<String, Long> getValues() {
+            return values;
+        }
+
+        public long getValue(String name) {
+            Long value = values.get(name);
+            return value != null ? value : 0;
+        }
+
+        /**
+         * @return per second since previous sample
+         */
+        public double getRate(Sample previous, String name) {
+            long millis = updateTime - previous.updateTime;
+            if (millis <= 0) return 0;
+
+            return (getValue(name) - previous.getValue(name)) * 1000.0 / millis;
+        }
+    }
+}
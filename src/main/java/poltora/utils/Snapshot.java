@@ -0,0 +1,626 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.apache.log4j.Priority;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable report of one measurer, as it is logged, for {@link Reporter}s
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public final class Snapshot {
+
+    private static final PerformanceMeasurer.Window[] WINDOWS = PerformanceMeasurer.Window.values();
+
+    private final String name;
+    private final Priority priority;
+    private final long time;
+    private final long duration;
+    private final long interval;
+    private final boolean personal;
+
+    private final long sum;
+    private final long delta;
+    private final long throughput;
+    private final long throughputMoment;
+    private final double[] rates;
+    private final double[] ewmaRates;
+
+    private final boolean forecast;
+    private final long possibleSize;
+    private final float percent;
+    private final long leftTime;
+    private final long minLeftTime;
+    private final long maxLeftTime;
+    private final List<ForecastReading> forecasts;
+
+    private final Latency latency;
+    private final CpuTime cpuTime;
+    private final Allocation allocation;
+    private final List<SensorReading> sensors;
+    private final List<TopReading> tops;
+    private final String text;
+
+    Snapshot(String name, Priority priority, long time, long duration, long interval, boolean personal,
+             long sum, long delta, long throughput, long throughputMoment, Rates rates,
+             boolean forecast, long possibleSize, float percent, long leftTime,
+             long minLeftTime, long maxLeftTime, List<ForecastReading> forecasts,
+             Latency latency, CpuTime cpuTime, Allocation allocation, List<SensorReading> sensors, List<TopReading> tops, String text) {
+        this.name = name;
+        this.priority = priority;
+        this.time = time;
+        this.duration = duration;
+        this.interval = interval;
+        this.personal = personal;
+        this.sum = sum;
+        this.delta = delta;
+        this.throughput = throughput;
+        this.throughputMoment = throughputMoment;
+        this.rates = rates(rates, false);
+        this.ewmaRates = rates(rates, true);
+        this.forecast = forecast;
+        this.possibleSize = possibleSize;
+        this.percent = percent;
+        this.leftTime = leftTime;
+        this.minLeftTime = minLeftTime;
+        this.maxLeftTime = maxLeftTime;
+        this.forecasts = Collections.unmodifiableList(forecasts);
+        this.latency = latency;
+        this.cpuTime = cpuTime;
+        this.allocation = allocation;
+        this.sensors = Collections.unmodifiableList(sensors);
+        this.tops = Collections.unmodifiableList(tops);
+        this.text = text;
+    }
+
+    private static double[] rates(Rates rates, boolean ewma) {
+        double[] values = new double[WINDOWS.length];
+        for (PerformanceMeasurer.Window window : WINDOWS) {
+            values[window.ordinal()] = ewma ? rates.getEwmaRate(window) : rates.getRate(window);
+        }
+        return values;
+    }
+
+    /**
+     * @return name of measurer
+     */
+    public String getName() {
+        return name;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return millis since epoch
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return millis, since start of measurer or of personal timer's sections
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return real nanoseconds since previous report
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    public boolean isPersonal() {
+        return personal;
+    }
+
+    /**
+     * @return sum of common sensors
+     */
+    public long getSum() {
+        return sum;
+    }
+
+    /**
+     * @return sum's delta since previous report
+     */
+    public long getDelta() {
+        return delta;
+    }
+
+    /**
+     * @return r/s
+     */
+    public long getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * @return r/s/i
+     */
+    public long getThroughputMoment() {
+        return throughputMoment;
+    }
+
+    public double getRate(PerformanceMeasurer.Window window) {
+        return rates[window.ordinal()];
+    }
+
+    public double getEwmaRate(PerformanceMeasurer.Window window) {
+        return ewmaRates[window.ordinal()];
+    }
+
+    /**
+     * @return whether possible size is set, see {@link PerformanceMeasurer#possibleSize(int)}
+     */
+    public boolean hasForecast() {
+        return forecast;
+    }
+
+    public long getPossibleSize() {
+        return possibleSize;
+    }
+
+    public float getPercent() {
+        return percent;
+    }
+
+    /**
+     * @return millis, -1 while it is unknown
+     */
+    public long getLeftTime() {
+        return leftTime;
+    }
+
+    /**
+     * @return lower bound of 95% confidence range of left time, millis, -1 while it is unknown
+     */
+    public long getMinLeftTime() {
+        return minLeftTime;
+    }
+
+    /**
+     * @return upper bound of 95% confidence range of left time, millis, -1 while it is unknown or infinite
+     */
+    public long getMaxLeftTime() {
+        return maxLeftTime;
+    }
+
+    /**
+     * @return all forecasts of measurer, see {@link PerformanceMeasurer#possibleSize(String, long)}
+     */
+    public List<ForecastReading> getForecasts() {
+        return forecasts;
+    }
+
+    /**
+     * @return latency of personal timer's sections or null
+     */
+    public Latency getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return thread times of personal timer's sections or null, see {@link PerformanceMeasurer#setCpuTiming(int)}
+     */
+    public CpuTime getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * @return bytes allocated within personal timer's sections or null, see {@link PerformanceMeasurer#setAllocationAccounting(int)}
+     */
+    public Allocation getAllocation() {
+        return allocation;
+    }
+
+    public List<SensorReading> getSensors() {
+        return sensors;
+    }
+
+    /**
+     * @return heavy hitters of the latest interval, see {@link TopKSensor}
+     */
+    public List<TopReading> getTops() {
+        return tops;
+    }
+
+    /**
+     * @return the same line as logged
+     */
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+
+    public static final class SensorReading {
+
+        private final String name;
+        private final long count;
+        private final long delta;
+        private final boolean isolated;
+        private final double[] rates;
+        private final double[] ewmaRates;
+        private final Latency latency;
+        private final int sampling;
+        private final double error;
+
+        SensorReading(String name, long count, long delta, boolean isolated, Rates rates, Latency latency, int sampling, double error) {
+            this.name = name;
+            this.count = count;
+            this.delta = delta;
+            this.isolated = isolated;
+            this.sampling = sampling;
+            this.error = error;
+            this.rates = rates(rates, false);
+            this.ewmaRates = rates(rates, true);
+            this.latency = latency;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return delta since previous report
+         */
+        public long getDelta() {
+            return delta;
+        }
+
+        public boolean isIsolated() {
+            return isolated;
+        }
+
+        public double getRate(PerformanceMeasurer.Window window) {
+            return rates[window.ordinal()];
+        }
+
+        public double getEwmaRate(PerformanceMeasurer.Window window) {
+            return ewmaRates[window.ordinal()];
+        }
+
+        /**
+         * @return latency of recorded events or null
+         */
+        public Latency getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return 1-in-N events are measured
+         */
+        public int getSampling() {
+            return sampling;
+        }
+
+        /**
+         * @return relative error (95% confidence) of sampled count, 0 if count is exact
+         */
+        public double getError() {
+            return error;
+        }
+    }
+
+
+    /**
+     * Forecast of sensor (<code>sum</code> for common sensors)
+     */
+    public static final class ForecastReading {
+
+        private final String name;
+        private final boolean total;
+        private final long count;
+        private final long possibleSize;
+        private final float percent;
+        private final long leftTime;
+        private final long minLeftTime;
+        private final long maxLeftTime;
+
+        ForecastReading(String name, boolean total, long count, long possibleSize, Forecast forecast) {
+            this.name = name;
+            this.total = total;
+            this.count = count;
+            this.possibleSize = possibleSize;
+            this.percent = forecast.getPercent();
+            this.leftTime = forecast.getLeftTime();
+            this.minLeftTime = forecast.getMinLeftTime();
+            this.maxLeftTime = forecast.getMaxLeftTime();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return whether it is forecast of sum of common sensors, see {@link PerformanceMeasurer#possibleSize(int)},
+         * not of sensor which is named <code>sum</code>
+         */
+        public boolean isTotal() {
+            return total;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getPossibleSize() {
+            return possibleSize;
+        }
+
+        public float getPercent() {
+            return percent;
+        }
+
+        /**
+         * @return millis, -1 while it is unknown
+         */
+        public long getLeftTime() {
+            return leftTime;
+        }
+
+        public long getMinLeftTime() {
+            return minLeftTime;
+        }
+
+        /**
+         * @return millis, -1 while it is unknown or infinite
+         */
+        public long getMaxLeftTime() {
+            return maxLeftTime;
+        }
+    }
+
+
+    /**
+     * The most frequent keys of interval with their estimated counts, in descending order
+     */
+    public static final class TopReading {
+
+        private final String name;
+        private final String[] keys;
+        private final long[] counts;
+        private final long error;
+
+        TopReading(TopKSensor sensor) {
+            name = sensor.getName();
+            keys = new String[sensor.size()];
+            counts = new long[sensor.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = sensor.getKey(i);
+                counts[i] = sensor.getCount(i);
+            }
+            error = sensor.getError();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int size() {
+            return keys.length;
+        }
+
+        public String getKey(int index) {
+            return keys[index];
+        }
+
+        public long getCount(int index) {
+            return counts[index];
+        }
+
+        /**
+         * @return upper bound of overestimation of counts
+         */
+        public long getError() {
+            return error;
+        }
+    }
+
+
+    /**
+     * Thread times of all personal timer's sections in milliseconds, estimated by sampled sections
+     */
+    public static final class CpuTime {
+
+        private final long cpuTime;
+        private final long userTime;
+        private final long waitTime;
+        private final long throughput;
+
+        CpuTime(long cpuTime, long userTime, long waitTime, long throughput) {
+            this.cpuTime = cpuTime;
+            this.userTime = userTime;
+            this.waitTime = waitTime;
+            this.throughput = throughput;
+        }
+
+        public long getCpuTime() {
+            return cpuTime;
+        }
+
+        public long getUserTime() {
+            return userTime;
+        }
+
+        /**
+         * @return wall time without CPU time: I/O, locks, scheduling
+         */
+        public long getWaitTime() {
+            return waitTime;
+        }
+
+        /**
+         * @return r/s of CPU time
+         */
+        public long getThroughput() {
+            return throughput;
+        }
+    }
+
+
+    /**
+     * Bytes allocated by threads within personal timer's sections, estimated when sections are sampled
+     */
+    public static final class Allocation {
+
+        private final long bytes;
+        private final long intervalBytes;
+        private final long bytesPerEvent;
+        private final double megabytesPerSecond;
+
+        Allocation(long bytes, long intervalBytes, long bytesPerEvent, double megabytesPerSecond) {
+            this.bytes = bytes;
+            this.intervalBytes = intervalBytes;
+            this.bytesPerEvent = bytesPerEvent;
+            this.megabytesPerSecond = megabytesPerSecond;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getIntervalBytes() {
+            return intervalBytes;
+        }
+
+        /**
+         * @return bytes of the latest interval per event of common sensors
+         */
+        public long getBytesPerEvent() {
+            return bytesPerEvent;
+        }
+
+        /**
+         * @return MB/s of the latest interval
+         */
+        public double getMegabytesPerSecond() {
+            return megabytesPerSecond;
+        }
+    }
+
+
+    /**
+     * Percentiles (p50, p90, p99, p999) of durations in nanoseconds, cumulative and of the latest interval
+     */
+    public static final class Latency {
+
+        private final long[] percentiles = new long[LatencyHistogram.PERCENTILES.length];
+        private final long[] intervalPercentiles = new long[LatencyHistogram.PERCENTILES.length];
+        private final long max;
+        private final long intervalMax;
+        private final long total;
+        private final long intervalTotal;
+        private final long sum;
+        // cumulative counts of non-empty buckets, so histograms may be merged
+        private final int[] bucketIndexes;
+        private final long[] bucketCounts;
+
+        Latency(LatencyHistogram histogram) {
+            for (int i = 0; i < percentiles.length; i++) {
+                percentiles[i] = histogram.getPercentile(i);
+                intervalPercentiles[i] = histogram.getIntervalPercentile(i);
+            }
+            max = histogram.getMax();
+            intervalMax = histogram.getIntervalMax();
+            total = histogram.getTotal();
+            intervalTotal = histogram.getIntervalTotal();
+            sum = histogram.getSum();
+
+            int buckets = 0;
+            for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+                if (histogram.getBucket(i) != 0) buckets++;
+            }
+            bucketIndexes = new int[buckets];
+            bucketCounts = new long[buckets];
+            for (int i = 0, b = 0; i < LatencyHistogram.BUCKETS; i++) {
+                if (histogram.getBucket(i) != 0) {
+                    bucketIndexes[b] = i;
+                    bucketCounts[b++] = histogram.getBucket(i);
+                }
+            }
+        }
+
+        int getBuckets() {
+            return bucketIndexes.length;
+        }
+
+        int getBucketIndex(int bucket) {
+            return bucketIndexes[bucket];
+        }
+
+        long getBucketCount(int bucket) {
+            return bucketCounts[bucket];
+        }
+
+        /**
+         * @return 0.5, 0.9, 0.99, 0.999
+         */
+        public static double[] getPercentiles() {
+            return LatencyHistogram.PERCENTILES.clone();
+        }
+
+        /**
+         * @param index of {@link #getPercentiles()}
+         */
+        public long getPercentile(int index) {
+            return percentiles[index];
+        }
+
+        public long getIntervalPercentile(int index) {
+            return intervalPercentiles[index];
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getIntervalMax() {
+            return intervalMax;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public long getIntervalTotal() {
+            return intervalTotal;
+        }
+
+        /**
+         * @return sum of durations in nanoseconds
+         */
+        public long getSum() {
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,704 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mergeable reports of measurers of several sources (JVMs), f.e. shards of the same job.
+ * <p>
+ * Each report keeps cumulative values (counts, histograms, forecast totals), so the latest report of source
+ * stands for all previous ones. Merge keeps report with the biggest sequence per source and measurer
+ * (ties are broken by later time, then by bigger sum), therefore it is associative, commutative and idempotent:
+ * late and duplicate reports change nothing.
+ * Combined values of measurer are sums of the latest reports of all sources, see {@link #combine(String)}.
+ * <p>
+ * Binary format (big-endian, {@link DataOutput}) starts with magic and version:
+ * <pre>
+ * int magic 'PMSA', short version,
+ * int reports, per report:
+ *   utf source, long sequence, utf measurer, long time, long duration, long sum, long throughput, byte windows, double rate...,
+ *   int forecasts, per forecast: utf name, boolean total (since version 2), long count, long possibleSize,
+ *   int sensors, per sensor: utf name, long count, boolean isolated, byte windows, double rate...,
+ *     boolean latency, [long max, int buckets, per bucket: int index, long count]
+ * </pre>
+ * Instances are immutable.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public final class SnapshotAggregate {
+
+    static final int MAGIC = 0x504D5341; // PMSA
+    static final short VERSION = 2;
+
+    // rates of sources which don't report so long are not summed, their counts are
+    private static final long STALE_TIME = TimeUnit.MINUTES.toMillis(1);
+
+    private static final PerformanceMeasurer.Window[] WINDOWS = PerformanceMeasurer.Window.values();
+
+    private static final String TOTAL_FORECAST_NAME = "sum";
+
+    public static final SnapshotAggregate EMPTY = new SnapshotAggregate(Collections.<String, Report>emptyMap());
+
+    // by source and measurer
+    private final Map<String, Report> reports;
+
+    private SnapshotAggregate(Map<String, Report> reports) {
+        this.reports = reports;
+    }
+
+    /**
+     * @param sequence growing number of source's reports
+     */
+    public static SnapshotAggregate of(String source, long sequence, Snapshot snapshot) {
+        Report report = new Report(source, sequence, snapshot);
+        return new SnapshotAggregate(Collections.singletonMap(report.key(), report));
+    }
+
+    public SnapshotAggregate merge(SnapshotAggregate other) {
+        if (other.reports.isEmpty()) return this;
+        if (reports.isEmpty()) return other;
+
+
+        Map<String, Report> merged = new TreeMap<>(reports);
+        for (Report report : other.reports.values()) {
+            merged.merge(report.key(), report, SnapshotAggregate::latest);
+        }
+        return new SnapshotAggregate(Collections.unmodifiableMap(merged));
+    }
+
+    /**
+     * The same one of two reports regardless of their order
+     */
+    private static Report latest(Report report, Report other) {
+        if (report.sequence != other.sequence) return report.sequence > other.sequence ? report : other;
+        if (report.time != other.time) return report.time > other.time ? report : other;
+        return report.sum >= other.sum ? report : other;
+    }
+
+    public Set<String> getMeasurers() {
+        Set<String> measurers = new TreeSet<>();
+        for (Report report : reports.values()) {
+            measurers.add(report.measurer);
+        }
+        return measurers;
+    }
+
+    /**
+     * @return sequence of the latest report of source and measurer, -1 if there is none
+     */
+    public long getSequence(String source, String measurer) {
+        Report report = reports.get(key(source, measurer));
+        return report != null ? report.sequence : -1;
+    }
+
+    /**
+     * @return sums of the latest reports of all sources of measurer or null
+     */
+    public Combined combine(String measurer) {
+        List<Report> latest = new ArrayList<>();
+        long time = 0;
+        for (Report report : reports.values()) {
+            if (report.measurer.equals(measurer)) {
+                latest.add(report);
+                time = Math.max(time, report.time);
+            }
+        }
+
+        return latest.isEmpty() ? null : new Combined(measurer, latest, time);
+    }
+
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // in memory
+        }
+        return bytes.toByteArray();
+    }
+
+    public static SnapshotAggregate fromBytes(byte[] bytes) throws IOException {
+        return readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+
+        out.writeInt(reports.size());
+        for (Report report : reports.values()) {
+            report.writeTo(out);
+        }
+    }
+
+    public static SnapshotAggregate readFrom(DataInput in) throws IOException {
+        int magic = in.readInt();
+        if (magic != MAGIC) {
+            throw new IOException(String.format("Not aggregate of snapshots, magic: %08x", magic));
+        }
+
+        short version = in.readShort();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported version of aggregate: " + version);
+        }
+
+
+        int size = in.readInt();
+        Map<String, Report> reports = new TreeMap<>();
+        for (int i = 0; i < size; i++) {
+            Report report = Report.readFrom(in, version);
+            reports.merge(report.key(), report, SnapshotAggregate::latest);
+        }
+        return new SnapshotAggregate(Collections.unmodifiableMap(reports));
+    }
+
+    private static String key(String source, String measurer) {
+        return source + '\n' + measurer;
+    }
+
+    private static double[] readRates(DataInput in) throws IOException {
+        int windows = in.readUnsignedByte();
+        double[] rates = new double[WINDOWS.length];
+        for (int i = 0; i < windows; i++) {
+            double rate = in.readDouble();
+            if (i < rates.length) rates[i] = rate;
+        }
+        return rates;
+    }
+
+    private static void writeRates(DataOutput out, double[] rates) throws IOException {
+        out.writeByte(rates.length);
+        for (double rate : rates) {
+            out.writeDouble(rate);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SnapshotAggregate" + reports.keySet().toString().replace('\n', ':');
+    }
+
+
+    /**
+     * The latest report of measurer of source
+     */
+    private static final class Report {
+        private final String source;
+        private final long sequence;
+        private final String measurer;
+        private final long time;
+        private final long duration;
+        private final long sum;
+        private final long throughput;
+        private final double[] rates;
+        private final Map<String, long[]> forecasts = new LinkedHashMap<>(); // of sensors: count, possible size
+        private long[] totalForecast; // of sum or null
+        private final Map<String, Sensor> sensors = new LinkedHashMap<>();
+
+        private Report(String source, long sequence, String measurer, long time, long duration, long sum, long throughput, double[] rates) {
+            this.source = source;
+            this.sequence = sequence;
+            this.measurer = measurer;
+            this.time = time;
+            this.duration = duration;
+            this.sum = sum;
+            this.throughput = throughput;
+            this.rates = rates;
+        }
+
+        Report(String source, long sequence, Snapshot snapshot) {
+            this(source, sequence, snapshot.getName(), snapshot.getTime(), snapshot.getDuration(),
+                    snapshot.getSum(), snapshot.getThroughput(), rates(snapshot));
+
+            for (Snapshot.ForecastReading forecast : snapshot.getForecasts()) {
+                long[] values = {forecast.getCount(), forecast.getPossibleSize()};
+                if (forecast.isTotal()) {
+                    totalForecast = values;
+                } else {
+                    forecasts.put(forecast.getName(), values);
+                }
+            }
+            for (Snapshot.SensorReading reading : snapshot.getSensors()) {
+                sensors.put(reading.getName(), new Sensor(reading));
+            }
+        }
+
+        private static double[] rates(Snapshot snapshot) {
+            double[] rates = new double[WINDOWS.length];
+            for (PerformanceMeasurer.Window window : WINDOWS) {
+                rates[window.ordinal()] = snapshot.getRate(window);
+            }
+            return rates;
+        }
+
+        String key() {
+            return SnapshotAggregate.key(source, measurer);
+        }
+
+        void writeTo(DataOutput out) throws IOException {
+            out.writeUTF(source);
+            out.writeLong(sequence);
+            out.writeUTF(measurer);
+            out.writeLong(time);
+            out.writeLong(duration);
+            out.writeLong(sum);
+            out.writeLong(throughput);
+            writeRates(out, rates);
+
+            out.writeInt(forecasts.size() + (totalForecast != null ? 1 : 0));
+            if (totalForecast != null) {
+                writeForecast(out, TOTAL_FORECAST_NAME, true, totalForecast);
+            }
+            for (Map.Entry<String, long[]> forecast : forecasts.entrySet()) {
+                writeForecast(out, forecast.getKey(), false, forecast.getValue());
+            }
+
+            out.writeInt(sensors.size());
+            for (Sensor sensor : sensors.values()) {
+                sensor.writeTo(out);
+            }
+        }
+
+        private static void writeForecast(DataOutput out, String name, boolean total, long[] values) throws IOException {
+            out.writeUTF(name);
+            out.writeBoolean(total);
+            out.writeLong(values[0]);
+            out.writeLong(values[1]);
+        }
+
+        static Report readFrom(DataInput in, short version) throws IOException {
+            Report report = new Report(
+                    in.readUTF(), in.readLong(), in.readUTF(), in.readLong(), in.readLong(), in.readLong(), in.readLong(),
+                    readRates(in)
+            );
+
+            int forecasts = in.readInt();
+            for (int i = 0; i < forecasts; i++) {
+                String name = in.readUTF();
+                // version 1 names forecast of sum as sensor
+                boolean total = version >= 2 ? in.readBoolean() : name.equals(TOTAL_FORECAST_NAME);
+                long[] values = {in.readLong(), in.readLong()};
+
+                if (total) {
+                    report.totalForecast = values;
+                } else {
+                    report.forecasts.put(name, values);
+                }
+            }
+
+            int sensors = in.readInt();
+            for (int i = 0; i < sensors; i++) {
+                Sensor sensor = Sensor.readFrom(in);
+                report.sensors.put(sensor.name, sensor);
+            }
+            return report;
+        }
+    }
+
+
+    private static final class Sensor {
+        private final String name;
+        private final long count;
+        private final boolean isolated;
+        private final double[] rates;
+        private final long max;
+        private final int[] bucketIndexes; // null without latency
+        private final long[] bucketCounts;
+
+        private Sensor(String name, long count, boolean isolated, double[] rates, long max, int[] bucketIndexes, long[] bucketCounts) {
+            this.name = name;
+            this.count = count;
+            this.isolated = isolated;
+            this.rates = rates;
+            this.max = max;
+            this.bucketIndexes = bucketIndexes;
+            this.bucketCounts = bucketCounts;
+        }
+
+        Sensor(Snapshot.SensorReading reading) {
+            this(reading.getName(), reading.getCount(), reading.isIsolated(), rates(reading),
+                    reading.getLatency() != null ? reading.getLatency().getMax() : 0,
+                    reading.getLatency() != null ? new int[reading.getLatency().getBuckets()] : null,
+                    reading.getLatency() != null ? new long[reading.getLatency().getBuckets()] : null);
+
+            Snapshot.Latency latency = reading.getLatency();
+            for (int b = 0; latency != null && b < latency.getBuckets(); b++) {
+                bucketIndexes[b] = latency.getBucketIndex(b);
+                bucketCounts[b] = latency.getBucketCount(b);
+            }
+        }
+
+        private static double[] rates(Snapshot.SensorReading reading) {
+            double[] rates = new double[WINDOWS.length];
+            for (PerformanceMeasurer.Window window : WINDOWS) {
+                rates[window.ordinal()] = reading.getRate(window);
+            }
+            return rates;
+        }
+
+        void writeTo(DataOutput out) throws IOException {
+            out.writeUTF(name);
+            out.writeLong(count);
+            out.writeBoolean(isolated);
+            writeRates(out, rates);
+
+            out.writeBoolean(bucketIndexes != null);
+            if (bucketIndexes != null) {
+                out.writeLong(max);
+                out.writeInt(bucketIndexes.length);
+                for (int b = 0; b < bucketIndexes.length; b++) {
+                    out.writeInt(bucketIndexes[b]);
+                    out.writeLong(bucketCounts[b]);
+                }
+            }
+        }
+
+        static Sensor readFrom(DataInput in) throws IOException {
+            String name = in.readUTF();
+            long count = in.readLong();
+            boolean isolated = in.readBoolean();
+            double[] rates = readRates(in);
+
+            if (!in.readBoolean()) {
+                return new Sensor(name, count, isolated, rates, 0, null, null);
+            }
+
+
+            long max = in.readLong();
+            int buckets = in.readInt();
+            int[] bucketIndexes = new int[buckets];
+            long[] bucketCounts = new long[buckets];
+            for (int b = 0; b < buckets; b++) {
+                bucketIndexes[b] = in.readInt();
+                bucketCounts[b] = in.readLong();
+                if (bucketIndexes[b] < 0 || bucketIndexes[b] >= LatencyHistogram.BUCKETS) {
+                    throw new IOException("Bucket out of histogram: " + bucketIndexes[b]);
+                }
+            }
+            return new Sensor(name, count, isolated, rates, max, bucketIndexes, bucketCounts);
+        }
+    }
+
+
+    /**
+     * Measurer of all sources: counts are sums of the latest reports, rates are sums of sources
+     * which reported within the latest minute, latencies are percentiles of merged histograms
+     */
+    public static final class Combined {
+
+        private final String measurer;
+        private final int sources;
+        private final long time;
+        private long sum;
+        private long throughput;
+        private final double[] rates = new double[WINDOWS.length];
+        private final Map<String, CombinedSensor> sensors = new LinkedHashMap<>();
+        private final Map<String, CombinedForecast> forecasts = new LinkedHashMap<>();
+        private CombinedForecast totalForecast;
+
+        Combined(String measurer, List<Report> reports, long time) {
+            this.measurer = measurer;
+            this.sources = reports.size();
+            this.time = time;
+
+            Map<String, double[]> forecastRates = new LinkedHashMap<>();
+            Map<String, long[]> histograms = new LinkedHashMap<>();
+
+            for (Report report : reports) {
+                boolean live = report.time >= time - STALE_TIME;
+
+                sum += report.sum;
+                if (live) {
+                    throughput += report.throughput;
+                    add(rates, report.rates);
+                }
+
+                for (Sensor sensor : report.sensors.values()) {
+                    CombinedSensor combined = sensors.computeIfAbsent(sensor.name, name -> new CombinedSensor(name, sensor.isolated));
+                    combined.count += sensor.count;
+                    if (live) {
+                        add(combined.rates, sensor.rates);
+                    }
+
+                    if (sensor.bucketIndexes != null) {
+                        long[] histogram = histograms.computeIfAbsent(sensor.name, name -> new long[LatencyHistogram.BUCKETS]);
+                        for (int b = 0; b < sensor.bucketIndexes.length; b++) {
+                            histogram[sensor.bucketIndexes[b]] += sensor.bucketCounts[b];
+                            combined.total += sensor.bucketCounts[b];
+                        }
+                        combined.max = Math.max(combined.max, sensor.max);
+                    }
+                }
+
+                for (Map.Entry<String, long[]> forecast : report.forecasts.entrySet()) {
+                    forecasts.computeIfAbsent(forecast.getKey(), CombinedForecast::new).add(forecast.getValue());
+                }
+                if (report.totalForecast != null) {
+                    if (totalForecast == null) totalForecast = new CombinedForecast(TOTAL_FORECAST_NAME);
+                    totalForecast.add(report.totalForecast);
+                }
+            }
+
+
+            for (Map.Entry<String, long[]> histogram : histograms.entrySet()) {
+                CombinedSensor sensor = sensors.get(histogram.getKey());
+                sensor.percentiles = new long[LatencyHistogram.PERCENTILES.length];
+                LatencyHistogram.calculate(histogram.getValue(), null, sensor.total, sensor.max, sensor.percentiles);
+            }
+
+            for (CombinedForecast forecast : forecasts.values()) {
+                forecast.calculate(sensors.containsKey(forecast.name) ? sensors.get(forecast.name).rates[0] : 0);
+            }
+            if (totalForecast != null) {
+                // forecast of sum is by rate of sum
+                totalForecast.calculate(rates[0]);
+            }
+        }
+
+        private static void add(double[] rates, double[] source) {
+            for (int i = 0; i < rates.length; i++) {
+                rates[i] += source[i];
+            }
+        }
+
+        public String getMeasurer() {
+            return measurer;
+        }
+
+        public int getSources() {
+            return sources;
+        }
+
+        /**
+         * @return time of the latest report, millis since epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * @return r/s of all sources
+         */
+        public long getThroughput() {
+            return throughput;
+        }
+
+        public double getRate(PerformanceMeasurer.Window window) {
+            return rates[window.ordinal()];
+        }
+
+        public Map<String, CombinedSensor> getSensors() {
+            return Collections.unmodifiableMap(sensors);
+        }
+
+        /**
+         * @return forecasts of sensors by their names, see {@link PerformanceMeasurer#possibleSize(String, long)}
+         */
+        public Map<String, CombinedForecast> getForecasts() {
+            return Collections.unmodifiableMap(forecasts);
+        }
+
+        /**
+         * @return forecast of sum, see {@link PerformanceMeasurer#possibleSize(int)}, or null
+         */
+        public CombinedForecast getTotalForecast() {
+            return totalForecast;
+        }
+
+        /**
+         * @return forecast of sum, otherwise the first one of sensors, or null
+         */
+        public CombinedForecast getForecast() {
+            CombinedForecast forecast = totalForecast;
+            return forecast != null || forecasts.isEmpty() ? forecast : forecasts.values().iterator().next();
+        }
+
+        /**
+         * [c.d.Import] 4 sources  00:03:10 61%  r/s: 6080;  r/s 1m: 6010;  success: 1804923;  fail: 2;  sum: 1804925;
+         */
+        public void log(StringBuilder log) {
+            log.append('[').append(measurer).append("] ").append(sources).append(sources == 1 ? " source  " : " sources  ");
+
+            CombinedForecast forecast = getForecast();
+            if (forecast != null) {
+                if (forecast.leftTime == Forecast.UNKNOWN) {
+                    log.append("   ∞     ");
+                } else {
+                    TextFormat.appendDuration(log, forecast.leftTime);
+                    log.append(' ');
+                }
+                TextFormat.appendPercent(log, forecast.percent);
+                log.append("%  ");
+            }
+
+            log.append("r/s: ").append(throughput).append(";  ");
+            log.append("r/s ").append(WINDOWS[0].getLabel()).append(": ");
+            TextFormat.appendRate(log, rates[0]);
+            log.append(";  ");
+
+            for (CombinedSensor sensor : sensors.values()) {
+                log.append(sensor.name).append(": ").append(sensor.count).append(";  ");
+                if (sensor.percentiles != null) {
+                    log.append(sensor.name).append(" latency:");
+                    for (int i = 0; i < sensor.percentiles.length; i++) {
+                        log.append(' ').append(LatencyHistogram.PERCENTILE_NAMES[i]).append(' ');
+                        LatencyHistogram.logDuration(log, sensor.percentiles[i]);
+                    }
+                    log.append(";  ");
+                }
+            }
+            log.append("sum: ").append(sum).append(';');
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder log = new StringBuilder();
+            log(log);
+            return log.toString();
+        }
+    }
+
+
+    public static final class CombinedSensor {
+
+        private final String name;
+        private final boolean isolated;
+        private long count;
+        private final double[] rates = new double[WINDOWS.length];
+        private long total; // of histogram
+        private long max;
+        private long[] percentiles; // null without latency
+
+        CombinedSensor(String name, boolean isolated) {
+            this.name = name;
+            this.isolated = isolated;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isIsolated() {
+            return isolated;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getRate(PerformanceMeasurer.Window window) {
+            return rates[window.ordinal()];
+        }
+
+        public boolean hasLatency() {
+            return percentiles != null;
+        }
+
+        /**
+         * @param index of {@link Snapshot.Latency#getPercentiles()}
+         * @return nanoseconds
+         */
+        public long getPercentile(int index) {
+            return percentiles[index];
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+
+
+    public static final class CombinedForecast {
+
+        private final String name;
+        private long count;
+        private long possibleSize;
+        private float percent;
+        private long leftTime;
+
+        CombinedForecast(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param values count, possible size of source
+         */
+        void add(long[] values) {
+            count += values[0];
+            possibleSize += values[1];
+        }
+
+        /**
+         * @param rate per second of all sources
+         */
+        void calculate(double rate) {
+            percent = possibleSize > 0 ? Math.min(count * 100f / possibleSize, 100) : 0;
+
+            long left = possibleSize - count;
+            if (left <= 0) {
+                leftTime = 0;
+            } else if (rate > 0) {
+                leftTime = (long) (left / rate * 1000);
+            } else {
+                leftTime = Forecast.UNKNOWN;
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getPossibleSize() {
+            return possibleSize;
+        }
+
+        public float getPercent() {
+            return percent;
+        }
+
+        /**
+         * @return millis by 1-minute rate of all sources, -1 while it is unknown
+         */
+        public long getLeftTime() {
+            return leftTime;
+        }
+    }
+}
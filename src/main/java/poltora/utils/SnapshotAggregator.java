@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Merges reports of {@link SnapshotPublisher}s of several JVMs: polls shared directory or accepts connections.
+ * Combined measurers are available by {@link #getAggregate()}, see {@link SnapshotAggregate#combine(String)}.
+ * Files of directory which are not rewritten within retention time (f.e. of finished JVMs) are deleted,
+ * their latest reports remain in aggregate.
+ * <p>
+ * Command line: {@code SnapshotAggregator directory|port [period millis]} prints combined measurers periodically.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class SnapshotAggregator implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(SnapshotAggregator.class);
+
+    private static final int MAX_FRAME = 16 * 1024 * 1024;
+    private static final long DEFAULT_RETENTION = TimeUnit.DAYS.toMillis(1);
+
+    private final Path directory;
+    private final long retention; // millis
+    private final ServerSocket server;
+    private final AtomicReference<SnapshotAggregate> aggregate = new AtomicReference<>(SnapshotAggregate.EMPTY);
+
+    /**
+     * Reads directory of {@link SnapshotPublisher#toDirectory(Path)} by {@link #poll()}
+     */
+    public SnapshotAggregator(Path directory) {
+        this(directory, DEFAULT_RETENTION, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param retention of files which are not rewritten by their publishers
+     */
+    public SnapshotAggregator(Path directory, long retention, TimeUnit unit) {
+        this.directory = directory;
+        this.retention = unit.toMillis(retention);
+        this.server = null;
+    }
+
+    /**
+     * Accepts {@link SnapshotPublisher#toSocket(InetSocketAddress)} on local port
+     *
+     * @param port 0 - any free one, see {@link #getPort()}
+     */
+    public SnapshotAggregator(int port) throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public SnapshotAggregator(InetSocketAddress address) throws IOException {
+        this.directory = null;
+        this.retention = 0;
+        this.server = new ServerSocket();
+        server.bind(address);
+
+        daemon(this::accept, "aggregator-" + getPort()).start();
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public SnapshotAggregate getAggregate() {
+        return aggregate.get();
+    }
+
+    /**
+     * Merges files of directory, the ones being written are read the next time
+     */
+    public SnapshotAggregate poll() throws IOException {
+        if (directory == null) return getAggregate();
+
+
+        long expired = System.currentTimeMillis() - retention;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SnapshotPublisher.SUFFIX)) {
+            for (Path file : files) {
+                try {
+                    merge(SnapshotAggregate.fromBytes(Files.readAllBytes(file)));
+
+                    if (Files.getLastModifiedTime(file).toMillis() < expired) {
+                        LOGGER.info("Reports are not rewritten within retention time, deleted: " + file);
+                        Files.deleteIfExists(file);
+                    }
+                } catch (NoSuchFileException ignored) {
+                    // replaced just now
+                } catch (IOException e) {
+                    LOGGER.warn("Unreadable reports: " + file, e);
+                }
+            }
+        }
+        return getAggregate();
+    }
+
+    private void merge(SnapshotAggregate other) {
+        aggregate.accumulateAndGet(other, SnapshotAggregate::merge);
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                daemon(() -> read(socket), "aggregator-" + socket.getRemoteSocketAddress()).start();
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    LOGGER.warn("Connection isn't accepted", e);
+                }
+            }
+        }
+    }
+
+    private void read(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (true) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_FRAME) {
+                    throw new IOException("Wrong frame length: " + length);
+                }
+
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                merge(SnapshotAggregate.fromBytes(bytes));
+            }
+        } catch (EOFException ignored) {
+            // publisher is closed
+        } catch (IOException e) {
+            if (!server.isClosed()) {
+                LOGGER.warn("Connection is broken: " + socket.getRemoteSocketAddress(), e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: SnapshotAggregator directory|port [period millis]");
+            System.exit(1);
+        }
+
+        long period = args.length > 1 ? Long.parseLong(args[1]) : 15000;
+
+
+        try (SnapshotAggregator aggregator = args[0].matches("\\d+")
+                ? new SnapshotAggregator(Integer.parseInt(args[0]))
+                : new SnapshotAggregator(Paths.get(args[0]))) {
+
+            while (true) {
+                Thread.sleep(period);
+
+                SnapshotAggregate aggregate = aggregator.poll();
+                String time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+                for (String measurer : aggregate.getMeasurers()) {
+                    System.out.println(time + "  " + aggregate.combine(measurer));
+                }
+            }
+        }
+    }
+}
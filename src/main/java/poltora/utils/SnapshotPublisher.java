@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes reports of this JVM as {@link SnapshotAggregate} for {@link SnapshotAggregator}:
+ * <ul>
+ * <li>into shared directory - the latest reports of all measurers are merged and rewritten atomically to {@code <source>.pmsa}
+ * once per reporting tick, by {@link #flush()}</li>
+ * <li>to socket - each report is sent as frame {@code int length, aggregate}; on failure the frame is dropped
+ * and connection is opened again by the next report, the next report includes all previous counts anyway</li>
+ * </ul>
+ * Source (f.e. shard) must be unique among publishers of the same aggregator.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class SnapshotPublisher implements Reporter {
+
+    private static final Logger LOGGER = Logger.getLogger(SnapshotPublisher.class);
+
+    static final String SUFFIX = ".pmsa";
+    private static final int CONNECT_TIMEOUT = 1000;
+
+    private final String source;
+    private final Path directory;
+    private final InetSocketAddress address;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private SnapshotAggregate aggregate = SnapshotAggregate.EMPTY;
+    private boolean written = true;
+
+    private Socket socket;
+    private DataOutputStream out;
+
+    private SnapshotPublisher(String source, Path directory, InetSocketAddress address) {
+        this.source = source;
+        this.directory = directory;
+        this.address = address;
+    }
+
+    public static SnapshotPublisher toDirectory(Path directory) throws IOException {
+        return toDirectory(directory, defaultSource());
+    }
+
+    public static SnapshotPublisher toDirectory(Path directory, String source) throws IOException {
+        Files.createDirectories(directory);
+        return new SnapshotPublisher(source, directory, null);
+    }
+
+    public static SnapshotPublisher toSocket(InetSocketAddress address) {
+        return toSocket(address, defaultSource());
+    }
+
+    public static SnapshotPublisher toSocket(InetSocketAddress address, String source) {
+        return new SnapshotPublisher(source, null, address);
+    }
+
+    /**
+     * @return pid@host and start time of JVM, unique even after restart
+     */
+    public static String defaultSource() {
+        RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+        return runtime.getName() + '-' + runtime.getStartTime();
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    @Override
+    public synchronized void report(Snapshot snapshot) throws IOException {
+        SnapshotAggregate report = SnapshotAggregate.of(source, sequence.incrementAndGet(), snapshot);
+
+        if (directory != null) {
+            aggregate = aggregate.merge(report);
+            written = false;
+        } else {
+            send(report.toBytes());
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (!written) {
+            write(aggregate.toBytes());
+            written = true;
+        }
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        Path file = directory.resolve(fileName(source));
+        Path temp = directory.resolve(fileName(source) + ".tmp");
+
+        Files.write(temp, bytes);
+        // readers see either previous or whole new file
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static String fileName(String source) {
+        return source.replaceAll("[^A-Za-z0-9._@-]", "_") + SUFFIX;
+    }
+
+    private void send(byte[] bytes) {
+        try {
+            if (out == null) {
+                socket = new Socket();
+                socket.connect(address, CONNECT_TIMEOUT);
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            }
+
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.flush();
+        } catch (IOException e) {
+            LOGGER.debug("Report is dropped, aggregator is unavailable: " + address, e);
+            disconnect();
+        }
+    }
+
+    private void disconnect() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+        socket = null;
+        out = null;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            disconnect();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Allocation-free formatting of log's values directly into {@link StringBuilder}.
+ * Output is the same as of {@code DurationFormatUtils.formatDuration(millis, "HH:mm:ss")},
+ * {@code new DecimalFormat("0").format(percent)} and {@code StringUtils.repeat(" ", count)}.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+final class TextFormat {
+
+    private static final long MILLIS_PER_SECOND = 1000;
+    private static final long MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+    private static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+
+    // bigger values are not exact in long after rounding
+    private static final float MAX_ROUNDED_PERCENT = 1e15f;
+
+    private static final DecimalFormatSymbols SYMBOLS = new DecimalFormat("0").getDecimalFormatSymbols();
+
+    private TextFormat() {
+    }
+
+    /**
+     * HH:mm:ss
+     */
+    static void appendDuration(StringBuilder log, long millis) {
+        int hours = (int) (millis / MILLIS_PER_HOUR);
+        millis -= hours * MILLIS_PER_HOUR;
+        int minutes = (int) (millis / MILLIS_PER_MINUTE);
+        millis -= minutes * MILLIS_PER_MINUTE;
+        int seconds = (int) (millis / MILLIS_PER_SECOND);
+
+        appendTwoDigits(log, hours);
+        log.append(':');
+        appendTwoDigits(log, minutes);
+        log.append(':');
+        appendTwoDigits(log, seconds);
+    }
+
+    private static void appendTwoDigits(StringBuilder log, int value) {
+        if (value >= 0 && value < 10) {
+            log.append('0');
+        }
+        log.append(value);
+    }
+
+    /**
+     * Rounded half-even to integer
+     */
+    static void appendPercent(StringBuilder log, float percent) {
+        if (Float.isNaN(percent) || Float.isInfinite(percent) || Math.abs(percent) >= MAX_ROUNDED_PERCENT) {
+            // rare, so allocation is allowed
+            log.append(new DecimalFormat("0").format(percent));
+            return;
+        }
+
+
+        if (percent < 0 || Float.floatToRawIntBits(percent) == Integer.MIN_VALUE) { // -0.0 as well
+            log.append(SYMBOLS.getMinusSign());
+        }
+
+        long rounded = (long) Math.rint(Math.abs((double) percent));
+        char zero = SYMBOLS.getZeroDigit();
+
+        if (zero == '0') {
+            log.append(rounded);
+        } else {
+            int start = log.length();
+            log.append(rounded);
+            for (int i = start; i < log.length(); i++) {
+                log.setCharAt(i, (char) (zero + log.charAt(i) - '0'));
+            }
+        }
+    }
+
+    /**
+     * +5 or -5
+     */
+    static void appendDelta(StringBuilder log, long delta) {
+        if (delta >= 0) {
+            log.append('+');
+        }
+        log.append(delta);
+    }
+
+    /**
+     * 0.3, 9.9, 10, 1250: one decimal for small rates only
+     */
+    static void appendRate(StringBuilder log, double rate) {
+        if (rate < 0) {
+            log.append('-');
+            rate = -rate;
+        }
+
+        long tenths = Math.round(rate * 10);
+        if (tenths < 100) {
+            log.append(tenths / 10).append('.').append(tenths % 10);
+        } else {
+            log.append(Math.round(rate));
+        }
+    }
+
+    static void appendSpaces(StringBuilder log, int count) {
+        for (int i = 0; i < count; i++) {
+            log.append(' ');
+        }
+    }
+
+    /**
+     * @return {@code String.valueOf(value).length()}
+     */
+    static int length(long value) {
+        if (value == Long.MIN_VALUE) {
+            return 20;
+        }
+
+        int length = 1;
+
+        if (value < 0) {
+            length++;
+            value = -value;
+        }
+
+        while (value >= 10) {
+            value /= 10;
+            length++;
+        }
+
+        return length;
+    }
+}
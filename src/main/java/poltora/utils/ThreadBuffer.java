@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one thread for sensors of one measurer, indexed by sensor.
+ * <p>
+ * Only owner thread writes them, so increment is ordered store (lazySet) instead of CAS, which is plain store on x86.
+ * Readers always see published counts, so nothing has to be flushed for report. When owner thread is dead
+ * its counts are final and are folded into shared counters by reporting thread.
+ * <p>
+ * Each counter is owned by {@link Slot} of sensor. Index of evicted sensor is reused by slot of another sensor,
+ * then owner thread itself moves the rest of previous slot into its shared counter before counting the new one,
+ * so counters are never reset by other threads and new sensor never inherits counts.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+final class ThreadBuffer {
+
+    private static final int INITIAL_SIZE = 8;
+
+    private final Thread owner = Thread.currentThread();
+    private volatile Cells cells;
+
+    ThreadBuffer(int size) {
+        cells = new Cells(Math.max(size, INITIAL_SIZE));
+    }
+
+    /**
+     * Owner thread only
+     */
+    void add(Slot slot, long delta) {
+        Cells cells = this.cells;
+        int index = slot.index;
+
+        if (index >= cells.length) {
+            cells = grow(index);
+        }
+        if (cells.slots.get(index) != slot) {
+            reassign(cells, slot);
+        }
+
+        cells.counts.lazySet(index, cells.counts.get(index) + delta);
+    }
+
+    private void reassign(Cells cells, Slot slot) {
+        int index = slot.index;
+        Slot previous = cells.slots.get(index);
+        long count = cells.counts.get(index);
+
+        if (previous != null && count != 0) {
+            previous.shared.add(count);
+        }
+        cells.counts.lazySet(index, 0);
+        cells.slots.lazySet(index, slot);
+    }
+
+    private Cells grow(int index) {
+        Cells cells = this.cells;
+        Cells grown = new Cells(Math.max(cells.length * 2, index + 1));
+
+        for (int i = 0; i < cells.length; i++) {
+            grown.counts.lazySet(i, cells.counts.get(i));
+            grown.slots.lazySet(i, cells.slots.get(i));
+        }
+
+        this.cells = grown;
+        return grown;
+    }
+
+    /**
+     * @return count of slot, 0 if its index is reused already
+     */
+    long get(Slot slot) {
+        Cells cells = this.cells;
+        if (slot.index >= cells.length) return 0;
+
+
+        long count = cells.counts.get(slot.index);
+        return cells.slots.get(slot.index) == slot ? count : 0;
+    }
+
+    /**
+     * @return whether counter of slot may be not zero
+     */
+    boolean holds(Slot slot) {
+        Cells cells = this.cells;
+        return slot.index < cells.length && cells.slots.get(slot.index) == slot;
+    }
+
+    /**
+     * Dead owner thread only, counts are moved into shared counters of their slots
+     */
+    void fold() {
+        Cells cells = this.cells;
+
+        for (int i = 0; i < cells.length; i++) {
+            Slot slot = cells.slots.get(i);
+            long count = cells.counts.get(i);
+            if (slot != null && count != 0) {
+                slot.shared.add(count);
+            }
+        }
+    }
+
+    /**
+     * When it is false, all counts of owner thread are visible (JLS 17.4.4)
+     */
+    boolean isAlive() {
+        return owner.isAlive();
+    }
+
+
+    /**
+     * Index of thread's counters which is given to sensor, the same index of another sensor is another slot
+     */
+    static final class Slot {
+        final int index;
+        private final LongAdder shared; // of sensor
+
+        Slot(int index, LongAdder shared) {
+            this.index = index;
+            this.shared = shared;
+        }
+    }
+
+
+    /**
+     * Counters with their slots, they are published together
+     */
+    private static final class Cells {
+        private final int length;
+        private final AtomicLongArray counts;
+        private final AtomicReferenceArray<Slot> slots;
+
+        Cells(int length) {
+            this.length = length;
+            this.counts = new AtomicLongArray(length);
+            this.slots = new AtomicReferenceArray<>(length);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Readings of current thread by {@link ThreadMXBean}, nanoseconds or bytes, -1 when they are not available
+ * (not supported by JVM, disabled, virtual thread).
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+final class ThreadProbe {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    static final boolean CPU_TIME = enableCpuTime();
+    static final boolean ALLOCATED_BYTES = enableAllocatedBytes();
+
+    private ThreadProbe() {
+    }
+
+    private static boolean enableCpuTime() {
+        try {
+            if (!THREADS.isCurrentThreadCpuTimeSupported()) {
+                return false;
+            }
+            if (!THREADS.isThreadCpuTimeEnabled()) {
+                THREADS.setThreadCpuTimeEnabled(true);
+            }
+            return true;
+        } catch (SecurityException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static boolean enableAllocatedBytes() {
+        try {
+            if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+                return false;
+            }
+
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (!threads.isThreadAllocatedMemorySupported()) {
+                return false;
+            }
+            if (!threads.isThreadAllocatedMemoryEnabled()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+            }
+            return true;
+        } catch (SecurityException | UnsupportedOperationException | LinkageError e) {
+            // not HotSpot-compatible JVM
+            return false;
+        }
+    }
+
+    static long cpuTime() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    static long userTime() {
+        return CPU_TIME ? THREADS.getCurrentThreadUserTime() : -1;
+    }
+
+    /**
+     * @return bytes allocated by current thread since its start
+     */
+    static long allocatedBytes() {
+        return ALLOCATED_BYTES
+                ? ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId())
+                : -1;
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Reads recording of {@link TimeSeriesRecorder}, also while it is written.
+ * As command line tool it converts recording into CSV or summary statistics:
+ * <pre>
+ * java -cp performance-measurer.jar poltora.utils.TimeSeriesReader csv|summary directory [prefix]
+ * </pre>
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class TimeSeriesReader {
+
+    private static final PerformanceMeasurer.Window[] WINDOWS = PerformanceMeasurer.Window.values();
+    private static final String TOTAL_LABEL = "(total)";
+
+    private final Path directory;
+    private final String prefix;
+
+    public TimeSeriesReader(Path directory) {
+        this(directory, TimeSeriesRecorder.DEFAULT_PREFIX);
+    }
+
+    public TimeSeriesReader(Path directory, String prefix) {
+        this.directory = directory;
+        this.prefix = prefix;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !(args[0].equals("csv") || args[0].equals("summary"))) {
+            System.err.println("Usage: TimeSeriesReader csv|summary directory [prefix]");
+            System.exit(1);
+        }
+
+
+        TimeSeriesReader reader = new TimeSeriesReader(
+                Paths.get(args[1]),
+                args.length > 2 ? args[2] : TimeSeriesRecorder.DEFAULT_PREFIX
+        );
+
+        if (args[0].equals("csv")) {
+            reader.writeCsv(System.out);
+        } else {
+            reader.writeSummary(System.out);
+        }
+        System.out.flush();
+    }
+
+    /**
+     * Intervals of all segments in order of recording
+     */
+    public void read(Consumer<Interval> consumer) throws IOException {
+        for (Path segment : segments(directory, prefix)) {
+            readSegment(segment, consumer);
+        }
+    }
+
+    public List<Interval> readAll() throws IOException {
+        List<Interval> intervals = new ArrayList<>();
+        read(intervals::add);
+        return intervals;
+    }
+
+    private static void readSegment(Path segment, Consumer<Interval> consumer) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer = mapped;
+        }
+
+        if (buffer.remaining() < TimeSeriesRecorder.HEADER_SIZE || buffer.getInt() != TimeSeriesRecorder.MAGIC) {
+            throw new IOException("Not a recording: " + segment);
+        }
+        int version = buffer.getInt();
+        if (version < 1 || version > TimeSeriesRecorder.VERSION) {
+            throw new IOException(String.format("Unsupported version %d of %s", version, segment));
+        }
+        buffer.position(TimeSeriesRecorder.HEADER_SIZE);
+
+
+        Map<Integer, String> names = new HashMap<>();
+
+        while (buffer.remaining() > 5) {
+            int start = buffer.position();
+            byte type = buffer.get();
+            int length = buffer.getInt();
+
+            if (type == 0) break; // end of written data
+
+            if (type == TimeSeriesRecorder.NAME) {
+                int id = buffer.getInt();
+                byte[] name = new byte[version == 1 ? buffer.getShort() & 0xFFFF : buffer.getInt()];
+                buffer.get(name);
+                names.put(id, new String(name, StandardCharsets.UTF_8));
+
+            } else if (type == TimeSeriesRecorder.INTERVAL) {
+                long time = buffer.getLong();
+                String measurer = names.get(buffer.getInt());
+                long interval = buffer.getLong();
+                int number = version == 1 ? buffer.getShort() & 0xFFFF : buffer.getInt();
+
+                List<Entry> entries = new ArrayList<>(number);
+                for (int i = 0; i < number; i++) {
+                    entries.add(readEntry(buffer, names.get(buffer.getInt())));
+                }
+
+                // total of version 1 is the last entry
+                Entry total = version == 1 ? entries.remove(number - 1) : readEntry(buffer, null);
+                consumer.accept(new Interval(time, measurer, interval, entries, new Entry(null, total.count, total.delta, total.rates)));
+            }
+
+            // unknown records are skipped
+            buffer.position(start + length);
+        }
+    }
+
+    private static Entry readEntry(ByteBuffer buffer, String sensor) {
+        long count = buffer.getLong();
+        long delta = buffer.getLong();
+        double[] rates = new double[WINDOWS.length];
+        for (int w = 0; w < rates.length; w++) {
+            rates[w] = buffer.getDouble();
+        }
+
+        return new Entry(sensor, count, delta, rates);
+    }
+
+    /**
+     * time,measurer,sensor,count,delta,interval,rate_1m,rate_5m,rate_15m - interval in milliseconds, rates per second,
+     * the total of measurer has empty sensor
+     */
+    public void writeCsv(Appendable out) throws IOException {
+        StringBuilder header = new StringBuilder("time,measurer,sensor,count,delta,interval");
+        for (PerformanceMeasurer.Window window : WINDOWS) {
+            header.append(",rate_").append(window.getLabel());
+        }
+        out.append(header).append('\n');
+
+
+        StringBuilder row = new StringBuilder();
+        for (Interval interval : readAll()) {
+            for (Entry entry : interval.getEntriesAndTotal()) {
+                row.setLength(0);
+
+                row.append(interval.getTime()).append(',');
+                CsvReporter.appendValue(row, interval.getMeasurer());
+                row.append(',');
+                if (entry.getSensor() != null) {
+                    CsvReporter.appendValue(row, entry.getSensor());
+                }
+                row.append(',').append(entry.getCount());
+                row.append(',').append(entry.getDelta());
+                row.append(',').append(TimeUnit.NANOSECONDS.toMillis(interval.getInterval()));
+                for (PerformanceMeasurer.Window window : WINDOWS) {
+                    row.append(',').append(entry.getRate(window));
+                }
+
+                out.append(row).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Per sensor of measurer and per total of measurer ({@code (total)}): number of intervals, time range,
+     * the last count, min/avg/max rate of intervals
+     */
+    public void writeSummary(Appendable out) throws IOException {
+        Map<String, Statistics> statistics = new LinkedHashMap<>();
+
+        read(interval -> {
+            for (Entry entry : interval.getEntriesAndTotal()) {
+                String sensor = entry.getSensor() != null ? entry.getSensor() : TOTAL_LABEL;
+                statistics.computeIfAbsent(
+                        interval.getMeasurer() + (entry.getSensor() != null ? "\t" : "\n") + sensor,
+                        key -> new Statistics(interval.getMeasurer(), sensor)
+                ).add(interval, entry);
+            }
+        });
+
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        out.append(String.format("%-40s %-20s %9s %19s %19s %15s %12s %12s %12s%n",
+                "measurer", "sensor", "intervals", "from", "to", "count", "min r/s", "avg r/s", "max r/s"));
+
+        for (Statistics s : statistics.values()) {
+            out.append(String.format("%-40s %-20s %9d %19s %19s %15d %12.1f %12.1f %12.1f%n",
+                    s.measurer, s.sensor, s.intervals,
+                    format.format(new Date(s.from)), format.format(new Date(s.to)),
+                    s.count, s.minRate, s.getAverageRate(), s.maxRate));
+        }
+    }
+
+    static List<Path> segments(Path directory, String prefix) throws IOException {
+        List<Path> segments = new ArrayList<>();
+
+        if (!Files.isDirectory(directory)) return segments;
+
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "-*" + TimeSeriesRecorder.SUFFIX)) {
+            for (Path path : stream) {
+                if (sequence(path, prefix) > 0) {
+                    segments.add(path);
+                }
+            }
+        }
+
+        // names have fixed width
+        Collections.sort(segments);
+
+        return segments;
+    }
+
+    static Path segment(Path directory, String prefix, long sequence) {
+        return directory.resolve(String.format("%s-%06d%s", prefix, sequence, TimeSeriesRecorder.SUFFIX));
+    }
+
+    /**
+     * @return 0 if path is not a segment
+     */
+    static long sequence(Path segment, String prefix) {
+        String name = segment.getFileName().toString();
+        String number = name.substring(prefix.length() + 1, name.length() - TimeSeriesRecorder.SUFFIX.length());
+
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+
+    private static class Statistics {
+        private final String measurer;
+        private final String sensor;
+        private int intervals;
+        private long from;
+        private long to;
+        private long count;
+        private long delta;
+        private long nanos;
+        private double minRate = Double.MAX_VALUE;
+        private double maxRate;
+
+        private Statistics(String measurer, String sensor) {
+            this.measurer = measurer;
+            this.sensor = sensor;
+        }
+
+        private void add(Interval interval, Entry entry) {
+            if (intervals == 0) from = interval.getTime();
+            intervals++;
+            to = interval.getTime();
+            count = entry.getCount();
+            delta += entry.getDelta();
+            nanos += interval.getInterval();
+
+            double rate = entry.getDelta() * 1e9 / Math.max(interval.getInterval(), 1);
+            minRate = Math.min(minRate, rate);
+            maxRate = Math.max(maxRate, rate);
+        }
+
+        private double getAverageRate() {
+            return delta * 1e9 / Math.max(nanos, 1);
+        }
+    }
+
+
+    /**
+     * Report of measurer
+     */
+    public static final class Interval {
+
+        private final long time;
+        private final String measurer;
+        private final long interval;
+        private final List<Entry> entries;
+        private final Entry total;
+
+        private Interval(long time, String measurer, long interval, List<Entry> entries, Entry total) {
+            this.time = time;
+            this.measurer = measurer;
+            this.interval = interval;
+            this.entries = Collections.unmodifiableList(entries);
+            this.total = total;
+        }
+
+        /**
+         * @return millis since epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public String getMeasurer() {
+            return measurer;
+        }
+
+        /**
+         * @return real nanoseconds since previous report
+         */
+        public long getInterval() {
+            return interval;
+        }
+
+        /**
+         * @return sensors of measurer
+         */
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return the total of measurer, its sensor is null
+         */
+        public Entry getTotal() {
+            return total;
+        }
+
+        private List<Entry> getEntriesAndTotal() {
+            List<Entry> all = new ArrayList<>(entries.size() + 1);
+            all.addAll(entries);
+            all.add(total);
+            return all;
+        }
+
+        public Entry getEntry(String sensor) {
+            for (Entry entry : entries) {
+                if (entry.getSensor().equals(sensor)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+    }
+
+
+    public static final class Entry {
+
+        private final String sensor;
+        private final long count;
+        private final long delta;
+        private final double[] rates;
+
+        private Entry(String sensor, long count, long delta, double[] rates) {
+            this.sensor = sensor;
+            this.count = count;
+            this.delta = delta;
+            this.rates = rates;
+        }
+
+        public String getSensor() {
+            return sensor;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getDelta() {
+            return delta;
+        }
+
+        public double getRate(PerformanceMeasurer.Window window) {
+            return rates[window.ordinal()];
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends each report to memory-mapped segment files {@code <prefix>-000001.pmts}, {@code <prefix>-000002.pmts}, ...
+ * New segment is started when report doesn't fit into current one, the oldest segments may be deleted.
+ * <p>
+ * Segment is header and records; each record starts with type byte, which is written the last,
+ * so the first zero type is the end of written data (even after crash):
+ * <pre>
+ * header:   int magic 'PMTS', int version, long sequence, long created millis, long reserved
+ * name:     byte 1, int record length, int id, int length, UTF-8 bytes      - before the first use of id in segment
+ * interval: byte 2, int record length, long time millis, int measurer id, long interval nanos, int number,
+ *           number * (int sensor id, long count, long delta, double rate 1m, double rate 5m, double rate 15m),
+ *           total of measurer (long count, long delta, double rate 1m, double rate 5m, double rate 15m)
+ * </pre>
+ * Version 1 had short lengths and numbers and the total as the last entry named {@code sum}, it is still read.
+ * Cost of report is constant for the same sensors: nothing is allocated but names of new sensors.
+ * Read by {@link TimeSeriesReader}.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class TimeSeriesRecorder implements Reporter {
+
+    static final int MAGIC = 0x504D5453; // PMTS
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 32;
+    static final byte NAME = 1;
+    static final byte INTERVAL = 2;
+    static final String SUFFIX = ".pmts";
+
+    private static final int RECORD_HEADER_SIZE = 1 + 4;
+    private static final int TOTAL_SIZE = 8 + 8 + 3 * 8;
+    private static final int INTERVAL_SIZE = RECORD_HEADER_SIZE + 8 + 4 + 8 + 4 + TOTAL_SIZE;
+    private static final int ENTRY_SIZE = 4 + TOTAL_SIZE;
+    private static final PerformanceMeasurer.Window[] WINDOWS = PerformanceMeasurer.Window.values();
+
+    public static final String DEFAULT_PREFIX = "measurers";
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private final Path directory;
+    private final String prefix;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    // names of measurers & sensors
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<byte[]> names = new ArrayList<>();
+    private final BitSet written = new BitSet(); // names of current segment
+    private int[] entryIds = new int[16];
+
+    private long sequence;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    public TimeSeriesRecorder(Path directory) throws IOException {
+        this(directory, DEFAULT_PREFIX, DEFAULT_SEGMENT_SIZE, 0);
+    }
+
+    /**
+     * @param maxSegments the oldest segments are deleted, 0 - all segments are kept
+     */
+    public TimeSeriesRecorder(Path directory, String prefix, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Segment size is too small: " + segmentSize);
+        }
+
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        Files.createDirectories(directory);
+
+        // recording is continued by new segment
+        List<Path> segments = TimeSeriesReader.segments(directory, prefix);
+        sequence = segments.isEmpty() ? 0 : TimeSeriesReader.sequence(segments.get(segments.size() - 1), prefix);
+    }
+
+    @Override
+    public synchronized void report(Snapshot snapshot) throws IOException {
+        List<Snapshot.SensorReading> sensors = snapshot.getSensors();
+        int number = sensors.size();
+
+        if (entryIds.length < number) {
+            entryIds = new int[Math.max(number, entryIds.length * 2)];
+        }
+
+        int measurerId = id(snapshot.getName());
+        for (int i = 0; i < number; i++) {
+            entryIds[i] = id(sensors.get(i).getName());
+        }
+
+
+        int intervalSize = INTERVAL_SIZE + number * ENTRY_SIZE;
+        if (HEADER_SIZE + namesSize(measurerId, number, true) + intervalSize > segmentSize) {
+            throw new IOException(String.format("Report of [%s] is bigger than segment", snapshot.getName()));
+        }
+
+        if (buffer == null || buffer.remaining() < namesSize(measurerId, number, false) + intervalSize) {
+            roll();
+        }
+
+
+        writeName(measurerId);
+        for (int i = 0; i < number; i++) {
+            writeName(entryIds[i]);
+        }
+
+
+        int start = begin();
+        buffer.putLong(snapshot.getTime());
+        buffer.putInt(measurerId);
+        buffer.putLong(snapshot.getInterval());
+        buffer.putInt(number);
+
+        for (int i = 0; i < number; i++) {
+            Snapshot.SensorReading sensor = sensors.get(i);
+
+            buffer.putInt(entryIds[i]);
+            buffer.putLong(sensor.getCount());
+            buffer.putLong(sensor.getDelta());
+            for (PerformanceMeasurer.Window window : WINDOWS) {
+                buffer.putDouble(sensor.getRate(window));
+            }
+        }
+
+        buffer.putLong(snapshot.getSum());
+        buffer.putLong(snapshot.getDelta());
+        for (PerformanceMeasurer.Window window : WINDOWS) {
+            buffer.putDouble(snapshot.getRate(window));
+        }
+
+        end(start, INTERVAL);
+    }
+
+    private int id(String name) {
+        Integer id = ids.get(name);
+
+        if (id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+
+        return id;
+    }
+
+    /**
+     * @param all of names, or only of which are not written into current segment
+     */
+    private int namesSize(int measurerId, int number, boolean all) {
+        int size = 0;
+
+        if (all || !written.get(measurerId)) {
+            size += nameSize(measurerId);
+        }
+        for (int i = 0; i < number; i++) {
+            if (all || !written.get(entryIds[i])) {
+                size += nameSize(entryIds[i]);
+            }
+        }
+
+        return size;
+    }
+
+    private int nameSize(int id) {
+        return RECORD_HEADER_SIZE + 4 + 4 + names.get(id).length;
+    }
+
+    private void writeName(int id) {
+        if (written.get(id)) return;
+
+
+        byte[] name = names.get(id);
+
+        int start = begin();
+        buffer.putInt(id);
+        buffer.putInt(name.length);
+        buffer.put(name);
+        end(start, NAME);
+
+        written.set(id);
+    }
+
+    private int begin() {
+        int start = buffer.position();
+
+        buffer.put((byte) 0);
+        buffer.putInt(0);
+
+        return start;
+    }
+
+    /**
+     * Record becomes visible
+     */
+    private void end(int start, byte type) {
+        buffer.putInt(start + 1, buffer.position() - start);
+        buffer.put(start, type);
+    }
+
+    private void roll() throws IOException {
+        closeSegment();
+
+        sequence++;
+        Path file = TimeSeriesReader.segment(directory, prefix, sequence);
+
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(sequence);
+        buffer.putLong(System.currentTimeMillis());
+        buffer.putLong(0);
+
+        written.clear();
+
+
+        if (maxSegments > 0) {
+            List<Path> segments = TimeSeriesReader.segments(directory, prefix);
+            for (int i = 0; i < segments.size() - maxSegments; i++) {
+                Files.deleteIfExists(segments.get(i));
+            }
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeSegment();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+/**
+ * Keeps {@link PerformanceMeasurer.Timer} which is current for {@link PerformanceMeasurer#start()},
+ * {@link PerformanceMeasurer#stop()} and {@link PerformanceMeasurer#time()}.
+ * <p>
+ * Timer bound by {@link PerformanceMeasurer.Timer#run(Runnable)} is current within task, otherwise each thread has its own one.
+ * On Java 21+ binding is {@code ScopedValue} (see src/main/java11), so nothing stays in thread-local map of virtual thread
+ * after task, on Java 8 it falls back to swapping of thread's timer.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+abstract class TimerContext {
+
+    static final TimerContext INSTANCE = load();
+
+    private static TimerContext load() {
+        try {
+            return (TimerContext) Class.forName("poltora.utils.ScopedValueTimerContext")
+                    .getDeclaredConstructor()
+                    .newInstance();
+        } catch (Throwable e) {
+            // ScopedValue is absent or built without java11 profile
+            return new ThreadLocalTimerContext();
+        }
+    }
+
+    /**
+     * Timer of thread, when none is bound
+     */
+    final ThreadLocal<PerformanceMeasurer.Timer> timers = ThreadLocal.withInitial(PerformanceMeasurer.Timer::new);
+
+    abstract PerformanceMeasurer.Timer current();
+
+    abstract void run(PerformanceMeasurer.Timer timer, Runnable task);
+
+
+    static final class ThreadLocalTimerContext extends TimerContext {
+
+        @Override
+        PerformanceMeasurer.Timer current() {
+            return timers.get();
+        }
+
+        @Override
+        void run(PerformanceMeasurer.Timer timer, Runnable task) {
+            PerformanceMeasurer.Timer previous = timers.get();
+
+            timers.set(timer);
+            try {
+                task.run();
+            } finally {
+                timers.set(previous);
+            }
+        }
+    }
+}
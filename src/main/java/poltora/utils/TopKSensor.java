@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Heavy hitters of unbounded key space (urls, shop ids, etc.) in fixed memory, instead of sensor per key.
+ * <p>
+ * Counts of keys are estimated by Count-Min sketch of the current interval, frequent keys are kept as candidates
+ * in small table, where key replaces the weaker of its two slots. Both are updated by CAS only.
+ * Top keys of interval are reported with upper bound of their overestimation,
+ * their total is measured exactly by isolated sensor of the same name.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public final class TopKSensor {
+
+    static final int DEFAULT_TOP = 10;
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1024; // power of 2
+    private static final int CANDIDATES_PER_TOP = 4;
+
+    private final String name;
+    private final int top;
+    private final PerformanceMeasurer.Sensor total;
+
+    // current and cleared one, which becomes current on the next interval
+    private final AtomicLongArray[] sketches = {
+            new AtomicLongArray(DEPTH * WIDTH),
+            new AtomicLongArray(DEPTH * WIDTH)
+    };
+    private volatile int current;
+    private final AtomicReferenceArray<String> candidates;
+
+    // top of the latest interval, reporting thread only
+    private final String[] keys;
+    private final long[] counts;
+    private int size;
+    private long error;
+
+    TopKSensor(String name, int top, PerformanceMeasurer measurer) {
+        if (top < 1) {
+            throw new IllegalArgumentException("Top must be positive: " + top);
+        }
+
+        this.name = name;
+        this.top = top;
+        this.total = measurer.setIsolated(name).getSensor(name);
+        this.candidates = new AtomicReferenceArray<>(Integer.highestOneBit(top * CANDIDATES_PER_TOP * 2 - 1));
+        this.keys = new String[top];
+        this.counts = new long[top];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getTop() {
+        return top;
+    }
+
+    public void measure(String key) {
+        measure(key, 1);
+    }
+
+    public void measure(String key, long delta) {
+        total.measure(delta);
+
+
+        int hash = key.hashCode();
+        int h1 = spread(hash);
+        int h2 = spread(hash * 0x9E3779B9) | 1;
+
+        AtomicLongArray sketch = sketches[current];
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, sketch.addAndGet(index(row, h1, h2), delta));
+        }
+
+        offer(key, h1, h2, estimate, sketch);
+    }
+
+    /**
+     * Key takes free slot or replaces weaker candidate of its two slots
+     */
+    private void offer(String key, int h1, int h2, long estimate, AtomicLongArray sketch) {
+        int mask = candidates.length() - 1;
+        int a = h1 & mask;
+        int b = h2 & mask;
+
+        String first = candidates.get(a);
+        if (key.equals(first)) return;
+        String second = candidates.get(b);
+        if (key.equals(second)) return;
+
+
+        if (first == null) {
+            candidates.compareAndSet(a, null, key);
+        } else if (second == null) {
+            candidates.compareAndSet(b, null, key);
+        } else {
+            long firstEstimate = estimate(sketch, first);
+            long secondEstimate = estimate(sketch, second);
+
+            if (firstEstimate <= secondEstimate) {
+                if (firstEstimate < estimate) {
+                    candidates.compareAndSet(a, first, key);
+                }
+            } else if (secondEstimate < estimate) {
+                candidates.compareAndSet(b, second, key);
+            }
+        }
+    }
+
+    private static long estimate(AtomicLongArray sketch, String key) {
+        int hash = key.hashCode();
+        int h1 = spread(hash);
+        int h2 = spread(hash * 0x9E3779B9) | 1;
+
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, sketch.get(index(row, h1, h2)));
+        }
+        return estimate;
+    }
+
+    private static int index(int row, int h1, int h2) {
+        return row * WIDTH + ((h1 + row * h2) & (WIDTH - 1));
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+
+
+    /**
+     * Finds top of the finished interval, reporting thread only.
+     * The other sketch, which is read by the previous take, is cleared and becomes current, then the finished one is read;
+     * so finished sketch is reset only by the next take, after it is read, and updates which are late for switch are counted.
+     * Candidates are kept between intervals, keys without counts in the finished interval are not reported.
+     */
+    void take() {
+        int finished = current;
+        AtomicLongArray next = sketches[1 - finished];
+        for (int i = 0; i < next.length(); i++) {
+            next.set(i, 0);
+        }
+        current = 1 - finished;
+
+
+        AtomicLongArray sketch = sketches[finished];
+
+        long sum = 0;
+        for (int i = 0; i < WIDTH; i++) {
+            sum += sketch.get(i);
+        }
+        // e / width of interval's total, with probability 1 - e^-depth
+        error = (long) Math.ceil(Math.E * sum / WIDTH);
+
+
+        size = 0;
+        for (int i = 0; i < candidates.length(); i++) {
+            String key = candidates.get(i);
+            if (key == null || contains(key)) continue;
+
+            long count = estimate(sketch, key);
+            if (count > 0) {
+                add(key, count);
+            }
+        }
+    }
+
+    private boolean contains(String key) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i].equals(key)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sorted insertion, the least one is dropped
+     */
+    private void add(String key, long count) {
+        int i = size;
+        if (i == top) {
+            if (counts[top - 1] >= count) return;
+            i--;
+        } else {
+            size++;
+        }
+
+        while (i > 0 && counts[i - 1] < count) {
+            keys[i] = keys[i - 1];
+            counts[i] = counts[i - 1];
+            i--;
+        }
+        keys[i] = key;
+        counts[i] = count;
+    }
+
+    int size() {
+        return size;
+    }
+
+    String getKey(int index) {
+        return keys[index];
+    }
+
+    long getCount(int index) {
+        return counts[index];
+    }
+
+    /**
+     * @return upper bound of overestimation of the latest interval's counts
+     */
+    long getError() {
+        return error;
+    }
+
+    /**
+     * url top: /a 1520, /b 800, /c 12 (error ≤3);
+     */
+    void log(StringBuilder log) {
+        if (size == 0) return;
+
+
+        log.append(name).append(" top: ");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) log.append(", ");
+            log.append(keys[i]).append(' ').append(counts[i]);
+        }
+        if (error > 0) {
+            log.append(" (error ≤").append(error).append(')');
+        }
+        log.append(";  ");
+    }
+}
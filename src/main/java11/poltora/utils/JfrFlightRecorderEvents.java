@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits events by {@code jdk.jfr}. Listener of recorder keeps flag of running recordings,
+ * so nothing is created while there are no recordings.
+ * <p>
+ * Interval events are enabled by default, section events are enabled by recording settings:
+ * <pre>
+ * jcmd &lt;pid&gt; JFR.start settings=profile +poltora.utils.Section#enabled=true
+ * </pre>
+ * Loaded reflectively by {@link FlightRecorderEvents}.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+final class JfrFlightRecorderEvents extends FlightRecorderEvents implements FlightRecorderListener {
+
+    private static final EventType INTERVAL = EventType.getEventType(IntervalEvent.class);
+    private static final EventType SECTION = EventType.getEventType(SectionEvent.class);
+
+    private volatile boolean recording;
+
+    JfrFlightRecorderEvents() {
+        // recorderInitialized() is called at once, when recorder is already initialized
+        FlightRecorder.addListener(this);
+    }
+
+    @Override
+    public void recorderInitialized(FlightRecorder recorder) {
+        recording = isRunning(recorder);
+    }
+
+    @Override
+    public void recordingStateChanged(Recording changed) {
+        recording = isRunning(FlightRecorder.getFlightRecorder());
+    }
+
+    private static boolean isRunning(FlightRecorder recorder) {
+        for (Recording recording : recorder.getRecordings()) {
+            if (recording.getState() == RecordingState.RUNNING) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    boolean isRecording() {
+        return recording;
+    }
+
+    @Override
+    void interval(String measurer, long interval, long sum, long delta, long throughput, long throughputMoment,
+                  double rate1m, double rate5m, double rate15m, String text) {
+        if (!INTERVAL.isEnabled()) return;
+
+
+        IntervalEvent event = new IntervalEvent();
+        event.measurer = measurer;
+        event.interval = interval;
+        event.sum = sum;
+        event.delta = delta;
+        event.throughput = throughput;
+        event.throughputMoment = throughputMoment;
+        event.rate1m = rate1m;
+        event.rate5m = rate5m;
+        event.rate15m = rate15m;
+        event.text = text;
+        event.commit();
+    }
+
+    @Override
+    Object beginSection(PerformanceMeasurer measurer, PerformanceMeasurer.Sensor sensor) {
+        if (!SECTION.isEnabled()) return null;
+
+
+        SectionEvent event = new SectionEvent();
+        event.measurer = measurer.getName();
+        event.sensor = sensor != null ? sensor.getName() : null;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endSection(Object started) {
+        SectionEvent event = (SectionEvent) started;
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.commit();
+        }
+    }
+
+
+    @Name("poltora.utils.Interval")
+    @Label("Measurer Report")
+    @Category("Performance Measurer")
+    @Description("Report of measurer for the latest interval")
+    @StackTrace(false)
+    static final class IntervalEvent extends Event {
+
+        @Label("Measurer")
+        String measurer;
+
+        @Label("Interval")
+        @Timespan(Timespan.NANOSECONDS)
+        long interval;
+
+        @Label("Sum")
+        @Description("Sum of common sensors")
+        long sum;
+
+        @Label("Delta")
+        @Description("Delta of sum since previous report")
+        long delta;
+
+        @Label("Throughput")
+        @Description("r/s")
+        long throughput;
+
+        @Label("Throughput Moment")
+        @Description("r/s of interval")
+        long throughputMoment;
+
+        @Label("Rate 1m")
+        double rate1m;
+
+        @Label("Rate 5m")
+        double rate5m;
+
+        @Label("Rate 15m")
+        double rate15m;
+
+        @Label("Text")
+        @Description("Logged line")
+        String text;
+    }
+
+
+    @Name("poltora.utils.Section")
+    @Label("Measured Section")
+    @Category("Performance Measurer")
+    @Description("Section of personal timer")
+    @Enabled(false)
+    static final class SectionEvent extends Event {
+
+        @Label("Measurer")
+        String measurer;
+
+        @Label("Sensor")
+        String sensor;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Binds timer by {@code ScopedValue} of Java 21+, which is found by method handles, so it is compiled for Java 11.
+ * Bound timer costs no thread-local entry. Its sections are not synchronized, so it is current only for the binding thread:
+ * subtasks of structured concurrency, which inherit the binding, use timers of their own threads.
+ * <p>
+ * Loaded reflectively by {@link TimerContext}, fails to load when {@code ScopedValue} is absent.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+final class ScopedValueTimerContext extends TimerContext {
+
+    private static final MethodHandle IS_BOUND;
+    private static final MethodHandle GET;
+    private static final MethodHandle RUN_WHERE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> scopedValue = Class.forName("java.lang.ScopedValue");
+            Class<?> carrier = Class.forName("java.lang.ScopedValue$Carrier");
+            Object key = scopedValue.getMethod("newInstance").invoke(null);
+
+            IS_BOUND = lookup.findVirtual(scopedValue, "isBound", MethodType.methodType(boolean.class))
+                    .bindTo(key);
+            GET = lookup.findVirtual(scopedValue, "get", MethodType.methodType(Object.class))
+                    .bindTo(key)
+                    .asType(MethodType.methodType(Binding.class));
+
+            // where(key, binding).run(task)
+            MethodHandle where = MethodHandles.insertArguments(
+                    lookup.findStatic(scopedValue, "where", MethodType.methodType(carrier, scopedValue, Object.class)),
+                    0, key
+            );
+            MethodHandle run = lookup.findVirtual(carrier, "run", MethodType.methodType(void.class, Runnable.class));
+            RUN_WHERE = MethodHandles.filterArguments(run, 0, where)
+                    .asType(MethodType.methodType(void.class, Binding.class, Runnable.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @Override
+    PerformanceMeasurer.Timer current() {
+        try {
+            if ((boolean) IS_BOUND.invokeExact()) {
+                Binding binding = (Binding) GET.invokeExact();
+                if (binding.thread == Thread.currentThread()) {
+                    return binding.timer;
+                }
+            }
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+
+        return timers.get();
+    }
+
+    @Override
+    void run(PerformanceMeasurer.Timer timer, Runnable task) {
+        try {
+            RUN_WHERE.invokeExact(new Binding(timer, Thread.currentThread()), task);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    private static final class Binding {
+        private final PerformanceMeasurer.Timer timer;
+        private final Thread thread;
+
+        Binding(PerformanceMeasurer.Timer timer, Thread thread) {
+            this.timer = timer;
+            this.thread = thread;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Resolves caller by lazy walking only through top frames of current stack.
+ * Measurers are cached per calling class ({@link ClassValue}) and per method.
+ * <p>
+ * Loaded reflectively by {@link CallerResolver}.
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+final class StackWalkerCallerResolver extends CallerResolver {
+
+    private static final StackWalker WALKER = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+
+    private static final Function<Stream<StackWalker.StackFrame>, StackWalker.StackFrame> CALLER =
+            frames -> frames
+                    .filter(frame -> !isInternal(frame.getDeclaringClass()))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalStateException("Caller is not found"));
+
+    private final ClassValue<CallerClass> callers = new ClassValue<CallerClass>() {
+        @Override
+        protected CallerClass computeValue(Class<?> type) {
+            return new CallerClass(type.getName());
+        }
+    };
+
+    private static boolean isInternal(Class<?> clazz) {
+        return clazz == PerformanceMeasurer.class || CallerResolver.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    CallerClass callerClass() {
+        return callers.get(WALKER.walk(CALLER).getDeclaringClass());
+    }
+
+    @Override
+    PerformanceMeasurer classMeasurer() {
+        return callers.get(WALKER.walk(CALLER).getDeclaringClass()).measurer();
+    }
+
+    @Override
+    PerformanceMeasurer methodMeasurer() {
+        StackWalker.StackFrame caller = WALKER.walk(CALLER);
+        return callers.get(caller.getDeclaringClass()).methodMeasurer(caller.getMethodName());
+    }
+
+    @Override
+    String callerSimpleClassName() {
+        return callers.get(WALKER.walk(CALLER).getDeclaringClass()).getSimpleName();
+    }
+
+    @Override
+    String callerMethodName() {
+        return WALKER.walk(CALLER).getMethodName();
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class BufferedTest {
+
+    @Test
+    public void countsOfFinishedThreadsAreFolded() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-buffered").setBuffered(true);
+        int threads = 4;
+        int events = 100_000;
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < events; i++) {
+                    measurer.success();
+                }
+                measurer.measure("bytes", 10);
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(threads, measurer.buffers());
+        assertEquals(threads * events, measurer.getSensor("success").sum());
+
+        measurer.makeSummary();
+        measurer.snapshot();
+
+        assertEquals(0, measurer.buffers());
+        assertEquals(threads * events, measurer.getSensor("success").sum());
+        assertEquals(threads * 10, measurer.getSensor("bytes").sum());
+        assertFalse(measurer.isUpdated());
+    }
+
+    @Test
+    public void countsOfLiveThreadAreReported() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-buffered-live").setBuffered(true);
+        CountDownLatch measured = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Thread worker = new Thread(() -> {
+            measurer.success(1000);
+            measurer.fail();
+            measured.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        worker.start();
+
+        try {
+            measured.await();
+            assertTrue(measurer.isUpdated());
+
+            measurer.makeSummary();
+            Snapshot snapshot = measurer.newSnapshot("");
+            measurer.snapshot();
+
+            assertEquals(1001, snapshot.getSum());
+            assertEquals(1, measurer.buffers());
+            assertFalse(measurer.isUpdated());
+        } finally {
+            release.countDown();
+            worker.join();
+        }
+
+        measurer.makeSummary();
+        assertEquals(0, measurer.buffers());
+        assertEquals(1000, measurer.getSensor("success").sum());
+    }
+
+    @Test
+    public void bufferedAndSharedSensors() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-buffered-mixed");
+        PerformanceMeasurer.Sensor shared = measurer.getSensor("shared");
+        measurer.setBuffered(true);
+        PerformanceMeasurer.Sensor buffered = measurer.getSensor("buffered");
+        shared.setBuffered(false);
+
+        Thread worker = new Thread(() -> {
+            shared.measure(3);
+            buffered.measure(5);
+        });
+        worker.start();
+        worker.join();
+        shared.measure();
+        buffered.measure();
+
+        measurer.makeSummary();
+
+        assertFalse(shared.isBuffered());
+        assertEquals(4, shared.sum());
+        assertEquals(6, buffered.sum());
+        assertEquals(10, measurer.newSnapshot("").getSum());
+        assertEquals(1, measurer.buffers());
+    }
+
+    @Test
+    public void indexOfEvictedSensorIsReused() {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-buffered-evicted").setBuffered(true);
+        PerformanceMeasurer.Sensor first = measurer.getSensor("tenant-1");
+        first.measure(7);
+
+        measurer.evict(first);
+        first.measure(); // in-flight event of held handle
+        measurer.makeSummary();
+
+        assertFalse(first.isBuffered());
+        assertEquals(8, first.sum());
+
+        PerformanceMeasurer.Sensor second = measurer.getSensor("tenant-2");
+        second.measure();
+        assertTrue(second.isBuffered());
+        assertEquals(1, measurer.indexes());
+        assertEquals(1, second.sum());
+
+        // revived sensor gets a new index
+        assertTrue(first == measurer.getSensor("tenant-1"));
+        first.measure();
+        assertTrue(first.isBuffered());
+        assertEquals(2, measurer.indexes());
+        assertEquals(9, first.sum());
+    }
+
+    @Test
+    public void reusedIndexDoesNotInheritCounts() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-buffered-inherit").setBuffered(true);
+        PerformanceMeasurer.Sensor first = measurer.getSensor("tenant-1");
+        CountDownLatch measured = new CountDownLatch(1);
+        CountDownLatch reused = new CountDownLatch(1);
+
+        Thread worker = new Thread(() -> {
+            first.measure(5);
+            measured.countDown();
+            try {
+                reused.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // the same index of another sensor
+            measurer.getSensor("tenant-2").measure(2);
+        });
+        worker.start();
+        measured.await();
+
+        measurer.evict(first);
+        PerformanceMeasurer.Sensor second = measurer.getSensor("tenant-2");
+        assertEquals(1, measurer.indexes());
+        second.measure();
+        assertEquals(1, second.sum());
+        assertEquals(5, first.sum());
+
+        reused.countDown();
+        worker.join();
+        measurer.makeSummary();
+
+        assertEquals(3, second.sum());
+        assertEquals(5, first.sum());
+    }
+
+    @Test
+    public void evictionDuringMeasuringLosesNothing() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-buffered-churn").setBuffered(true);
+        PerformanceMeasurer.Sensor sensor = measurer.getSensor("churn");
+        int threads = 3;
+        int events = 200_000;
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < events; i++) {
+                    sensor.measure();
+                    if (i % 1000 == 0) measurer.measure("other-" + id + "-" + i % 7);
+                }
+            });
+            workers[t].start();
+        }
+
+        // indexes are freed and reused while threads are counting
+        for (int i = 0; i < 200; i++) {
+            measurer.evict(sensor);
+            measurer.evict(measurer.getSensor("other-0-" + i % 7));
+            measurer.getSensor("churn");
+            sensor.sum();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        measurer.makeSummary();
+
+        assertEquals(threads * events, sensor.sum());
+    }
+
+    @Test
+    public void sharedSensorsAreNotIndexed() {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-buffered-none");
+        for (int i = 0; i < 100; i++) {
+            measurer.measure("sensor-" + i);
+        }
+
+        assertEquals(0, measurer.indexes());
+    }
+}
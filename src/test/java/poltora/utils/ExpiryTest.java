@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class ExpiryTest {
+
+    @Test
+    public void wheelChecksOnlyDueEntries() {
+        long start = 1_000_000;
+        ExpiryWheel wheel = new ExpiryWheel(1000, start);
+        int entries = 10_000;
+        long[] expired = new long[entries];
+
+        for (int i = 0; i < entries; i++) {
+            int index = i;
+            long deadline = start + (long) i * 360; // up to 1 hour
+            wheel.schedule(now -> {
+                assertTrue(now >= deadline);
+                expired[index] = now;
+                return 0;
+            }, deadline);
+        }
+
+        int checked = 0;
+        for (long now = start; now <= start + TimeUnit.HOURS.toMillis(1) + 1000; now += 1000) {
+            int due = wheel.advance(now);
+
+            // only the entries of the latest second
+            assertTrue(String.valueOf(due), due <= 4);
+            checked += due;
+        }
+
+        assertEquals(entries, checked);
+        for (int i = 0; i < entries; i++) {
+            assertTrue(expired[i] - (start + (long) i * 360) < 1000);
+        }
+    }
+
+    @Test
+    public void activeEntriesAreRescheduled() {
+        ExpiryWheel wheel = new ExpiryWheel(1000, 0);
+        List<Long> checks = new ArrayList<>();
+
+        wheel.schedule(now -> {
+            checks.add(now);
+            return checks.size() < 3 ? now + 5000 : 0;
+        }, 5000);
+        ExpiryWheel.Entry cancelled = wheel.schedule(now -> {
+            throw new AssertionError("cancelled entry is checked");
+        }, 1000);
+        cancelled.cancel();
+
+        for (long now = 0; now <= 30_000; now += 1000) {
+            wheel.advance(now);
+        }
+
+        assertEquals(Arrays.asList(5000L, 10_000L, 15_000L), checks);
+    }
+
+    @Test
+    public void farDeadline() {
+        ExpiryWheel wheel = new ExpiryWheel(1, 0);
+        long deadline = (1L << 24) + 12_345; // beyond the top level
+        AtomicInteger checks = new AtomicInteger();
+
+        wheel.schedule(now -> {
+            assertTrue(now >= deadline);
+            checks.incrementAndGet();
+            return 0;
+        }, deadline);
+
+        wheel.advance(deadline - 1);
+        assertEquals(0, checks.get());
+        wheel.advance(deadline);
+        assertEquals(1, checks.get());
+    }
+
+    @Test
+    public void idleMeasurerIsRetired() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-expiry-measurer").setTimeToLive(1, TimeUnit.SECONDS);
+        PerformanceMeasurer.Sensor success = measurer.getSensor("success");
+        success.measure();
+        PerformanceMeasurer.display();
+
+        Thread.sleep(2100);
+        PerformanceMeasurer.expire(System.currentTimeMillis());
+
+        assertTrue(measurer.isPurged());
+        assertFalse(contains(PerformanceMeasurer.measurers(), measurer));
+
+        // the held handle keeps measuring
+        success.measure();
+        assertSame(measurer, PerformanceMeasurer.get("test-expiry-measurer"));
+        assertEquals(2, measurer.getSensor("success").sum());
+    }
+
+    @Test
+    public void idleSensorIsEvicted() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-expiry-sensor").setSensorTimeToLive(2, TimeUnit.SECONDS);
+        PerformanceMeasurer.Sensor idle = measurer.getSensor("tenant-1");
+        idle.measure();
+        measurer.measure("tenant-2");
+        PerformanceMeasurer.display();
+
+        Thread.sleep(1500);
+        measurer.measure("tenant-2");
+        PerformanceMeasurer.display();
+
+        Thread.sleep(1500);
+        PerformanceMeasurer.expire(System.currentTimeMillis());
+
+        assertFalse(contains(Arrays.asList(measurer.sensors()), idle));
+        assertTrue(contains(Arrays.asList(measurer.sensors()), measurer.getSensor("tenant-2")));
+        assertFalse(measurer.isPurged());
+
+        // the held handle keeps measuring
+        idle.measure();
+        PerformanceMeasurer.display();
+
+        assertTrue(contains(Arrays.asList(measurer.sensors()), idle));
+        assertEquals(2, idle.sum());
+        assertSame(idle, measurer.getSensor("tenant-1"));
+    }
+
+    @Test
+    public void onlyMeasuredRetireesAreRevived() {
+        List<PerformanceMeasurer> retirees = new ArrayList<>();
+        List<PerformanceMeasurer.Sensor> handles = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            PerformanceMeasurer measurer = PerformanceMeasurer.get("test-expiry-retiree-" + i);
+            retirees.add(measurer);
+            handles.add(measurer.getSensor("hit"));
+            PerformanceMeasurer.retire(measurer);
+        }
+
+        handles.get(7).measure();
+        retirees.get(9).measure("new");
+        PerformanceMeasurer.display();
+
+        for (int i = 0; i < retirees.size(); i++) {
+            PerformanceMeasurer measurer = retirees.get(i);
+            boolean measured = i == 7 || i == 9;
+            assertEquals(String.valueOf(i), !measured, measurer.isPurged());
+            assertEquals(String.valueOf(i), measured, contains(PerformanceMeasurer.measurers(), measurer));
+            PerformanceMeasurer.retire(measurer);
+        }
+    }
+
+    @Test
+    public void evictedSensorIsCollected() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-expiry-collected");
+        WeakReference<PerformanceMeasurer.Sensor> shared = evicted(measurer, "shared");
+        measurer.setBuffered(true);
+        WeakReference<PerformanceMeasurer.Sensor> buffered = evicted(measurer, "buffered");
+        measurer.makeSummary();
+
+        for (int i = 0; i < 100 && (shared.get() != null || buffered.get() != null); i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertNull(shared.get());
+        assertNull(buffered.get());
+    }
+
+    private static WeakReference<PerformanceMeasurer.Sensor> evicted(PerformanceMeasurer measurer, String name) {
+        PerformanceMeasurer.Sensor sensor = measurer.getSensor(name);
+        sensor.measure();
+        measurer.evict(sensor);
+        return new WeakReference<>(sensor);
+    }
+
+    private static <T> boolean contains(Iterable<T> values, T value) {
+        for (T each : values) {
+            if (each == value) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class FlightRecorderEventsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void intervalAndSectionEvents() throws Exception {
+        Assume.assumeFalse(FlightRecorderEvents.INSTANCE instanceof FlightRecorderEvents.Disabled);
+
+        Path file = folder.getRoot().toPath().resolve("recording.jfr");
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-jfr");
+
+        try (Recording recording = new Recording()) {
+            recording.enable("poltora.utils.Interval");
+            recording.enable("poltora.utils.Section");
+            recording.start();
+            assertTrue(FlightRecorderEvents.INSTANCE.isRecording());
+
+            try (PerformanceMeasurer.Timer timer = measurer.time("io")) {
+                measurer.success(2);
+            }
+            PerformanceMeasurer.display();
+
+            recording.stop();
+            recording.dump(file);
+        }
+        assertFalse(FlightRecorderEvents.INSTANCE.isRecording());
+
+
+        List<RecordedEvent> intervals = events(file, "poltora.utils.Interval");
+        assertEquals(1, intervals.size());
+        RecordedEvent interval = intervals.get(0);
+        assertEquals(3, interval.getLong("sum"));
+        assertEquals(3, interval.getLong("delta"));
+        assertTrue(interval.getLong("interval") > 0);
+        assertTrue(interval.getString("text"), interval.getString("text").contains("success: "));
+
+        List<RecordedEvent> sections = events(file, "poltora.utils.Section");
+        assertEquals(1, sections.size());
+        assertEquals("io", sections.get(0).getString("sensor"));
+        assertFalse(sections.get(0).getDuration().isNegative());
+    }
+
+    @Test
+    public void nothingIsEmittedWithoutRecording() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-jfr-off");
+
+        assertFalse(FlightRecorderEvents.INSTANCE.isRecording());
+
+        try (PerformanceMeasurer.Timer timer = measurer.time()) {
+            measurer.success();
+        }
+        PerformanceMeasurer.display();
+    }
+
+    private static List<RecordedEvent> events(Path file, String type) throws Exception {
+        List<RecordedEvent> events = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            if (event.getEventType().getName().equals(type) && "test-jfr".equals(event.getString("measurer"))) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+}
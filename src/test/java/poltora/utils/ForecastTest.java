@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class ForecastTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void steadyRate() {
+        Forecast forecast = new Forecast(0);
+
+        for (int second = 1; second <= 10; second++) {
+            forecast.update(second * 100, 10_000, second * SECOND);
+        }
+
+        assertEquals(10, forecast.getPercent(), 0.01);
+        assertEquals(90_000, forecast.getLeftTime(), 100);
+        assertEquals(90_000, forecast.getMinLeftTime(), 100);
+        assertEquals(90_000, forecast.getMaxLeftTime(), 100);
+    }
+
+    @Test
+    public void slowerPhase() {
+        Forecast forecast = new Forecast(0);
+        long count = 0;
+
+        // fast warm-up phase, then 10 times slower one
+        for (int second = 1; second <= 20; second++) {
+            count += 1000;
+            forecast.update(count, 30_000, second * SECOND);
+        }
+        for (int second = 21; second <= 40; second++) {
+            count += 100;
+            forecast.update(count, 30_000, second * SECOND);
+        }
+
+        // the whole run average would be 550/s, so about 14s
+        assertEquals(80_000, forecast.getLeftTime(), 1000);
+    }
+
+    @Test
+    public void confidenceRange() {
+        Forecast forecast = new Forecast(0);
+        Random random = new Random(42);
+        long count = 0;
+
+        for (int second = 1; second <= 16; second++) {
+            count += 50 + random.nextInt(100);
+            forecast.update(count, 100_000, second * SECOND);
+        }
+
+        assertTrue(forecast.getMinLeftTime() < forecast.getLeftTime());
+        assertTrue(forecast.getLeftTime() < forecast.getMaxLeftTime());
+        // about 100/s
+        long expected = (100_000 - count) * 10;
+        assertTrue(forecast.getMinLeftTime() < expected * 1.1);
+        assertTrue(forecast.getMaxLeftTime() > expected * 0.9);
+    }
+
+    @Test
+    public void fewPointsWidenRange() {
+        Forecast forecast = new Forecast(0);
+
+        forecast.update(100, 10_000, SECOND);
+        forecast.update(250, 10_000, 2 * SECOND);
+        forecast.update(300, 10_000, 3 * SECOND);
+
+        // rate 100/s, its error with 1 degree of freedom is 12.706 * 28.87 = 366.8/s
+        assertEquals(9_700 * 1000 / 466.8, forecast.getMinLeftTime(), 100);
+        // the rate could be even negative
+        assertEquals(Forecast.UNKNOWN, forecast.getMaxLeftTime());
+    }
+
+    @Test
+    public void quantilesApproachNormal() {
+        assertEquals(12.706, Forecast.quantile95(1), 0.001);
+        assertEquals(2.145, Forecast.quantile95(14), 0.001);
+        assertEquals(1.96, Forecast.quantile95(100), 0.001);
+        for (int freedom = 2; freedom < 100; freedom++) {
+            assertTrue(Forecast.quantile95(freedom) <= Forecast.quantile95(freedom - 1));
+        }
+    }
+
+    @Test
+    public void possibleSizeIsChanged() {
+        Forecast forecast = new Forecast(0);
+
+        for (int second = 1; second <= 5; second++) {
+            forecast.update(second * 100, 1000, second * SECOND);
+        }
+        assertEquals(50, forecast.getPercent(), 0.01);
+        assertEquals(5_000, forecast.getLeftTime(), 100);
+
+        // total becomes known
+        forecast.update(600, 3000, 6 * SECOND);
+        assertEquals(20, forecast.getPercent(), 0.01);
+        assertEquals(24_000, forecast.getLeftTime(), 100);
+
+        forecast.update(3100, 3000, 7 * SECOND);
+        assertEquals(100, forecast.getPercent(), 0.01);
+        assertEquals(0, forecast.getLeftTime());
+    }
+
+    @Test
+    public void unknownUntilMeasured() {
+        Forecast forecast = new Forecast(0);
+
+        forecast.update(0, 1000, SECOND);
+        assertEquals(Forecast.UNKNOWN, forecast.getLeftTime());
+
+        // average rate of the first report
+        forecast.update(100, 1000, 2 * SECOND);
+        assertEquals(9_000, forecast.getLeftTime(), 100);
+    }
+
+    @Test
+    public void personalTimerForecastIsBySections() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-forecast-personal");
+        measurer.possibleSize(1000);
+
+        for (int i = 0; i < 10; i++) {
+            measurer.start();
+            Thread.sleep(10);
+            measurer.success();
+            measurer.stop();
+
+            // not measured time between sections
+            Thread.sleep(50);
+        }
+        Snapshot snapshot = Reports.snapshot(measurer);
+
+        // 990 left by throughput of sections, not by wall time
+        assertEquals(990 * 1000.0 / snapshot.getThroughput(), snapshot.getLeftTime(), 990 * 1000.0 / snapshot.getThroughput() * 0.1);
+    }
+
+    @Test
+    public void severalForecasts() {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-forecast");
+        measurer.possibleSize("files", 10);
+        measurer.possibleSize("bytes", 1000);
+
+        measurer.measure("files", 2);
+        measurer.measure("bytes", 100);
+        measurer.success(5);
+        measurer.makeSummary();
+        StringBuilder log = new StringBuilder();
+        measurer.log(log);
+        Snapshot snapshot = measurer.newSnapshot(log.toString());
+        measurer.snapshot();
+
+        assertTrue(log.toString(), log.toString().contains("files 20% left "));
+        assertTrue(log.toString(), log.toString().contains(" 10% "));
+        assertEquals(2, snapshot.getForecasts().size());
+        assertEquals("files", snapshot.getForecasts().get(0).getName());
+        assertEquals(20, snapshot.getForecasts().get(0).getPercent(), 0.01);
+        assertEquals(1000, snapshot.getPossibleSize());
+        assertEquals(10, snapshot.getPercent(), 0.01);
+    }
+}
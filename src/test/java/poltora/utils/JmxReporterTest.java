@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static poltora.utils.Reports.report;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class JmxReporterTest {
+
+    @Test
+    public void measurerAndSensors() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-jmx,\"quoted\"");
+        ObjectName measurerName = JmxReporter.objectName("test-jmx,\"quoted\"", null);
+        ObjectName successName = JmxReporter.objectName("test-jmx,\"quoted\"", "success");
+        ObjectName ioName = JmxReporter.objectName("test-jmx,\"quoted\"", "io");
+
+        try (JmxReporter reporter = new JmxReporter(server)) {
+            measurer.success(3);
+            measurer.record("io", 2000);
+            report(measurer, reporter);
+
+            assertEquals(4L, server.getAttribute(measurerName, "Sum"));
+            assertEquals(3L, server.getAttribute(successName, "Count"));
+            assertEquals(false, server.getAttribute(successName, "Isolated"));
+            assertNull(server.getAttribute(successName, "Max"));
+            assertEquals(2000L, server.getAttribute(ioName, "Max"));
+
+            // the latest report, not live counters
+            measurer.success(2);
+            assertEquals(3L, server.getAttribute(successName, "Count"));
+
+            report(measurer, reporter);
+            assertEquals(5L, server.getAttribute(successName, "Count"));
+            assertEquals(2L, server.getAttribute(successName, "Delta"));
+            assertEquals(2L, server.getAttribute(measurerName, "Delta"));
+            assertTrue(server.getMBeanInfo(measurerName).getAttributes().length > 10);
+        }
+
+        assertFalse(server.isRegistered(measurerName));
+        assertFalse(server.isRegistered(successName));
+    }
+
+    @Test
+    public void goneMeasurersAndSensorsAreUnregistered() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-jmx-gone");
+        ObjectName measurerName = JmxReporter.objectName("test-jmx-gone", null);
+        ObjectName idleName = JmxReporter.objectName("test-jmx-gone", "idle");
+
+        try (JmxReporter reporter = new JmxReporter(server)) {
+            measurer.success();
+            measurer.measure("idle");
+            report(measurer, reporter);
+            assertTrue(server.isRegistered(idleName));
+
+            measurer.evict(measurer.getSensor("idle"));
+            report(measurer, reporter);
+            assertFalse(server.isRegistered(idleName));
+            assertTrue(server.isRegistered(measurerName));
+
+            // reported after retirement
+            reporter.retire("test-jmx-gone", System.currentTimeMillis() - 60_000);
+            assertTrue(server.isRegistered(measurerName));
+
+            reporter.retire("test-jmx-gone", System.currentTimeMillis());
+            assertFalse(server.isRegistered(measurerName));
+            assertFalse(server.isRegistered(JmxReporter.objectName("test-jmx-gone", "success")));
+
+            // comes back by the next report
+            report(measurer, reporter);
+            assertTrue(server.isRegistered(measurerName));
+        }
+    }
+
+    @Test
+    public void beansOfAnotherReporterAreKept() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-jmx-owner");
+        ObjectName successName = JmxReporter.objectName("test-jmx-owner", "success");
+
+        try (JmxReporter first = new JmxReporter(server)) {
+            measurer.success();
+            report(measurer, first);
+
+            try (JmxReporter second = new JmxReporter(server)) {
+                measurer.success();
+                report(measurer, second);
+            }
+
+            assertTrue(server.isRegistered(successName));
+
+            measurer.success();
+            report(measurer, first);
+            assertEquals(3L, server.getAttribute(successName, "Count"));
+        }
+
+        assertFalse(server.isRegistered(successName));
+    }
+}
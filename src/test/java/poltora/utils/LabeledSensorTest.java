@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class LabeledSensorTest {
+
+    @Test
+    public void series() {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-labeled");
+
+        for (int i = 0; i < 3; i++) {
+            measurer.measure("http", "status", 503);
+        }
+        for (int i = 0; i < 5; i++) {
+            measurer.measure("http", "status", 200);
+        }
+        measurer.measure("http", "status", "timeout");
+        PerformanceMeasurer.display();
+
+        assertEquals(3, measurer.getSensor("http{status=503}").sum());
+        assertEquals(5, measurer.getSensor("http{status=200}").sum());
+        assertEquals(1, measurer.getSensor("http{status=timeout}").sum());
+        assertEquals(3, measurer.getLabeledSensor("http").size());
+
+
+        measurer.measure("http", "status", 503);
+        PerformanceMeasurer.display();
+
+        assertEquals(4, measurer.getSensor("http{status=503}").sum());
+    }
+
+    @Test
+    public void evictedGroupIsGotBack() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-labeled-expiry").setSensorTimeToLive(1, TimeUnit.SECONDS);
+        measurer.measure("http", "status", 503);
+        PerformanceMeasurer.display();
+        PerformanceMeasurer.display();
+        PerformanceMeasurer.Sensor group = measurer.getSensor("http{status=503}");
+
+        Thread.sleep(2100);
+        PerformanceMeasurer.expire(System.currentTimeMillis());
+        assertFalse(Arrays.asList(measurer.sensors()).contains(group));
+
+        measurer.measure("http", "status", 503);
+        measurer.measure("http", "status", 503);
+        PerformanceMeasurer.display();
+
+        assertTrue(Arrays.asList(measurer.sensors()).contains(group));
+        assertEquals(3, measurer.getSensor("http{status=503}").sum());
+        assertTrue(measurer.toString(), measurer.newSnapshot("").getSum() >= 3);
+    }
+
+    @Test
+    public void groupBy() {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-labeled-group");
+        LabeledSensor http = measurer.getLabeledSensor("http").groupBy("method");
+
+        Labels getOk = Labels.of("status", 200).and("method", "GET");
+        Labels postOk = Labels.of("status", 200).and("method", "POST");
+        http.measure(getOk, 2);
+        http.measure(Labels.of("method", "GET").and("status", 404));
+        http.measure(postOk);
+        PerformanceMeasurer.display();
+
+        assertEquals(3, measurer.getSensor("http{method=GET}").sum());
+        assertEquals(1, measurer.getSensor("http{method=POST}").sum());
+
+
+        // order of labels doesn't matter
+        http.measure(Labels.of("method", "POST").and("status", 200));
+        assertEquals(3, http.size());
+
+        http.groupBy("status");
+        PerformanceMeasurer.display();
+
+        assertEquals(1, measurer.getSensor("http{status=200}").sum());
+        assertEquals(1, measurer.getSensor("http{method=POST}").sum());
+    }
+
+    @Test
+    public void cardinality() {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-labeled-cardinality");
+        LabeledSensor user = measurer.getLabeledSensor("user").setCardinality(2);
+
+        for (int i = 0; i < 10; i++) {
+            user.measure("id", i);
+            user.measure("id", 0);
+        }
+        PerformanceMeasurer.display();
+
+        assertEquals(2, user.size());
+        assertEquals(11, measurer.getSensor("user{id=0}").sum());
+        assertEquals(1, measurer.getSensor("user{id=1}").sum());
+        assertEquals(8, measurer.getSensor("user{other}").sum());
+
+
+        user.setCardinality(3);
+        user.measure("id", 5);
+        user.measure("id", 1);
+        PerformanceMeasurer.display();
+
+        assertEquals(3, user.size());
+        assertEquals(1, measurer.getSensor("user{id=5}").sum());
+        assertEquals(2, measurer.getSensor("user{id=1}").sum());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void labelIsSetTwice() {
+        Labels.of("status", 200).and("status", 404);
+    }
+
+    @Test
+    public void knownSeriesAreMeasuredWithoutAllocation() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-labeled-allocation");
+        LabeledSensor http = measurer.getLabeledSensor("http");
+        for (int status = 200; status < 210; status++) {
+            http.measure("status", status);
+            http.measure("method", "GET");
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        int calls = 100_000;
+        for (int i = 0; i < calls; i++) {
+            http.measure("status", 200 + i % 10);
+            http.measure("method", "GET");
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue(String.valueOf(allocated), allocated < calls / 10);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverAllValues() throws Exception {
+        int previous = -1;
+
+        for (long value = 0; value < 100_000; value++) {
+            int index = LatencyHistogram.index(value);
+
+            assertTrue(index == previous || index == previous + 1);
+            assertTrue(LatencyHistogram.highestEquivalentValue(index) >= value);
+
+            previous = index;
+        }
+
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestEquivalentValue(LatencyHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void percentiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        // 1..1000 us
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        histogram.takeSnapshot();
+
+        assertEquals(1000, histogram.getTotal());
+        assertEquals(500_500_000, histogram.getSum());
+        assertNear(500_000, histogram.getPercentile(0));
+        assertNear(900_000, histogram.getPercentile(1));
+        assertNear(990_000, histogram.getPercentile(2));
+        assertNear(999_000, histogram.getPercentile(3));
+        assertEquals(1000_000, histogram.getMax());
+    }
+
+    @Test
+    public void interval() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int i = 0; i < 100; i++) {
+            histogram.record(1000_000);
+        }
+        histogram.takeSnapshot();
+        histogram.shift();
+
+        for (int i = 0; i < 100; i++) {
+            histogram.record(5000);
+        }
+        histogram.takeSnapshot();
+
+        assertEquals(200, histogram.getTotal());
+        assertEquals(100, histogram.getIntervalTotal());
+        assertNear(5000, histogram.getIntervalPercentile(2));
+        assertEquals(5000, histogram.getIntervalMax());
+        assertNear(1000_000, histogram.getPercentile(1));
+        assertEquals(1000_000, histogram.getMax());
+    }
+
+    @Test
+    public void logDuration() throws Exception {
+        assertEquals("850ns", logDuration(850));
+        assertEquals("12.3us", logDuration(12_345));
+        assertEquals("1.05ms", logDuration(1_050_000));
+        assertEquals("431ms", logDuration(431_000_000));
+        assertEquals("2.50s", logDuration(2_500_000_000L));
+    }
+
+    private static String logDuration(long nanos) {
+        StringBuilder log = new StringBuilder();
+        LatencyHistogram.logDuration(log, nanos);
+        return log.toString();
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue(expected + " ~ " + actual, Math.abs(expected - actual) <= expected * 0.04);
+    }
+}
@@ -22,6 +22,7 @@ import org.junit.Test;
 import org.junit.runners.MethodSorters;
 
 import static org.apache.commons.lang.math.RandomUtils.nextInt;
+import static org.junit.Assert.assertSame;
 
 /**
  * @author Oleg Poltoratskii ( www.poltora.info )
@@ -199,6 +200,20 @@ public class PerformanceMeasurerTest {
         }
     }
 
+    @Test
+    public void latencyExample() throws Exception {
+
+        for (int i = 1; i <= 300; i++) {
+
+            long start = System.nanoTime();
+
+            // internal work, rarely slow
+            Thread.sleep(nextInt(50) == 0 ? 100 + nextInt(100) : nextInt(10));
+
+            PerformanceMeasurer.getByMethodName().record("request", System.nanoTime() - start);
+        }
+    }
+
     @Test
     public void isolated() throws Exception {
 
@@ -362,6 +377,30 @@ public class PerformanceMeasurerTest {
         PerformanceMeasurer.get(this.getClass()).measure("getByClassThis");
     }
 
+    @Test
+    public void getByNothingResolvesCaller() throws Exception {
+        assertSame(PerformanceMeasurer.get(PerformanceMeasurerTest.class), PerformanceMeasurer.get());
+        assertSame(PerformanceMeasurer.get(), PerformanceMeasurer.get()); // cached call site
+    }
+
+    @Test
+    public void getByMethodResolvesCaller() throws Exception {
+        for (int i = 0; i < 2; i++) { // second time from cache
+            assertSame(
+                    PerformanceMeasurer.get("poltora.utils.PerformanceMeasurerTest.getByMethodResolvesCaller()"),
+                    PerformanceMeasurer.getByMethodName()
+            );
+        }
+    }
+
+    @Test
+    public void callerHandle() throws Exception {
+        PerformanceMeasurer.Caller caller = PerformanceMeasurer.caller();
+
+        assertSame(PerformanceMeasurer.get(), caller.get());
+        assertSame(PerformanceMeasurer.getByMethodName(), caller.get("callerHandle"));
+    }
+
     @Test
     public void getByMethod() throws Exception {
         PerformanceMeasurer.getByMethodName().success();
@@ -412,5 +451,18 @@ public class PerformanceMeasurerTest {
         PerformanceMeasurer.Sensor successSensor = measurer.getSensor("success");
         successSensor.measure();
     }
+
+    @Test
+    public void sensorHandleSurvivesPurge() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-handle");
+        PerformanceMeasurer.Sensor successSensor = measurer.getSensor("success");
+        successSensor.measure();
+
+        PerformanceMeasurer.retire(measurer);
+        successSensor.measure();
+
+        assertSame(measurer, PerformanceMeasurer.get("test-handle"));
+        assertSame(successSensor, PerformanceMeasurer.get("test-handle").getSensor("success"));
+    }
 }
 
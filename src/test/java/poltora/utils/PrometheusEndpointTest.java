@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static poltora.utils.Reports.report;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class PrometheusEndpointTest {
+
+    @Test
+    public void scrape() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-prometheus\"x\"");
+
+        try (PrometheusEndpoint endpoint = new PrometheusEndpoint(0)) {
+            measurer.success(3);
+            measurer.record("io", 2_000_000);
+            report(measurer, endpoint);
+
+            String text = scrape(endpoint);
+
+            assertTrue(text, text.contains("# TYPE performance_measurer_sensor_total counter\n"));
+            assertTrue(text, text.contains("performance_measurer_sensor_total{measurer=\"test-prometheus\\\"x\\\"\",sensor=\"success\"} 3\n"));
+            assertTrue(text, text.contains("performance_measurer_sum_total{measurer=\"test-prometheus\\\"x\\\"\"} 4\n"));
+            assertTrue(text, text.contains("performance_measurer_sensor_rate{measurer=\"test-prometheus\\\"x\\\"\",sensor=\"io\",window=\"1m\"} "));
+            assertTrue(text, text.contains("performance_measurer_latency_seconds{measurer=\"test-prometheus\\\"x\\\"\",sensor=\"io\",quantile=\"0.99\"} 0.00"));
+            assertTrue(text, text.contains("# TYPE performance_measurer_latency_seconds summary\n"));
+            assertTrue(text, text.contains("performance_measurer_latency_seconds_sum{measurer=\"test-prometheus\\\"x\\\"\",sensor=\"io\"} 0.002\n"));
+            assertTrue(text, text.contains("performance_measurer_latency_seconds_count{measurer=\"test-prometheus\\\"x\\\"\",sensor=\"io\"} 1\n"));
+
+            // each family is declared once before its samples
+            assertEquals(1, text.split("# TYPE performance_measurer_sensor_total ", -1).length - 1);
+            for (String line : text.split("\n")) {
+                assertTrue(line, line.startsWith("# ") || line.matches("performance_measurer_[a-z_]+\\{.*} [-0-9.E]+"));
+            }
+
+
+            // the latest report, not live counters
+            measurer.success(2);
+            assertEquals(text, scrape(endpoint));
+
+            report(measurer, endpoint);
+            assertTrue(scrape(endpoint).contains("sensor=\"success\"} 5\n"));
+        }
+    }
+
+    @Test
+    public void pageIsRenderedOncePerReport() throws Exception {
+        try (PrometheusEndpoint endpoint = new PrometheusEndpoint(0)) {
+            PerformanceMeasurer measurer = PerformanceMeasurer.get("test-prometheus-cache");
+            measurer.success();
+            report(measurer, endpoint);
+
+            scrape(endpoint);
+            Object page = endpoint.page();
+            scrape(endpoint);
+            assertSame(page, endpoint.page());
+        }
+    }
+
+    @Test
+    public void retiredMeasurerIsNotServed() throws Exception {
+        try (PrometheusEndpoint endpoint = new PrometheusEndpoint(0)) {
+            PerformanceMeasurer measurer = PerformanceMeasurer.get("test-prometheus-retired");
+            measurer.success();
+            report(measurer, endpoint);
+            assertTrue(scrape(endpoint).contains("test-prometheus-retired"));
+
+            endpoint.retire("test-prometheus-retired", System.currentTimeMillis());
+            assertFalse(scrape(endpoint).contains("test-prometheus-retired"));
+
+            report(measurer, endpoint);
+            assertTrue(scrape(endpoint).contains("test-prometheus-retired"));
+        }
+    }
+
+    private static String scrape(PrometheusEndpoint endpoint) throws Exception {
+        URL url = new URL("http://localhost:" + endpoint.getPort() + PrometheusEndpoint.PATH);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            assertEquals(200, connection.getResponseCode());
+            assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[4096];
+                for (int read; (read = in.read(buffer)) != -1; ) {
+                    body.write(buffer, 0, read);
+                }
+            }
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
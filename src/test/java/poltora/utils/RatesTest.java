@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static poltora.utils.PerformanceMeasurer.Window.FIFTEEN_MINUTES;
+import static poltora.utils.PerformanceMeasurer.Window.FIVE_MINUTES;
+import static poltora.utils.PerformanceMeasurer.Window.ONE_MINUTE;
+import static poltora.utils.Reports.report;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class RatesTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void steadyRate() throws Exception {
+        Rates rates = new Rates();
+
+        for (int i = 0; i < 2000; i++) {
+            rates.update(150, 15 * SECOND);
+        }
+
+        for (PerformanceMeasurer.Window window : PerformanceMeasurer.Window.values()) {
+            assertEquals(10, rates.getRate(window), 1e-9);
+            assertEquals(10, rates.getEwmaRate(window), 1e-9);
+        }
+    }
+
+    @Test
+    public void windowsSlide() throws Exception {
+        Rates rates = new Rates();
+
+        for (int i = 0; i < 60; i++) {
+            rates.update(100, SECOND);
+        }
+        for (int i = 0; i < 60; i++) {
+            rates.update(0, SECOND);
+        }
+
+        assertEquals(0, rates.getRate(ONE_MINUTE), 1e-9);
+        assertEquals(50, rates.getRate(FIVE_MINUTES), 1e-9); // only 2 minutes are known
+        assertEquals(50, rates.getRate(FIFTEEN_MINUTES), 1e-9);
+
+        assertEquals(100 * Math.exp(-1), rates.getEwmaRate(ONE_MINUTE), 1e-6);
+        assertEquals(100 * Math.exp(-60.0 / 300), rates.getEwmaRate(FIVE_MINUTES), 1e-6);
+    }
+
+    @Test
+    public void irregularIntervals() throws Exception {
+        Rates rates = new Rates();
+
+        rates.update(300, 30 * SECOND);
+        rates.update(100, 5 * SECOND);
+        rates.update(250, 25 * SECOND);
+        rates.update(100, 10 * SECOND);
+
+        // without the oldest 30 seconds the rest would not cover the minute
+        assertEquals(750.0 / 70, rates.getRate(ONE_MINUTE), 1e-9);
+        assertEquals(750.0 / 70, rates.getRate(FIFTEEN_MINUTES), 1e-9);
+
+        rates.update(0, 50 * SECOND);
+
+        assertEquals(100.0 / 60, rates.getRate(ONE_MINUTE), 1e-9);
+    }
+
+    @Test
+    public void ringIsBounded() throws Exception {
+        Rates rates = new Rates();
+
+        for (int i = 0; i < Rates.MAX_BUCKETS * 5; i++) {
+            rates.update(i % 2 == 0 ? 0 : 2, TimeUnit.MILLISECONDS.toNanos(10));
+        }
+
+        for (PerformanceMeasurer.Window window : PerformanceMeasurer.Window.values()) {
+            assertEquals(100, rates.getRate(window), 1e-9);
+        }
+    }
+
+    @Test
+    public void measurerRates() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-rates");
+
+        measurer.success(500);
+        measurer.fail(500);
+        Thread.sleep(100);
+
+        String log = report(measurer);
+
+        double rate = measurer.getRate(ONE_MINUTE);
+        assertTrue(String.valueOf(rate), rate > 1000 && rate <= 10_000);
+        assertEquals(rate / 2, measurer.getSensor("success").getRate(ONE_MINUTE), 1e-9);
+        assertEquals(rate, measurer.getEwmaRate(FIFTEEN_MINUTES), 1e-9);
+        assertTrue(log, log.contains("r/s 1m/5m/15m: "));
+    }
+
+    @Test
+    public void rateFormat() throws Exception {
+        assertRate("0.0", 0);
+        assertRate("0.3", 0.25);
+        assertRate("9.9", 9.94);
+        assertRate("10", 9.96);
+        assertRate("1250", 1249.5);
+        assertRate("-2.5", -2.5);
+    }
+
+    private static void assertRate(String expected, double rate) {
+        StringBuilder log = new StringBuilder();
+        TextFormat.appendRate(log, rate);
+
+        assertEquals(expected, log.toString());
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class ReporterTest {
+
+    @Test
+    public void snapshotOfReport() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-reporter");
+        List<Snapshot> snapshots = new CopyOnWriteArrayList<>();
+        Reporter reporter = snapshots::add;
+
+        PerformanceMeasurer.addReporter(reporter);
+        try {
+            measurer.success(3);
+            measurer.fail();
+            measurer.record("io", 1000);
+            PerformanceMeasurer.display();
+
+            measurer.success(2);
+            PerformanceMeasurer.display();
+
+            assertTrue(PerformanceMeasurer.flush(reporter, 5, TimeUnit.SECONDS));
+        } finally {
+            PerformanceMeasurer.removeReporter(reporter);
+        }
+
+
+        Snapshot first = find(snapshots, "test-reporter", 0);
+        assertEquals(5, first.getSum());
+        assertEquals(5, first.getDelta());
+        assertEquals(3, first.getSensors().size());
+        assertNull(first.getLatency());
+        assertTrue(first.getText(), first.getText().contains("sum: 5"));
+
+        Snapshot.SensorReading io = reading(first, "io");
+        assertEquals(1, io.getCount());
+        assertNotNull(io.getLatency());
+        assertEquals(1000, io.getLatency().getMax());
+        assertNull(reading(first, "success").getLatency());
+
+        Snapshot second = find(snapshots, "test-reporter", 1);
+        assertEquals(7, second.getSum());
+        assertEquals(2, second.getDelta());
+        assertEquals(2, reading(second, "success").getDelta());
+        assertEquals(0, reading(second, "fail").getDelta());
+    }
+
+    @Test
+    public void retirementIsDelivered() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-reporter-retired");
+        CountDownLatch retired = new CountDownLatch(1);
+        Reporter reporter = new Reporter() {
+            @Override
+            public void report(Snapshot snapshot) {
+            }
+
+            @Override
+            public void retire(String name, long time) {
+                if (name.equals("test-reporter-retired")) retired.countDown();
+            }
+        };
+
+        PerformanceMeasurer.addReporter(reporter);
+        try {
+            measurer.success();
+            PerformanceMeasurer.retire(measurer);
+
+            assertTrue(retired.await(5, TimeUnit.SECONDS));
+        } finally {
+            PerformanceMeasurer.removeReporter(reporter);
+            PerformanceMeasurer.get("test-reporter-retired");
+        }
+    }
+
+    @Test
+    public void slowReporterLosesSnapshotsInsteadOfBlocking() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-reporter-slow");
+        CountDownLatch release = new CountDownLatch(1);
+        Reporter reporter = snapshot -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        PerformanceMeasurer.addReporter(reporter, 2);
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < 10; i++) {
+                measurer.success();
+                PerformanceMeasurer.display();
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertTrue(String.valueOf(millis), millis < 2000);
+            assertTrue(PerformanceMeasurer.getDropped(reporter) >= 7);
+        } finally {
+            release.countDown();
+            PerformanceMeasurer.removeReporter(reporter);
+        }
+    }
+
+    @Test
+    public void jsonLines() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-reporter-\"json\"");
+        measurer.success(2);
+        measurer.record("io", 1000);
+        measurer.makeSummary();
+
+        StringWriter writer = new StringWriter();
+        new JsonLinesReporter(writer).report(measurer.newSnapshot("text"));
+        String line = writer.toString();
+
+        assertTrue(line, line.startsWith("{\"time\":"));
+        assertTrue(line, line.endsWith("]}\n"));
+        assertTrue(line, line.contains("\"name\":\"test-reporter-\\\"json\\\"\""));
+        assertTrue(line, line.contains("\"sum\":3,\"delta\":3,"));
+        assertTrue(line, line.contains("{\"name\":\"success\",\"count\":2,\"delta\":2,\"isolated\":false,\"rates\":{\"1m\":"));
+        assertTrue(line, line.contains("\"latency\":{\"p50\":"));
+        assertEquals(1, line.split("\n").length);
+    }
+
+    @Test
+    public void csv() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-reporter,csv");
+        measurer.success(2);
+        measurer.record("io", 1000);
+        measurer.makeSummary();
+
+        StringWriter writer = new StringWriter();
+        CsvReporter reporter = new CsvReporter(writer, true);
+        reporter.report(measurer.newSnapshot("text"));
+        reporter.report(measurer.newSnapshot("text"));
+        String[] rows = writer.toString().split("\n");
+
+        assertEquals(1 + 3 + 3, rows.length);
+        assertEquals("time,name,sensor,count,delta,isolated,rate_1m,rate_5m,rate_15m,ewma_1m,ewma_5m,ewma_15m,p50,p90,p99,p999,max", rows[0]);
+        for (String row : rows) {
+            assertEquals(row, 17, row.replace("\"test-reporter,csv\"", "").split(",", -1).length);
+        }
+        String success = row(rows, ",\"test-reporter,csv\",success,2,2,false,");
+        assertTrue(success, success.endsWith(",,,,,"));
+        assertEquals(rows[3], row(rows, ",sum,3,3,false,"));
+        assertTrue(row(rows, ",io,1,1,false,").endsWith(",1000"));
+    }
+
+    private static String row(String[] rows, String part) {
+        for (String row : rows) {
+            if (row.contains(part)) {
+                return row;
+            }
+        }
+        throw new AssertionError(part);
+    }
+
+    private static Snapshot find(List<Snapshot> snapshots, String name, int index) {
+        int found = 0;
+        for (Snapshot snapshot : snapshots) {
+            if (snapshot.getName().equals(name) && found++ == index) {
+                return snapshot;
+            }
+        }
+        throw new AssertionError(name + " " + index + " in " + snapshots);
+    }
+
+    private static Snapshot.SensorReading reading(Snapshot snapshot, String name) {
+        for (Snapshot.SensorReading reading : snapshot.getSensors()) {
+            if (reading.getName().equals(name)) {
+                return reading;
+            }
+        }
+        throw new AssertionError(name);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import java.io.IOException;
+
+/**
+ * Reporting of measurer as by its schedule, but on test's thread
+ *
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+final class Reports {
+
+    private Reports() {
+    }
+
+    /**
+     * @return snapshot of the next report
+     */
+    static Snapshot snapshot(PerformanceMeasurer measurer) {
+        measurer.makeSummary();
+        Snapshot snapshot = measurer.newSnapshot("");
+        measurer.snapshot();
+        return snapshot;
+    }
+
+    static void report(PerformanceMeasurer measurer, Reporter reporter) throws IOException {
+        reporter.report(snapshot(measurer));
+    }
+
+    /**
+     * @return log of the next report
+     */
+    static String report(PerformanceMeasurer measurer) {
+        measurer.makeSummary();
+        StringBuilder log = new StringBuilder();
+        measurer.log(log);
+        measurer.snapshot();
+        return log.toString();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class RollUpTest {
+
+    @Test
+    public void aggregation() {
+        PerformanceMeasurer packageNode = PerformanceMeasurer.rollUp("rollup.app");
+        PerformanceMeasurer classNode = PerformanceMeasurer.rollUp("rollup.app.Import");
+
+        PerformanceMeasurer run = PerformanceMeasurer.get("rollup.app.Import.run()");
+        PerformanceMeasurer load = PerformanceMeasurer.get("rollup.app.Import.load()");
+        PerformanceMeasurer export = PerformanceMeasurer.get("rollup.app.Export");
+        PerformanceMeasurer outside = PerformanceMeasurer.get("rollup.application");
+
+        run.success(3);
+        run.setIsolated("progress").measure("progress", 1);
+        load.success(2);
+        load.fail();
+        export.success(10);
+        outside.success(100);
+        PerformanceMeasurer.display();
+
+        assertEquals(5, classNode.getSensor("success").sum());
+        assertEquals(1, classNode.getSensor("fail").sum());
+        assertEquals(15, packageNode.getSensor("success").sum());
+        assertEquals(1, packageNode.getSensor("fail").sum());
+        assertEquals(1, packageNode.getSensor("progress").sum());
+        assertTrue(packageNode.getSensor("progress").isIsolated());
+
+
+        // deltas only, nodes are not counted by other nodes
+        run.success();
+        PerformanceMeasurer.display();
+        PerformanceMeasurer.display();
+
+        assertEquals(6, classNode.getSensor("success").sum());
+        assertEquals(16, packageNode.getSensor("success").sum());
+    }
+
+    @Test
+    public void nodeAddedLater() {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("rollup.later.Job");
+        measurer.success(2);
+        PerformanceMeasurer.display();
+
+        PerformanceMeasurer node = PerformanceMeasurer.rollUp("rollup.later");
+        assertEquals("rollup.later.*", node.getName());
+        assertTrue(node == PerformanceMeasurer.rollUp("rollup.later"));
+
+        measurer.success(3);
+        PerformanceMeasurer.display();
+
+        assertEquals(3, node.getSensor("success").sum());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongPrefix() {
+        PerformanceMeasurer.rollUp("rollup.");
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static poltora.utils.Reports.report;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class SamplingTest {
+
+    @Test
+    public void estimation() {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-sampling").setSampling(16);
+        int events = 1_600_000;
+
+        for (int i = 0; i < events; i++) {
+            measurer.success();
+        }
+        String log = report(measurer);
+
+        Snapshot.SensorReading success = measurer.newSnapshot(log).getSensors().get(0);
+        assertEquals(events, success.getCount(), events * 0.02);
+        assertTrue(String.valueOf(success.getError()), success.getError() > 0 && success.getError() < 0.02);
+        assertTrue(log, log.contains("success sampled 1/16: ±"));
+    }
+
+    @Test
+    public void changedDuringMeasuring() {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-sampling-changed");
+        PerformanceMeasurer.Sensor sensor = measurer.getSensor("success");
+
+        for (int i = 0; i < 100_000; i++) {
+            sensor.measure(2);
+        }
+        sensor.setSampling(32);
+        for (int i = 0; i < 1_000_000; i++) {
+            sensor.measure(2);
+        }
+        sensor.setSampling(1);
+        for (int i = 0; i < 100_000; i++) {
+            sensor.measure(2);
+        }
+        report(measurer);
+
+        assertEquals(2_400_000, sensor.sum(), 2_400_000 * 0.03);
+    }
+
+    @Test
+    public void exactWithoutSampling() {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-sampling-exact");
+        measurer.success(7);
+
+        String log = report(measurer);
+
+        assertEquals(7, measurer.getSensor("success").sum());
+        assertEquals(0, measurer.getSensor("success").getError(), 0);
+        assertTrue(log, !log.contains("sampled"));
+    }
+
+    @Test
+    public void systemProperties() {
+        System.setProperty("performance-measurer.sampling.test-sampling-property", "8");
+        System.setProperty("performance-measurer.sampling.test-sampling-property:fail", "1");
+        System.setProperty("performance-measurer.sampling.test-sampling-property:error", "wrong");
+        try {
+            PerformanceMeasurer measurer = PerformanceMeasurer.get("test-sampling-property");
+
+            assertEquals(8, measurer.getSensor("success").getSampling());
+            assertEquals(1, measurer.getSensor("fail").getSampling());
+            assertEquals(8, measurer.getSensor("error").getSampling());
+        } finally {
+            System.clearProperty("performance-measurer.sampling.test-sampling-property");
+            System.clearProperty("performance-measurer.sampling.test-sampling-property:fail");
+            System.clearProperty("performance-measurer.sampling.test-sampling-property:error");
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongSampling() {
+        PerformanceMeasurer.get("test-sampling-wrong").setSampling(0);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class SchedulerTest {
+
+    @Test
+    public void commonIntervalIsReplaced() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-scheduler-common");
+        CountingAppender reports = CountingAppender.attach("test-scheduler-common", 0);
+
+        try {
+            PerformanceMeasurer.setSchedulerTimeout(100, TimeUnit.MILLISECONDS);
+            PerformanceMeasurer.setSchedulerTimeout(100, TimeUnit.MILLISECONDS);
+            PerformanceMeasurer.setSchedulerTimeout(100, TimeUnit.MILLISECONDS);
+
+            measureDuring(measurer, 1000);
+        } finally {
+            PerformanceMeasurer.setSchedulerTimeout(15, TimeUnit.SECONDS);
+            reports.detach();
+        }
+
+        // single loop, not three
+        assertTrue(String.valueOf(reports.count()), reports.count() >= 4 && reports.count() <= 13);
+    }
+
+    @Test
+    public void ownInterval() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-scheduler-own");
+        CountingAppender reports = CountingAppender.attach("test-scheduler-own", 0);
+
+        try {
+            measurer.setInterval(1, TimeUnit.HOURS);
+            measurer.setInterval(100, TimeUnit.MILLISECONDS);
+
+            measureDuring(measurer, 1000);
+        } finally {
+            measurer.setInterval(0, TimeUnit.SECONDS);
+            reports.detach();
+        }
+
+        assertTrue(String.valueOf(reports.count()), reports.count() >= 4 && reports.count() <= 13);
+    }
+
+    @Test
+    public void ownIntervalIsReset() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-scheduler-reset");
+        CountingAppender reports = CountingAppender.attach("test-scheduler-reset", 0);
+
+        try {
+            measurer.setInterval(100, TimeUnit.MILLISECONDS);
+            measurer.setInterval(0, TimeUnit.MILLISECONDS);
+
+            // common interval is 15 seconds
+            measureDuring(measurer, 500);
+        } finally {
+            reports.detach();
+        }
+
+        // not each 100 ms, at most one common report
+        assertTrue(String.valueOf(reports.count()), reports.count() <= 1);
+    }
+
+    @Test
+    public void slowReporterDoesNotDelayOthers() throws Exception {
+        PerformanceMeasurer slow = PerformanceMeasurer.get("test-scheduler-slow");
+        PerformanceMeasurer fast = PerformanceMeasurer.get("test-scheduler-fast");
+        CountingAppender slowReports = CountingAppender.attach("test-scheduler-slow", 3000);
+        CountingAppender fastReports = CountingAppender.attach("test-scheduler-fast", 0);
+
+        try {
+            slow.setInterval(100, TimeUnit.MILLISECONDS);
+            fast.setInterval(100, TimeUnit.MILLISECONDS);
+
+            slow.success();
+            measureDuring(fast, 1000);
+        } finally {
+            slow.setInterval(0, TimeUnit.SECONDS);
+            fast.setInterval(0, TimeUnit.SECONDS);
+            slowReports.detach();
+            fastReports.detach();
+        }
+
+        assertTrue(String.valueOf(slowReports.count()), slowReports.count() <= 1);
+        assertTrue(String.valueOf(fastReports.count()), fastReports.count() >= 4);
+    }
+
+    private static void measureDuring(PerformanceMeasurer measurer, long millis) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread writer = new Thread(() -> {
+            while (running.get()) {
+                measurer.success();
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        writer.start();
+
+        Thread.sleep(millis);
+
+        running.set(false);
+        writer.join();
+    }
+
+
+    private static class CountingAppender extends AppenderSkeleton {
+
+        private final Logger logger;
+        private final long delay;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private CountingAppender(Logger logger, long delay) {
+            this.logger = logger;
+            this.delay = delay;
+        }
+
+        static CountingAppender attach(String name, long delay) {
+            Logger logger = Logger.getLogger(name);
+            CountingAppender appender = new CountingAppender(logger, delay);
+
+            logger.setAdditivity(false);
+            logger.addAppender(appender);
+
+            return appender;
+        }
+
+        void detach() {
+            logger.removeAppender(this);
+            logger.setAdditivity(true);
+        }
+
+        int count() {
+            return count.get();
+        }
+
+        @Override
+        protected void append(LoggingEvent event) {
+            count.incrementAndGet();
+
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean requiresLayout() {
+            return false;
+        }
+    }
+}
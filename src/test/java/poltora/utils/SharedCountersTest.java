@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class SharedCountersTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void externalReading() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("counters");
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-shared");
+        measurer.success(5);
+
+        try (SharedCounters counters = PerformanceMeasurer.shareCounters(file, 4096, 20, TimeUnit.MILLISECONDS);
+             SharedCountersReader reader = new SharedCountersReader(file)) {
+
+            // shared at once
+            SharedCountersReader.Sample first = reader.sample();
+            assertEquals(5, first.getValue("test-shared:success"));
+            assertFalse(first.isClosed());
+
+            measurer.success(10);
+            measurer.fail();
+            Thread.sleep(100);
+
+            SharedCountersReader.Sample second = reader.sample();
+            assertEquals(15, second.getValue("test-shared:success"));
+            assertEquals(1, second.getValue("test-shared:fail"));
+            assertTrue(second.getUpdateTime() > first.getUpdateTime());
+            assertTrue(second.getRate(first, "test-shared:success") > 0);
+
+            counters.close();
+            measurer.success();
+
+            SharedCountersReader.Sample last = reader.sample();
+            assertTrue(last.isClosed());
+            assertEquals(15, last.getValue("test-shared:success"));
+        }
+    }
+
+    @Test
+    public void sharingIsExclusive() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("exclusive");
+
+        try (SharedCounters counters = PerformanceMeasurer.shareCounters(file)) {
+            try {
+                PerformanceMeasurer.shareCounters(folder.getRoot().toPath().resolve("another"));
+                throw new AssertionError("counters are shared twice");
+            } catch (IllegalStateException expected) {
+                assertTrue(expected.getMessage().contains(file.toString()));
+            }
+        }
+
+        // sharing may be started again after closing
+        PerformanceMeasurer.shareCounters(file).close();
+    }
+
+    @Test
+    public void slotsOfGoneSensorsAreReused() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("reuse");
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-shared-reuse");
+        measurer.measure("tenant-1");
+
+        try (SharedCounters counters = PerformanceMeasurer.shareCounters(file, 4096, 1, TimeUnit.HOURS);
+             SharedCountersReader reader = new SharedCountersReader(file)) {
+
+            assertEquals(1, reader.sample().getValue("test-shared-reuse:tenant-1"));
+            int used = reader.sample().getValues().size();
+
+            // evicted sensor is revived under the same name, its former slot is freed
+            measurer.evict(measurer.getSensor("tenant-1"));
+            counters.mirror();
+            assertFalse(reader.sample().getValues().containsKey("test-shared-reuse:tenant-1"));
+
+            measurer.measure("tenant-1", 5);
+            counters.mirror();
+
+            SharedCountersReader.Sample sample = reader.sample();
+            assertEquals(6, sample.getValue("test-shared-reuse:tenant-1"));
+            assertEquals(used, sample.getValues().size());
+
+            // sensors of retired measurer are gone, their slots are taken by new sensors
+            PerformanceMeasurer.retire(measurer);
+            counters.mirror();
+            assertFalse(reader.sample().getValues().containsKey("test-shared-reuse:tenant-1"));
+
+            PerformanceMeasurer.get("test-shared-reuse-next").measure("tenant-2");
+            counters.mirror();
+            sample = reader.sample();
+            assertEquals(1, sample.getValue("test-shared-reuse-next:tenant-2"));
+            assertEquals(used, sample.getValues().size());
+        }
+    }
+
+    @Test
+    public void longNamesAreCutByCharacter() throws Exception {
+        String prefix = "test-shared-long:" + new String(new char[SharedCounters.MAX_NAME_LENGTH]).replace('\0', 'ж');
+
+        byte[] first = SharedCounters.encodeName(prefix + "a");
+        byte[] second = SharedCounters.encodeName(prefix + "b");
+
+        for (byte[] name : new byte[][]{first, second}) {
+            assertTrue(name.length <= SharedCounters.MAX_NAME_LENGTH);
+            String decoded = new String(name, StandardCharsets.UTF_8);
+            // no replacement of broken character
+            assertFalse(decoded, decoded.contains("\uFFFD"));
+            assertArrayEquals(name, decoded.getBytes(StandardCharsets.UTF_8));
+            assertTrue(decoded, decoded.matches("test-shared-long:ж+~[0-9a-f]{8}"));
+        }
+        assertNotEquals(new String(first, StandardCharsets.UTF_8), new String(second, StandardCharsets.UTF_8));
+
+        // short name is kept as is
+        assertEquals("test-shared-long:ж", new String(SharedCounters.encodeName("test-shared-long:ж"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void longNamesDoNotCollide() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("long");
+        String prefix = new String(new char[SharedCounters.MAX_NAME_LENGTH]).replace('\0', 's');
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-shared-long");
+        measurer.measure(prefix + "1", 1);
+        measurer.measure(prefix + "2", 2);
+
+        try (SharedCounters counters = PerformanceMeasurer.shareCounters(file, 4096, 1, TimeUnit.HOURS);
+             SharedCountersReader reader = new SharedCountersReader(file)) {
+
+            SharedCountersReader.Sample sample = reader.sample();
+            assertEquals(1, sample.getValue(new String(SharedCounters.encodeName("test-shared-long:" + prefix + "1"), StandardCharsets.UTF_8)));
+            assertEquals(2, sample.getValue(new String(SharedCounters.encodeName("test-shared-long:" + prefix + "2"), StandardCharsets.UTF_8)));
+        }
+    }
+
+    @Test
+    public void capacity() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("capacity");
+        PerformanceMeasurer.get("test-shared-capacity").success();
+        PerformanceMeasurer.get("test-shared-capacity").fail();
+        PerformanceMeasurer.get("test-shared-capacity").error();
+
+        try (SharedCounters counters = PerformanceMeasurer.shareCounters(file, 2, 1, TimeUnit.HOURS);
+             SharedCountersReader reader = new SharedCountersReader(file)) {
+
+            assertEquals(2, reader.sample().getValues().size());
+        }
+    }
+}
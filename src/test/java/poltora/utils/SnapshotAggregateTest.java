@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static poltora.utils.Reports.snapshot;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class SnapshotAggregateTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void mergeIgnoresOrderAndDuplicates() {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-aggregate-merge");
+        measurer.success(1);
+        SnapshotAggregate a1 = SnapshotAggregate.of("a", 1, snapshot(measurer));
+        measurer.success(2);
+        SnapshotAggregate a2 = SnapshotAggregate.of("a", 2, snapshot(measurer));
+        measurer.success(4);
+        SnapshotAggregate b1 = SnapshotAggregate.of("b", 1, snapshot(measurer));
+
+        byte[] merged = a1.merge(a2).merge(b1).toBytes();
+
+        // associative & commutative
+        assertArrayEquals(merged, a1.merge(a2.merge(b1)).toBytes());
+        assertArrayEquals(merged, b1.merge(a2).merge(a1).toBytes());
+        // idempotent, late report changes nothing
+        assertArrayEquals(merged, a1.merge(a2).merge(b1).merge(b1).merge(a1).toBytes());
+        assertArrayEquals(a2.toBytes(), a2.merge(a1).toBytes());
+
+        assertEquals(2, a2.merge(a1).getSequence("a", "test-aggregate-merge"));
+        assertEquals(-1, a2.getSequence("b", "test-aggregate-merge"));
+        assertEquals(3 + 7, a1.merge(a2).merge(b1).combine("test-aggregate-merge").getSum());
+    }
+
+    @Test
+    public void equalSequencesAreMergedInAnyOrder() throws IOException {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-aggregate-tie");
+        measurer.success(1);
+        SnapshotAggregate first = SnapshotAggregate.of("a", 1, snapshot(measurer));
+        measurer.success(2);
+        // f.e. restarted publisher with the same source
+        SnapshotAggregate second = SnapshotAggregate.of("a", 1, snapshot(measurer));
+
+        assertArrayEquals(first.merge(second).toBytes(), second.merge(first).toBytes());
+        assertEquals(3, first.merge(second).combine("test-aggregate-tie").getSum());
+        assertEquals(3, SnapshotAggregate.fromBytes(concat(first, second)).combine("test-aggregate-tie").getSum());
+        assertEquals(3, SnapshotAggregate.fromBytes(concat(second, first)).combine("test-aggregate-tie").getSum());
+    }
+
+    @Test
+    public void combine() {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-aggregate-combine");
+        measurer.possibleSize(100);
+        measurer.success(10);
+        for (int i = 0; i < 10; i++) {
+            measurer.record("io", 1000);
+        }
+        SnapshotAggregate a = SnapshotAggregate.of("a", 1, snapshot(measurer));
+
+        measurer.fail(5);
+        for (int i = 0; i < 10; i++) {
+            measurer.record("io", 1_000_000);
+        }
+        SnapshotAggregate b = SnapshotAggregate.of("b", 1, snapshot(measurer));
+
+
+        SnapshotAggregate.Combined combined = a.merge(b).combine("test-aggregate-combine");
+
+        assertEquals(2, combined.getSources());
+        assertEquals(20 + 35, combined.getSum());
+        assertEquals(20, combined.getSensors().get("success").getCount());
+        assertEquals(5, combined.getSensors().get("fail").getCount());
+
+        // 20 events of 1 µs & 10 events of 1 ms
+        SnapshotAggregate.CombinedSensor io = combined.getSensors().get("io");
+        assertEquals(30, io.getCount());
+        assertTrue(io.hasLatency());
+        assertEquals(1000, io.getPercentile(0), 10);
+        assertEquals(1_000_000, io.getPercentile(1), 10_000);
+        assertEquals(1_000_000, io.getMax());
+        assertFalse(combined.getSensors().get("success").hasLatency());
+
+        SnapshotAggregate.CombinedForecast forecast = combined.getForecast();
+        assertNotNull(forecast);
+        assertEquals(55, forecast.getCount());
+        assertEquals(200, forecast.getPossibleSize());
+        assertEquals(27.5, forecast.getPercent(), 0.01);
+
+        assertTrue(combined.toString(), combined.toString().startsWith("[test-aggregate-combine] 2 sources  "));
+        assertTrue(combined.toString(), combined.toString().endsWith("sum: 55;"));
+    }
+
+    @Test
+    public void forecastByRateOfAllSources() {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-aggregate-forecast");
+        measurer.possibleSize(1000);
+        measurer.success(250);
+
+        SnapshotAggregate.CombinedForecast forecast = SnapshotAggregate.of("a", 1, snapshot(measurer))
+                .combine("test-aggregate-forecast")
+                .getForecast();
+        assertEquals(25, forecast.getPercent(), 0);
+
+        forecast.calculate(0);
+        assertEquals(Forecast.UNKNOWN, forecast.getLeftTime());
+        forecast.calculate(50);
+        assertEquals(15_000, forecast.getLeftTime());
+    }
+
+    @Test
+    public void forecastOfSumIsNotSensorNamedSum() throws IOException {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-aggregate-forecast-sum");
+        measurer.possibleSize(100);
+        measurer.possibleSize("sum", 10);
+        measurer.measure("sum", 4); // isolated
+        measurer.success(3);
+
+        SnapshotAggregate aggregate = SnapshotAggregate.fromBytes(SnapshotAggregate.of("a", 1, snapshot(measurer)).toBytes());
+        SnapshotAggregate.Combined combined = aggregate.combine("test-aggregate-forecast-sum");
+
+        assertEquals(100, combined.getTotalForecast().getPossibleSize());
+        assertEquals(3, combined.getTotalForecast().getCount());
+        assertSame(combined.getTotalForecast(), combined.getForecast());
+        assertEquals(1, combined.getForecasts().size());
+        assertEquals(10, combined.getForecasts().get("sum").getPossibleSize());
+        assertEquals(40, combined.getForecasts().get("sum").getPercent(), 0.01);
+    }
+
+    @Test
+    public void encoding() throws IOException {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-aggregate-encoding");
+        measurer.possibleSize("files", 10);
+        measurer.measure("files");
+        measurer.success(3);
+        measurer.record("io", 2000);
+        SnapshotAggregate aggregate = SnapshotAggregate.of("a", 7, snapshot(measurer))
+                .merge(SnapshotAggregate.of("b", 3, snapshot(measurer)));
+
+        byte[] bytes = aggregate.toBytes();
+        SnapshotAggregate decoded = SnapshotAggregate.fromBytes(bytes);
+
+        assertArrayEquals(bytes, decoded.toBytes());
+        assertEquals(7, decoded.getSequence("a", "test-aggregate-encoding"));
+        assertEquals(
+                aggregate.combine("test-aggregate-encoding").toString(),
+                decoded.combine("test-aggregate-encoding").toString()
+        );
+
+        byte[] future = Arrays.copyOf(bytes, bytes.length);
+        future[5] = SnapshotAggregate.VERSION + 1;
+        try {
+            SnapshotAggregate.fromBytes(future);
+            fail("unknown version is read");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("version"));
+        }
+
+        try {
+            SnapshotAggregate.fromBytes(new byte[]{1, 2, 3, 4, 0, 1});
+            fail("garbage is read");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("magic"));
+        }
+    }
+
+    @Test
+    public void directory() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-aggregate-directory");
+
+        try (SnapshotPublisher first = SnapshotPublisher.toDirectory(directory, "shard-1");
+             SnapshotPublisher second = SnapshotPublisher.toDirectory(directory, "shard/2")) {
+
+            measurer.success(10);
+            first.report(snapshot(measurer));
+            measurer.success(10);
+            second.report(snapshot(measurer));
+            measurer.success(10);
+            first.report(snapshot(measurer));
+        }
+
+
+        SnapshotAggregator aggregator = new SnapshotAggregator(directory);
+        SnapshotAggregate aggregate = aggregator.poll();
+
+        assertEquals(2, aggregate.getSequence("shard-1", "test-aggregate-directory"));
+        SnapshotAggregate.Combined combined = aggregate.combine("test-aggregate-directory");
+        assertEquals(2, combined.getSources());
+        assertEquals(30 + 20, combined.getSum());
+
+        // the same files again
+        assertArrayEquals(aggregate.toBytes(), aggregator.poll().toBytes());
+    }
+
+    @Test
+    public void directoryIsWrittenOncePerTick() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        Path file = directory.resolve(SnapshotPublisher.fileName("tick"));
+        PerformanceMeasurer first = PerformanceMeasurer.get("test-aggregate-tick-1");
+        PerformanceMeasurer second = PerformanceMeasurer.get("test-aggregate-tick-2");
+
+        try (SnapshotPublisher publisher = SnapshotPublisher.toDirectory(directory, "tick")) {
+            first.success(10);
+            publisher.report(snapshot(first));
+            second.success(20);
+            publisher.report(snapshot(second));
+            assertFalse(Files.exists(file));
+
+            publisher.flush();
+            SnapshotAggregate aggregate = SnapshotAggregate.fromBytes(Files.readAllBytes(file));
+            assertEquals(10, aggregate.combine("test-aggregate-tick-1").getSum());
+            assertEquals(20, aggregate.combine("test-aggregate-tick-2").getSum());
+
+            // nothing new
+            Files.delete(file);
+            publisher.flush();
+            assertFalse(Files.exists(file));
+        }
+    }
+
+    @Test
+    public void filesOfGonePublishersArePruned() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-aggregate-prune");
+
+        try (SnapshotPublisher gone = SnapshotPublisher.toDirectory(directory, "gone");
+             SnapshotPublisher live = SnapshotPublisher.toDirectory(directory, "live")) {
+            measurer.success(10);
+            gone.report(snapshot(measurer));
+            live.report(snapshot(measurer));
+        }
+        Path goneFile = directory.resolve(SnapshotPublisher.fileName("gone"));
+        Files.setLastModifiedTime(goneFile, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+
+        SnapshotAggregator aggregator = new SnapshotAggregator(directory, 1, TimeUnit.HOURS);
+        SnapshotAggregate aggregate = aggregator.poll();
+
+        assertFalse(Files.exists(goneFile));
+        assertTrue(Files.exists(directory.resolve(SnapshotPublisher.fileName("live"))));
+        // the latest report remains
+        assertEquals(2, aggregate.combine("test-aggregate-prune").getSources());
+        assertEquals(2, aggregator.poll().combine("test-aggregate-prune").getSources());
+    }
+
+    @Test
+    public void socket() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-aggregate-socket");
+
+        try (SnapshotAggregator aggregator = new SnapshotAggregator(0)) {
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), aggregator.getPort());
+
+            try (SnapshotPublisher first = SnapshotPublisher.toSocket(address, "shard-1");
+                 SnapshotPublisher second = SnapshotPublisher.toSocket(address, "shard-2")) {
+
+                measurer.success(10);
+                first.report(snapshot(measurer));
+                measurer.success(5);
+                second.report(snapshot(measurer));
+                first.report(snapshot(measurer));
+
+                SnapshotAggregate.Combined combined = null;
+                for (int i = 0; i < 500 && (combined == null || combined.getSum() != 30); i++) {
+                    Thread.sleep(10);
+                    combined = aggregator.getAggregate().combine("test-aggregate-socket");
+                }
+
+                assertNotNull(combined);
+                assertEquals(2, combined.getSources());
+                assertEquals(15 + 15, combined.getSum());
+            }
+        }
+    }
+
+    @Test
+    public void unavailableAggregator() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-aggregate-unavailable");
+        int port;
+        try (SnapshotAggregator aggregator = new SnapshotAggregator(0)) {
+            port = aggregator.getPort();
+        }
+
+        // report is dropped
+        try (SnapshotPublisher publisher = SnapshotPublisher.toSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), port))) {
+            measurer.success();
+            publisher.report(snapshot(measurer));
+            assertTrue(publisher.getSource().contains("@"));
+        }
+    }
+
+    private static byte[] concat(SnapshotAggregate first, SnapshotAggregate second) {
+        byte[] a = first.toBytes();
+        byte[] b = second.toBytes();
+        // header of the first one, then reports of both
+        byte[] bytes = Arrays.copyOf(a, a.length + b.length - 10);
+        System.arraycopy(b, 10, bytes, a.length, b.length - 10);
+        bytes[9] = 2;
+        return bytes;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class SnapshotTest {
+
+    private static final Pattern SENSOR = Pattern.compile("(success|fail|error): -?\\d+% (\\d+)");
+    private static final Pattern SUM = Pattern.compile("sum: (\\d+)");
+
+    @Test
+    public void reportIsConsistentUnderLoad() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-snapshot-consistency");
+        measurer.success();
+        measurer.fail();
+        measurer.error();
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread[] writers = new Thread[3];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread(() -> {
+                while (running.get()) {
+                    measurer.success();
+                    measurer.fail(2);
+                    measurer.error(3);
+                }
+            });
+            writers[i].start();
+        }
+
+
+        StringBuilder log = new StringBuilder();
+        try {
+            for (int i = 0; i < 200; i++) {
+                measurer.makeSummary();
+                log.setLength(0);
+                measurer.log(log);
+                measurer.snapshot();
+
+                long total = 0;
+                Matcher sensor = SENSOR.matcher(log);
+                while (sensor.find()) {
+                    total += Long.parseLong(sensor.group(2));
+                }
+
+                Matcher sum = SUM.matcher(log);
+                assertTrue(log.toString(), sum.find());
+                assertEquals(log.toString(), total, Long.parseLong(sum.group(1)));
+            }
+        } finally {
+            running.set(false);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+    }
+
+    @Test
+    public void tickIsAllocationFree() throws Exception {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled());
+
+
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-snapshot-allocation");
+        measurer.possibleSize("isolated", 1000);
+        int warmUp = 20_000;
+        int ticks = 10_000;
+
+        for (int i = 0; i < warmUp; i++) {
+            tick(measurer);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(thread);
+
+        for (int i = 0; i < ticks; i++) {
+            tick(measurer);
+        }
+
+        long allocated = bean.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue("allocated " + allocated + " bytes per " + ticks + " ticks", allocated < ticks);
+    }
+
+    private static void tick(PerformanceMeasurer measurer) {
+        measurer.success();
+        measurer.fail(2);
+        measurer.measure("isolated");
+
+        measurer.makeSummary();
+        measurer.snapshot();
+    }
+}
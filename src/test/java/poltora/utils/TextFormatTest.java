@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.apache.commons.lang.time.DurationFormatUtils;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.text.DecimalFormat;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class TextFormatTest {
+
+    @Test
+    public void duration() throws Exception {
+        long[] values = {0, 999, 1000, 59_999, 60_000, 3_599_999, 3_600_000, 86_400_000, 360_000_000_000L, -1, -1500, -3_600_000};
+
+        for (long value : values) {
+            assertDuration(value);
+        }
+
+        Random random = new Random(1);
+        for (int i = 0; i < 10_000; i++) {
+            assertDuration(random.nextLong() % 1000_000_000_000L);
+        }
+    }
+
+    private static void assertDuration(long millis) {
+        StringBuilder log = new StringBuilder();
+        TextFormat.appendDuration(log, millis);
+
+        assertEquals(DurationFormatUtils.formatDuration(millis, "HH:mm:ss"), log.toString());
+    }
+
+    @Test
+    public void percent() throws Exception {
+        float[] values = {0f, -0f, 0.5f, 1.5f, 2.5f, -0.3f, -2.5f, 99.5f, 100f, 33.333332f, 1e20f,
+                Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+
+        for (float value : values) {
+            assertPercent(value);
+        }
+
+        Random random = new Random(1);
+        for (int i = 0; i < 100_000; i++) {
+            assertPercent((float) random.nextInt(1000) * 100 / (1 + random.nextInt(1000)) * (random.nextBoolean() ? 1 : -1));
+        }
+    }
+
+    private static void assertPercent(float percent) {
+        StringBuilder log = new StringBuilder();
+        TextFormat.appendPercent(log, percent);
+
+        assertEquals(new DecimalFormat("0").format(percent), log.toString());
+    }
+
+    @Test
+    public void length() throws Exception {
+        long[] values = {0, 9, 10, -1, -10, 99, 100, Long.MAX_VALUE, Long.MIN_VALUE};
+
+        for (long value : values) {
+            assertEquals(String.valueOf(value).length(), TextFormat.length(value));
+        }
+    }
+
+    @Test
+    public void steadyStateLogIsAllocationFree() throws Exception {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled());
+
+
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-allocation");
+        measurer.possibleSize(100_000);
+        measurer.setIsolated("isolated");
+        for (int i = 0; i < 100; i++) {
+            measurer.success();
+            measurer.fail(2);
+            measurer.error(3);
+            measurer.measure("isolated");
+            measurer.record("latency", i * 1000);
+        }
+        PerformanceMeasurer.display(); // summary & history
+        measurer.success(50);
+        PerformanceMeasurer.display();
+
+
+        StringBuilder log = new StringBuilder(1024);
+        int warmUp = 20_000;
+        int logs = 10_000;
+
+        for (int i = 0; i < warmUp; i++) {
+            log.setLength(0);
+            measurer.log(log);
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(thread);
+
+        for (int i = 0; i < logs; i++) {
+            log.setLength(0);
+            measurer.log(log);
+        }
+
+        long allocated = bean.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue(log.toString(), log.indexOf("success") > 0);
+        assertTrue("allocated " + allocated + " bytes per " + logs + " logs", allocated < logs);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static poltora.utils.Reports.report;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class TimeSeriesRecorderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordAndRead() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-recorder");
+
+        try (TimeSeriesRecorder recorder = new TimeSeriesRecorder(directory)) {
+            for (int i = 1; i <= 3; i++) {
+                measurer.success(i);
+                measurer.fail();
+                report(measurer, recorder);
+            }
+        }
+
+
+        List<TimeSeriesReader.Interval> intervals = new TimeSeriesReader(directory).readAll();
+
+        assertEquals(3, intervals.size());
+        TimeSeriesReader.Interval last = intervals.get(2);
+        assertEquals("test-recorder", last.getMeasurer());
+        assertTrue(last.getInterval() > 0);
+        assertEquals(6, last.getEntry("success").getCount());
+        assertEquals(3, last.getEntry("success").getDelta());
+        assertEquals(3, last.getEntry("fail").getCount());
+        assertEquals(9, last.getTotal().getCount());
+        assertEquals(4, last.getTotal().getDelta());
+        assertEquals(
+                measurer.getRate(PerformanceMeasurer.Window.ONE_MINUTE),
+                last.getTotal().getRate(PerformanceMeasurer.Window.ONE_MINUTE),
+                0
+        );
+    }
+
+    @Test
+    public void totalIsNotSensorNamedSum() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-recorder-sum");
+        char[] longName = new char[70_000];
+        Arrays.fill(longName, 'x');
+
+        try (TimeSeriesRecorder recorder = new TimeSeriesRecorder(directory)) {
+            measurer.measure("sum", 2);
+            measurer.measure(new String(longName), 3);
+            report(measurer, recorder);
+        }
+
+
+        TimeSeriesReader.Interval interval = new TimeSeriesReader(directory).readAll().get(0);
+        assertEquals(2, interval.getEntries().size());
+        assertEquals(2, interval.getEntry("sum").getCount());
+        assertEquals(3, interval.getEntry(new String(longName)).getCount());
+        assertNull(interval.getTotal().getSensor());
+        assertEquals(5, interval.getTotal().getCount());
+    }
+
+    @Test
+    public void segmentsRollOver() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-recorder-rollover");
+        int reports = 100;
+
+        try (TimeSeriesRecorder recorder = new TimeSeriesRecorder(directory, "rollover", 1024, 0)) {
+            for (int i = 0; i < reports; i++) {
+                measurer.success();
+                report(measurer, recorder);
+            }
+        }
+
+
+        assertTrue(TimeSeriesReader.segments(directory, "rollover").size() > 5);
+
+        List<TimeSeriesReader.Interval> intervals = new TimeSeriesReader(directory, "rollover").readAll();
+        assertEquals(reports, intervals.size());
+        for (int i = 0; i < reports; i++) {
+            assertEquals(i + 1, intervals.get(i).getEntry("success").getCount());
+        }
+    }
+
+    @Test
+    public void oldSegmentsAreDeleted() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-recorder-retention");
+
+        try (TimeSeriesRecorder recorder = new TimeSeriesRecorder(directory, "retention", 1024, 2)) {
+            for (int i = 0; i < 100; i++) {
+                measurer.success();
+                report(measurer, recorder);
+            }
+        }
+
+        // the next recording is continued by new segment
+        try (TimeSeriesRecorder recorder = new TimeSeriesRecorder(directory, "retention", 1024, 2)) {
+            measurer.success();
+            report(measurer, recorder);
+        }
+
+
+        List<Path> segments = TimeSeriesReader.segments(directory, "retention");
+        assertEquals(2, segments.size());
+
+        List<TimeSeriesReader.Interval> intervals = new TimeSeriesReader(directory, "retention").readAll();
+        assertEquals(101, intervals.get(intervals.size() - 1).getEntry("success").getCount());
+    }
+
+    @Test
+    public void csvAndSummary() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-recorder-cli");
+
+        try (TimeSeriesRecorder recorder = new TimeSeriesRecorder(directory)) {
+            measurer.success(10);
+            report(measurer, recorder);
+            measurer.success(20);
+            report(measurer, recorder);
+        }
+
+        TimeSeriesReader reader = new TimeSeriesReader(directory);
+
+        StringBuilder csv = new StringBuilder();
+        reader.writeCsv(csv);
+        String[] rows = csv.toString().split("\n");
+        assertEquals(1 + 2 * 2, rows.length);
+        assertEquals("time,measurer,sensor,count,delta,interval,rate_1m,rate_5m,rate_15m", rows[0]);
+        assertTrue(rows[3], rows[3].contains(",test-recorder-cli,success,30,20,"));
+
+        StringBuilder summary = new StringBuilder();
+        reader.writeSummary(summary);
+        String[] lines = summary.toString().split("\n");
+        assertEquals(1 + 2, lines.length);
+        assertTrue(lines[1], lines[1].matches("test-recorder-cli +success +2 .* 30 .*"));
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static poltora.utils.Reports.snapshot;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class TimerTest {
+
+    @SuppressWarnings("unused")
+    private static volatile byte[] sink;
+
+    @Test
+    public void nestedSectionsAreCountedOnce() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-timer-nested");
+
+        try (PerformanceMeasurer.Timer outer = measurer.time()) {
+            Thread.sleep(20);
+
+            try (PerformanceMeasurer.Timer inner = measurer.time()) {
+                Thread.sleep(20);
+            }
+        }
+
+        long duration = TimeUnit.NANOSECONDS.toMillis(measurer.getStepDuration());
+        assertTrue(String.valueOf(duration), duration >= 40 && duration < 80);
+    }
+
+    @Test
+    public void startStopOfDifferentMeasurers() throws Exception {
+        PerformanceMeasurer first = PerformanceMeasurer.get("test-timer-first");
+        PerformanceMeasurer second = PerformanceMeasurer.get("test-timer-second");
+
+        first.start();
+        second.start();
+        Thread.sleep(20);
+        first.stop();
+        Thread.sleep(20);
+        second.stop();
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(first.getStepDuration()) < 40);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(second.getStepDuration()) >= 40);
+    }
+
+    @Test
+    public void stopWithoutStart() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-timer-without-start");
+
+        measurer.stop();
+
+        assertEquals(0, measurer.getStepDuration());
+    }
+
+    @Test
+    public void sectionNotStoppedByExceptionIsRestarted() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-timer-exception");
+        PerformanceMeasurer.Timer timer = TimerContext.INSTANCE.current();
+        int depth = timer.getDepth();
+
+        for (int i = 0; i < 100; i++) {
+            try {
+                measurer.start();
+                throw new IllegalStateException("download failed");
+            } catch (IllegalStateException expected) {
+                // stop() isn't reached
+            }
+        }
+        assertEquals(depth + 1, timer.getDepth());
+
+        measurer.start();
+        Thread.sleep(20);
+        measurer.stop();
+
+        assertEquals(depth, timer.getDepth());
+        long duration = TimeUnit.NANOSECONDS.toMillis(measurer.getStepDuration());
+        assertTrue(String.valueOf(duration), duration >= 20 && duration < 40);
+
+        // outermost section is counted again
+        try (PerformanceMeasurer.Timer section = measurer.time()) {
+            Thread.sleep(20);
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(measurer.getStepDuration()) >= 40);
+    }
+
+    @Test
+    public void closeFinishesOwnSection() throws Exception {
+        PerformanceMeasurer outer = PerformanceMeasurer.get("test-timer-close-outer");
+        PerformanceMeasurer leaked = PerformanceMeasurer.get("test-timer-close-leaked");
+        PerformanceMeasurer.Timer timer = TimerContext.INSTANCE.current();
+        int depth = timer.getDepth();
+
+        try (PerformanceMeasurer.Timer section = outer.time()) {
+            leaked.start();
+        }
+
+        // section of time() is finished, section of start() is still open
+        assertTrue(outer.getStepDuration() > 0);
+        assertEquals(0, leaked.getStepDuration());
+        assertEquals(depth + 1, timer.getDepth());
+
+        leaked.stop();
+        assertTrue(leaked.getStepDuration() > 0);
+        assertEquals(depth, timer.getDepth());
+    }
+
+    @Test
+    public void pooledThreadDoesNotAccumulateSections() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < 100; i++) {
+                PerformanceMeasurer measurer = PerformanceMeasurer.get("test-timer-pooled-" + (i % 10));
+                pool.submit(() -> {
+                    measurer.start();
+                    throw new IllegalStateException("task failed");
+                });
+            }
+
+            int depth = pool.submit(() -> TimerContext.INSTANCE.current().getDepth()).get();
+            assertEquals(10, depth);
+
+            // sections of purged measurers are dropped
+            PerformanceMeasurer.retire(PerformanceMeasurer.get("test-timer-pooled-0"));
+            depth = pool.submit(() -> {
+                PerformanceMeasurer.get("test-timer-pooled-1").start();
+                return TimerContext.INSTANCE.current().getDepth();
+            }).get();
+            assertEquals(9, depth);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void explicitTimerIsCarriedBetweenThreads() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-timer-explicit");
+        PerformanceMeasurer.Timer timer = PerformanceMeasurer.Timer.newTimer();
+
+        timer.start(measurer, "request");
+        Thread.sleep(20);
+
+        // continuation of request on another thread
+        Thread continuation = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            timer.stop(measurer);
+        });
+        continuation.start();
+        continuation.join();
+
+        assertEquals(0, timer.getDepth());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(measurer.getStepDuration()) >= 40);
+        assertEquals(1, measurer.getSensor("request").sum());
+    }
+
+    @Test
+    public void boundTimerIsCurrentWithinTask() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-timer-bound");
+        PerformanceMeasurer.Timer timer = PerformanceMeasurer.Timer.newTimer();
+
+        measurer.start();
+        timer.run(() -> {
+            measurer.start();
+            assertEquals(1, timer.getDepth());
+        });
+
+        // section of task is still open in bound timer, section of thread is not affected
+        assertEquals(1, timer.getDepth());
+        measurer.stop();
+        assertEquals(1, timer.getDepth());
+        assertTrue(measurer.getStepDuration() > 0);
+
+        timer.run(measurer::stop);
+        assertEquals(0, timer.getDepth());
+    }
+
+    @Test
+    public void cpuTimeAndWaitTime() throws Exception {
+        Assume.assumeTrue(ThreadProbe.CPU_TIME);
+
+        PerformanceMeasurer busy = PerformanceMeasurer.get("test-timer-cpu-busy").setCpuTiming(1);
+        PerformanceMeasurer sleeping = PerformanceMeasurer.get("test-timer-cpu-sleeping").setCpuTiming(1);
+
+        for (int i = 0; i < 10; i++) {
+            try (PerformanceMeasurer.Timer timer = busy.time()) {
+                long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(20);
+                while (System.nanoTime() < end) {
+                    busy.success();
+                }
+            }
+
+            try (PerformanceMeasurer.Timer timer = sleeping.time()) {
+                Thread.sleep(20);
+                sleeping.success();
+            }
+        }
+
+        busy.makeSummary();
+        sleeping.makeSummary();
+        Snapshot busySnapshot = busy.newSnapshot("");
+        Snapshot sleepingSnapshot = sleeping.newSnapshot("");
+        Snapshot.CpuTime busyTime = busySnapshot.getCpuTime();
+        Snapshot.CpuTime sleepingTime = sleepingSnapshot.getCpuTime();
+
+        // busy sections may be descheduled by other threads on loaded machine, so they are compared with sleeping ones
+        assertTrue(
+                busyTime.getCpuTime() + " of " + busySnapshot.getDuration() + ", " + sleepingTime.getCpuTime() + " of " + sleepingSnapshot.getDuration(),
+                (double) busyTime.getCpuTime() / busySnapshot.getDuration() > 4.0 * sleepingTime.getCpuTime() / sleepingSnapshot.getDuration()
+        );
+        assertTrue(busyTime.getUserTime() <= busyTime.getCpuTime());
+        assertTrue(busyTime.getThroughput() >= busySnapshot.getThroughput());
+
+        assertTrue(sleepingTime.getCpuTime() + " of " + sleepingSnapshot.getDuration(), sleepingTime.getWaitTime() > sleepingSnapshot.getDuration() / 2);
+        assertEquals(sleepingSnapshot.getDuration(), sleepingTime.getCpuTime() + sleepingTime.getWaitTime());
+
+        StringBuilder log = new StringBuilder();
+        busy.log(log);
+        assertTrue(log.toString(), log.toString().contains("cpu r/s: "));
+    }
+
+    @Test
+    public void cpuTimeIsOffByDefault() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-timer-cpu-off");
+
+        try (PerformanceMeasurer.Timer timer = measurer.time()) {
+            measurer.success();
+        }
+        measurer.makeSummary();
+
+        assertNull(measurer.newSnapshot("").getCpuTime());
+    }
+
+    @Test
+    public void allocationOfSections() throws Exception {
+        Assume.assumeTrue(ThreadProbe.ALLOCATED_BYTES);
+
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-timer-allocation-accounting").setAllocationAccounting(true);
+
+        // the first interval: 1 KB per event, the second one: 4 KB per event
+        Snapshot first = allocate(measurer, 1000, 1024);
+        Snapshot second = allocate(measurer, 500, 4096);
+
+        assertAllocation(first, 1000, 1024);
+        assertAllocation(second, 500, 4096);
+        assertEquals(first.getAllocation().getBytes() + second.getAllocation().getIntervalBytes(), second.getAllocation().getBytes());
+
+        StringBuilder log = new StringBuilder();
+        measurer.log(log);
+        assertTrue(log.toString(), log.toString().contains("alloc: " + second.getAllocation().getBytesPerEvent() + " B/op "));
+    }
+
+    private static Snapshot allocate(PerformanceMeasurer measurer, int sections, int size) {
+        for (int i = 0; i < sections; i++) {
+            try (PerformanceMeasurer.Timer timer = measurer.time()) {
+                sink = new byte[size];
+                measurer.success();
+            }
+        }
+
+        return snapshot(measurer);
+    }
+
+    private static void assertAllocation(Snapshot snapshot, int sections, int size) {
+        Snapshot.Allocation allocation = snapshot.getAllocation();
+
+        // array header is 12..24 bytes
+        assertTrue(allocation.getIntervalBytes() + " of " + sections, allocation.getIntervalBytes() >= (long) sections * size);
+        assertTrue(allocation.getIntervalBytes() + " of " + sections, allocation.getIntervalBytes() <= (long) sections * (size + 64));
+        assertTrue(String.valueOf(allocation.getBytesPerEvent()), allocation.getBytesPerEvent() >= size && allocation.getBytesPerEvent() <= size + 64);
+
+        double megabytesPerSecond = (double) allocation.getIntervalBytes() / (1024 * 1024) / (snapshot.getInterval() / 1e9);
+        assertEquals(megabytesPerSecond, allocation.getMegabytesPerSecond(), megabytesPerSecond * 1e-9);
+    }
+
+    @Test
+    public void timerIsAllocationFree() throws Exception {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled());
+
+
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-timer-allocation");
+        PerformanceMeasurer.Sensor sensor = measurer.getSensor("section");
+        int warmUp = 50_000;
+        int sections = 100_000;
+
+        for (int i = 0; i < warmUp; i++) {
+            try (PerformanceMeasurer.Timer timer = measurer.time(sensor)) {
+                sensor.measure();
+            }
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(thread);
+
+        for (int i = 0; i < sections; i++) {
+            try (PerformanceMeasurer.Timer timer = measurer.time(sensor)) {
+                sensor.measure();
+            }
+        }
+
+        long allocated = bean.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue("allocated " + allocated + " bytes per " + sections + " sections", allocated < sections);
+    }
+}
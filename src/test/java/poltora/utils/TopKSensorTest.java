@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2020 Oleg Poltoratskii www.poltora.info
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package poltora.utils;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static poltora.utils.Reports.report;
+
+/**
+ * @author Oleg Poltoratskii ( www.poltora.info )
+ */
+public class TopKSensorTest {
+
+    @Test
+    public void heavyHitters() {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-top");
+        TopKSensor url = measurer.getTopKSensor("url", 5);
+        long[] heavy = {10_000, 5_000, 4_000, 2_000, 1_000};
+
+        // heavy keys are interleaved with long tail of unique keys
+        for (int i = 0; i < 20_000; i++) {
+            url.measure("/tail/" + i);
+            for (int key = 0; key < heavy.length; key++) {
+                if (i % (20_000 / heavy[key]) == 0) {
+                    url.measure("/heavy/" + key);
+                }
+            }
+        }
+        String log = report(measurer);
+
+        assertEquals(5, url.size());
+        for (int key = 0; key < heavy.length; key++) {
+            assertEquals("/heavy/" + key, url.getKey(key));
+            assertTrue(url.getCount(key) >= heavy[key]);
+            assertTrue(url.getCount(key) <= heavy[key] + url.getError());
+        }
+        assertEquals(20_000 + 22_000, measurer.getSensor("url").sum());
+        assertTrue(measurer.getSensor("url").isIsolated());
+        assertTrue(log, log.contains("url top: /heavy/0 "));
+
+
+        // next interval
+        url.measure("/b", 3);
+        url.measure("/a");
+        report(measurer);
+
+        assertEquals(2, url.size());
+        assertEquals("/b", url.getKey(0));
+        assertEquals(3, url.getCount(0));
+        assertEquals("/a", url.getKey(1));
+    }
+
+    @Test
+    public void concurrentMeasuring() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-top-concurrent");
+        TopKSensor shop = measurer.getTopKSensor("shop", 3);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 50_000; i++) {
+                    shop.measure("shop-" + (i % 2));
+                    shop.measure("shop-" + thread + "-" + i);
+                }
+            }));
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        report(measurer);
+
+        assertEquals(400_000, measurer.getSensor("shop").sum());
+        assertEquals(2, countHeavy(shop));
+        for (int i = 0; i < 2; i++) {
+            assertTrue(shop.getCount(i) >= 100_000);
+            assertTrue(shop.getCount(i) <= 100_000 + shop.getError());
+        }
+    }
+
+    @Test
+    public void jsonLines() throws Exception {
+        PerformanceMeasurer measurer = PerformanceMeasurer.get("test-top-json");
+        measurer.measureTop("url", "/\"a\"", 2);
+        measurer.makeSummary();
+
+        StringWriter writer = new StringWriter();
+        new JsonLinesReporter(writer).report(measurer.newSnapshot("text"));
+        String line = writer.toString();
+
+        assertTrue(line, line.endsWith(",\"tops\":[{\"name\":\"url\",\"error\":1,\"keys\":[{\"key\":\"/\\\"a\\\"\",\"count\":2}]}]}\n"));
+    }
+
+    private static int countHeavy(TopKSensor sensor) {
+        int number = 0;
+        for (int i = 0; i < sensor.size(); i++) {
+            if (sensor.getKey(i).matches("shop-\\d")) {
+                assertEquals(i, number);
+                number++;
+            }
+        }
+        return number;
+    }
+}